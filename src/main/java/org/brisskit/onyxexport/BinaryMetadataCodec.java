@@ -0,0 +1,326 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import javax.xml.namespace.QName;
+
+import org.apache.xmlbeans.XmlCursor;
+import org.apache.xmlbeans.XmlObject;
+import org.brisskit.onyxmetadata.stageone.beans.SourceDocument;
+
+/**
+ * A compact binary form of the stage one metadata passed from <code>OnyxVariables2Metadata</code>
+ * to <code>MetadataRefiner</code>. <p/>
+ *
+ * The document is written as a flat series of tokens, as an <code>XmlCursor</code> walks it:
+ * <p><blockquote><pre>
+ *     header   : magic "OXMB", version (int)
+ *     START    : 1, namespace, local name
+ *     ATTR     : 2, namespace, local name, value
+ *     TEXT     : 3, value
+ *     END      : 4
+ *     END_DOC  : 0
+ * </pre></blockquote><p>
+ * Every string is a reference into a string table built up as the document is written.
+ * A reference is a variable length unsigned int: 0 introduces a new string (its UTF-8 length as a
+ * variable length int, then its bytes), which takes the next index in the table;
+ * n refers back to the string at index n-1. Element and attribute names and the many repeated
+ * values (value types, boolean flags and so on) are therefore written once. <p/>
+ *
+ * Reading builds the XmlBeans store token by token through a cursor, so none of the
+ * text parsing of the XML form is done. Namespace declarations, comments and processing
+ * instructions are not carried. The XML form remains the default and is the one to use for debugging.
+ *
+ * @author jl99
+ *
+ */
+public class BinaryMetadataCodec {
+
+	private static final byte[] MAGIC = { 'O', 'X', 'M', 'B' } ;
+	private static final int VERSION = 1 ;
+
+	private static final int END_DOC = 0 ;
+	private static final int START = 1 ;
+	private static final int ATTR = 2 ;
+	private static final int TEXT = 3 ;
+	private static final int END = 4 ;
+
+	private BinaryMetadataCodec() {}
+
+	/**
+	 * Writes the document in binary form to the given file.
+	 *
+	 * @param doc
+	 * @param file
+	 * @throws IOException
+	 */
+	public static void save( XmlObject doc, File file ) throws IOException {
+		OutputStream out = new BufferedOutputStream( new FileOutputStream( file ), 64 * 1024 ) ;
+		try {
+			write( doc, out ) ;
+		}
+		finally {
+			out.close() ;
+		}
+	}
+
+	/**
+	 * Writes the document in binary form. The stream is flushed but not closed.
+	 *
+	 * @param doc
+	 * @param out
+	 * @throws IOException
+	 */
+	public static void write( XmlObject doc, OutputStream out ) throws IOException {
+		Writer writer = new Writer( out ) ;
+		out.write( MAGIC ) ;
+		writer.out.writeInt( VERSION ) ;
+		XmlCursor cursor = doc.newCursor() ;
+		try {
+			cursor.toStartDoc() ;
+			XmlCursor.TokenType token ;
+			while( ( token = cursor.toNextToken() ) != XmlCursor.TokenType.ENDDOC
+				   &&
+				   token != XmlCursor.TokenType.NONE ) {
+				if( token == XmlCursor.TokenType.START ) {
+					writer.writeToken( START ) ;
+					writer.writeName( cursor.getName() ) ;
+				}
+				else if( token == XmlCursor.TokenType.ATTR ) {
+					writer.writeToken( ATTR ) ;
+					writer.writeName( cursor.getName() ) ;
+					writer.writeString( cursor.getTextValue() ) ;
+				}
+				else if( token == XmlCursor.TokenType.TEXT ) {
+					writer.writeToken( TEXT ) ;
+					writer.writeString( cursor.getChars() ) ;
+				}
+				else if( token == XmlCursor.TokenType.END ) {
+					writer.writeToken( END ) ;
+				}
+				//
+				// Namespace declarations, comments and processing instructions are not carried...
+			}
+			writer.writeToken( END_DOC ) ;
+		}
+		finally {
+			cursor.dispose() ;
+		}
+		writer.out.flush() ;
+	}
+
+	/**
+	 * Loads stage one metadata written by {@link #save(XmlObject, File)}.
+	 *
+	 * @param file
+	 * @return the document
+	 * @throws IOException if the file cannot be read or is not in binary form
+	 */
+	public static SourceDocument loadSource( File file ) throws IOException {
+		InputStream in = new BufferedInputStream( new FileInputStream( file ), 64 * 1024 ) ;
+		try {
+			SourceDocument doc = SourceDocument.Factory.newInstance() ;
+			read( in, doc ) ;
+			return doc ;
+		}
+		finally {
+			in.close() ;
+		}
+	}
+
+	/**
+	 * Reads a document in binary form into the given (empty) document. The stream is not closed.
+	 *
+	 * @param in
+	 * @param doc
+	 * @throws IOException if the stream cannot be read or is not in binary form
+	 */
+	public static void read( InputStream in, XmlObject doc ) throws IOException {
+		Reader reader = new Reader( in ) ;
+		byte[] magic = new byte[ MAGIC.length ] ;
+		reader.in.readFully( magic ) ;
+		if( !Arrays.equals( magic, MAGIC ) ) {
+			throw new IOException( "Not binary metadata." ) ;
+		}
+		int version = reader.in.readInt() ;
+		if( version != VERSION ) {
+			throw new IOException( "Unsupported binary metadata version: " + version ) ;
+		}
+		XmlCursor cursor = doc.newCursor() ;
+		try {
+			//
+			// Position within the document, before its end...
+			cursor.toEndDoc() ;
+			int depth = 0 ;
+			int token ;
+			while( ( token = reader.readToken() ) != END_DOC ) {
+				switch( token ) {
+					case START:
+						//
+						// The cursor is left inside the new element, before its end...
+						cursor.beginElement( reader.readName() ) ;
+						depth++ ;
+						break ;
+					case ATTR:
+						QName name = reader.readName() ;
+						cursor.insertAttributeWithValue( name, reader.readString() ) ;
+						break ;
+					case TEXT:
+						cursor.insertChars( reader.readString() ) ;
+						break ;
+					case END:
+						if( depth == 0 ) {
+							throw new IOException( "Corrupt binary metadata: unbalanced end." ) ;
+						}
+						cursor.toNextToken() ;
+						depth-- ;
+						break ;
+					default:
+						throw new IOException( "Corrupt binary metadata: unknown token " + token ) ;
+				}
+			}
+			if( depth != 0 ) {
+				throw new IOException( "Corrupt binary metadata: unclosed element." ) ;
+			}
+		}
+		finally {
+			cursor.dispose() ;
+		}
+	}
+
+	/**
+	 * @param file
+	 * @return true if the file begins as binary metadata, false otherwise.
+	 * @throws IOException
+	 */
+	public static boolean isBinary( File file ) throws IOException {
+		InputStream in = new FileInputStream( file ) ;
+		try {
+			byte[] magic = new byte[ MAGIC.length ] ;
+			int count = 0 ;
+			int read ;
+			while( count < magic.length && ( read = in.read( magic, count, magic.length - count ) ) != -1 ) {
+				count += read ;
+			}
+			return count == magic.length && Arrays.equals( magic, MAGIC ) ;
+		}
+		finally {
+			in.close() ;
+		}
+	}
+
+	private static class Writer {
+
+		final DataOutputStream out ;
+		final HashMap<String,Integer> table = new HashMap<String,Integer>() ;
+
+		Writer( OutputStream out ) {
+			this.out = new DataOutputStream( out ) ;
+		}
+
+		void writeToken( int token ) throws IOException {
+			out.writeByte( token ) ;
+		}
+
+		void writeName( QName name ) throws IOException {
+			writeString( name.getNamespaceURI() ) ;
+			writeString( name.getLocalPart() ) ;
+		}
+
+		void writeString( String s ) throws IOException {
+			Integer index = table.get( s ) ;
+			if( index != null ) {
+				writeUnsigned( index + 1 ) ;
+				return ;
+			}
+			table.put( s, table.size() ) ;
+			byte[] bytes = s.getBytes( "UTF-8" ) ;
+			writeUnsigned( 0 ) ;
+			writeUnsigned( bytes.length ) ;
+			out.write( bytes ) ;
+		}
+
+		void writeUnsigned( int value ) throws IOException {
+			while( ( value & ~0x7F ) != 0 ) {
+				out.writeByte( ( value & 0x7F ) | 0x80 ) ;
+				value >>>= 7 ;
+			}
+			out.writeByte( value ) ;
+		}
+
+	}
+
+	private static class Reader {
+
+		final DataInputStream in ;
+		final ArrayList<String> table = new ArrayList<String>() ;
+		final HashMap<String,QName> names = new HashMap<String,QName>() ;
+
+		Reader( InputStream in ) {
+			this.in = new DataInputStream( in ) ;
+		}
+
+		int readToken() throws IOException {
+			return in.readUnsignedByte() ;
+		}
+
+		QName readName() throws IOException {
+			String namespace = readString() ;
+			String localPart = readString() ;
+			//
+			// Names repeat endlessly; share one QName per distinct name...
+			String key = namespace + '}' + localPart ;
+			QName name = names.get( key ) ;
+			if( name == null ) {
+				name = new QName( namespace, localPart ) ;
+				names.put( key, name ) ;
+			}
+			return name ;
+		}
+
+		String readString() throws IOException {
+			int reference = readUnsigned() ;
+			if( reference > 0 ) {
+				if( reference > table.size() ) {
+					throw new IOException( "Corrupt binary metadata: bad string reference " + reference ) ;
+				}
+				return table.get( reference - 1 ) ;
+			}
+			int length = readUnsigned() ;
+			byte[] bytes = new byte[ length ] ;
+			in.readFully( bytes ) ;
+			String s = new String( bytes, "UTF-8" ) ;
+			table.add( s ) ;
+			return s ;
+		}
+
+		int readUnsigned() throws IOException {
+			int value = 0 ;
+			for( int shift=0; shift<35; shift+=7 ) {
+				int b = in.readUnsignedByte() ;
+				value |= ( b & 0x7F ) << shift ;
+				if( ( b & 0x80 ) == 0 ) {
+					return value ;
+				}
+			}
+			throw new IOException( "Corrupt binary metadata: bad length." ) ;
+		}
+
+	}
+
+}
@@ -0,0 +1,270 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The write-behind stage for cleaned files. A cleaned file is first written in full to a temporary
+ * file alongside its target (see {@link #tempFileFor(File)}), then handed to this stage, which
+ * runs on its own thread: <br/>
+ * <br/>
+ * 1. Temporary files are taken off the queue in groups, and each group is synced to disk together.<br/>
+ * 2. Each temporary file is then published over its target with an atomic rename.<br/>
+ * 3. The directories involved are synced, so the renames themselves are durable.<br/>
+ * <br/>
+ * A crash at any point leaves each target either wholly old or wholly new, never half written.
+ * The outcome for each file is reported to the {@link Listener} on the writer's thread.
+ * If the writer's thread stops early (eg: it is interrupted), files still queued are reported
+ * as failed, and {@link #publish(File, File, String)} and {@link #close()} throw rather than block.
+ *
+ * @author jl99
+ *
+ */
+public class CleanedFileWriter {
+
+	private static Log log = LogFactory.getLog( CleanedFileWriter.class ) ;
+
+	public static final String TEMP_SUFFIX = ".cleaning" ;
+
+	private static final long LIVENESS_CHECK_MILLIS = 500 ;
+
+	/**
+	 * Receives the outcome for each file handed to the writer.
+	 */
+	public interface Listener {
+		public void published( File target, String hash ) ;
+		public void failed( File target, Exception ex ) ;
+	}
+
+	private static class Publication {
+		final File temp ;
+		final File target ;
+		final String hash ;
+		Publication( File temp, File target, String hash ) {
+			this.temp = temp ;
+			this.target = target ;
+			this.hash = hash ;
+		}
+	}
+
+	private static final Publication END_OF_QUEUE = new Publication( null, null, null ) ;
+
+	private final BlockingQueue<Publication> queue ;
+	private final int groupSize ;
+	private final Listener listener ;
+	private final Thread thread ;
+	private volatile boolean stopped = false ;
+	private volatile boolean abandoned = false ;
+
+	/**
+	 * @param groupSize the most files synced together as a group
+	 * @param listener
+	 */
+	public CleanedFileWriter( int groupSize, Listener listener ) {
+		this.groupSize = groupSize ;
+		this.listener = listener ;
+		this.queue = new ArrayBlockingQueue<Publication>( groupSize * 4 ) ;
+		this.thread = new Thread( new Runnable() {
+			public void run() {
+				drain() ;
+			}
+		}, "CleanedFileWriter" ) ;
+		this.thread.setDaemon( true ) ;
+		this.thread.start() ;
+	}
+
+	/**
+	 * @param target
+	 * @return the temporary file a cleaned version of the target should be written to.
+	 */
+	public static File tempFileFor( File target ) {
+		return new File( target.getParentFile(), "." + target.getName() + TEMP_SUFFIX ) ;
+	}
+
+	/**
+	 * Queues the given temporary file to be published over its target.
+	 * Blocks whilst the queue is full.
+	 *
+	 * @param temp
+	 * @param target
+	 * @param hash the hash of the temporary file's content, handed back to the listener once published
+	 * @throws InterruptedException
+	 * @throws IOException if the writer has stopped and the file will never be published
+	 */
+	public void publish( File temp, File target, String hash ) throws InterruptedException, IOException {
+		Publication p = new Publication( temp, target, hash ) ;
+		offer( p ) ;
+		//
+		// The writer may have stopped just as the file was queued...
+		if( stopped && queue.remove( p ) ) {
+			temp.delete() ;
+			throw new IOException( "CleanedFileWriter has stopped; not published: " + target.getAbsolutePath() ) ;
+		}
+	}
+
+	/**
+	 * Publishes everything still queued and stops the writer's thread.
+	 *
+	 * @throws InterruptedException
+	 * @throws IOException if the writer stopped before everything queued was published
+	 */
+	public void close() throws InterruptedException, IOException {
+		if( !stopped ) {
+			try {
+				offer( END_OF_QUEUE ) ;
+			}
+			catch( IOException iox ) {
+				// Reported below...
+			}
+		}
+		thread.join() ;
+		if( abandoned ) {
+			throw new IOException( "CleanedFileWriter stopped early; outstanding files were not published." ) ;
+		}
+	}
+
+	/**
+	 * Queues the publication, waiting whilst the queue is full for as long as the writer's thread is running.
+	 */
+	private void offer( Publication p ) throws InterruptedException, IOException {
+		while( !stopped ) {
+			if( queue.offer( p, LIVENESS_CHECK_MILLIS, TimeUnit.MILLISECONDS ) ) {
+				return ;
+			}
+		}
+		if( p != END_OF_QUEUE ) {
+			p.temp.delete() ;
+		}
+		throw new IOException( "CleanedFileWriter has stopped; nothing more can be published." ) ;
+	}
+
+	private void drain() {
+		ArrayList<Publication> group = new ArrayList<Publication>( groupSize ) ;
+		boolean ended = false ;
+		try {
+			while( !ended ) {
+				group.clear() ;
+				try {
+					group.add( queue.take() ) ;
+				}
+				catch( InterruptedException ix ) {
+					log.warn( "CleanedFileWriter interrupted; outstanding files are not published." ) ;
+					return ;
+				}
+				queue.drainTo( group, groupSize-1 ) ;
+				int end = group.indexOf( END_OF_QUEUE ) ;
+				if( end != -1 ) {
+					ended = true ;
+					group.remove( end ) ;
+				}
+				publishGroup( group ) ;
+			}
+		}
+		finally {
+			abandoned = !ended ;
+			stopped = true ;
+			if( abandoned ) {
+				abandon() ;
+			}
+		}
+	}
+
+	/**
+	 * Reports every file still queued as failed, once the writer's thread has stopped early.
+	 */
+	private void abandon() {
+		ArrayList<Publication> outstanding = new ArrayList<Publication>() ;
+		queue.drainTo( outstanding ) ;
+		for( Publication p : outstanding ) {
+			if( p == END_OF_QUEUE ) {
+				continue ;
+			}
+			p.temp.delete() ;
+			try {
+				listener.failed( p.target, new IOException( "CleanedFileWriter stopped early; not published." ) ) ;
+			}
+			catch( RuntimeException rx ) {
+				log.error( "Listener failed for " + p.target.getAbsolutePath(), rx ) ;
+			}
+		}
+	}
+
+	private void publishGroup( ArrayList<Publication> group ) {
+		if( group.isEmpty() ) {
+			return ;
+		}
+		if( log.isDebugEnabled() ) {
+			log.debug( "Publishing group of " + group.size() + " file(s)" ) ;
+		}
+		//
+		// Make the content of the whole group durable first...
+		ArrayList<Publication> synced = new ArrayList<Publication>( group.size() ) ;
+		for( Publication p : group ) {
+			try {
+				sync( p.temp.toPath(), StandardOpenOption.WRITE ) ;
+				synced.add( p ) ;
+			}
+			catch( Exception ex ) {
+				p.temp.delete() ;
+				listener.failed( p.target, ex ) ;
+			}
+		}
+		//
+		// Then swap each one in...
+		LinkedHashSet<Path> directories = new LinkedHashSet<Path>() ;
+		ArrayList<Publication> moved = new ArrayList<Publication>( synced.size() ) ;
+		for( Publication p : synced ) {
+			try {
+				Files.move( p.temp.toPath(), p.target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING ) ;
+				directories.add( p.target.getAbsoluteFile().getParentFile().toPath() ) ;
+				moved.add( p ) ;
+			}
+			catch( Exception ex ) {
+				p.temp.delete() ;
+				listener.failed( p.target, ex ) ;
+			}
+		}
+		//
+		// And make the renames durable...
+		for( Path directory : directories ) {
+			try {
+				sync( directory, StandardOpenOption.READ ) ;
+			}
+			catch( IOException iox ) {
+				//
+				// Not every platform allows a directory to be synced (eg: Windows)...
+				log.debug( "Could not sync directory " + directory + ": " + iox.getLocalizedMessage() ) ;
+			}
+		}
+		for( Publication p : moved ) {
+			listener.published( p.target, p.hash ) ;
+		}
+	}
+
+	private static void sync( Path path, StandardOpenOption option ) throws IOException {
+		FileChannel channel = FileChannel.open( path, option ) ;
+		try {
+			channel.force( true ) ;
+		}
+		finally {
+			channel.close() ;
+		}
+	}
+
+}
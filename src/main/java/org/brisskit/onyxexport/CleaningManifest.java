@@ -0,0 +1,219 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Records which files of an export the <code>OnyxVariablesCleaner</code> has already dealt with,
+ * so that a re-run can skip them. The manifest is held within the export directory as a hidden file:
+ * <p><blockquote><pre>
+ *     # rules-version
+ *     size  mtime  sha1  questionnaire/file-name
+ *     ...
+ * </pre></blockquote><p>
+ * A file whose size and modification time still match its entry is skipped without being read.
+ * If only the modification time differs, the content hash decides. A manifest written under a
+ * different version of the rules is discarded as a whole.
+ *
+ * @author jl99
+ *
+ */
+public class CleaningManifest {
+
+	private static Log log = LogFactory.getLog( CleaningManifest.class ) ;
+
+	public static final String MANIFEST_FILE_NAME = ".onyx-cleaner-manifest" ;
+
+	private static final String ENCODING = "UTF-8" ;
+
+	private final File exportDirectory ;
+	private final String rulesVersion ;
+	private final ConcurrentHashMap<String,Entry> entries = new ConcurrentHashMap<String,Entry>() ;
+
+	private static class Entry {
+		final long size ;
+		final long lastModified ;
+		final String hash ;
+		Entry( long size, long lastModified, String hash ) {
+			this.size = size ;
+			this.lastModified = lastModified ;
+			this.hash = hash ;
+		}
+	}
+
+	private CleaningManifest( File exportDirectory, String rulesVersion ) {
+		this.exportDirectory = exportDirectory ;
+		this.rulesVersion = rulesVersion ;
+	}
+
+	/**
+	 * Loads the manifest for the given export directory. If there is none,
+	 * or it was written under a different version of the rules, an empty manifest is returned.
+	 *
+	 * @param exportDirectory
+	 * @param rulesVersion
+	 * @return the manifest
+	 * @throws IOException
+	 */
+	public static CleaningManifest load( File exportDirectory, String rulesVersion ) throws IOException {
+		CleaningManifest manifest = new CleaningManifest( exportDirectory, rulesVersion ) ;
+		File file = new File( exportDirectory, MANIFEST_FILE_NAME ) ;
+		if( !file.exists() ) {
+			return manifest ;
+		}
+		BufferedReader reader = new BufferedReader( new InputStreamReader( new FileInputStream( file ), ENCODING ) ) ;
+		try {
+			String line = reader.readLine() ;
+			if( line == null || !line.equals( "# " + rulesVersion ) ) {
+				log.info( "Cleaning manifest was written under different rules and is ignored." ) ;
+				return manifest ;
+			}
+			while( ( line = reader.readLine() ) != null ) {
+				String[] parts = line.split( "\t", 4 ) ;
+				if( parts.length != 4 ) {
+					log.warn( "Malformed line in cleaning manifest ignored: " + line ) ;
+					continue ;
+				}
+				try {
+					manifest.entries.put( parts[3], new Entry( Long.parseLong( parts[0] ), Long.parseLong( parts[1] ), parts[2] ) ) ;
+				}
+				catch( NumberFormatException nfx ) {
+					log.warn( "Malformed line in cleaning manifest ignored: " + line ) ;
+				}
+			}
+		}
+		finally {
+			reader.close() ;
+		}
+		return manifest ;
+	}
+
+	/**
+	 * @param file
+	 * @return true if the file is as it was when last recorded, false otherwise.
+	 * @throws IOException
+	 */
+	public boolean isUnchanged( File file ) throws IOException {
+		String key = keyOf( file ) ;
+		Entry entry = entries.get( key ) ;
+		if( entry == null || entry.size != file.length() ) {
+			return false ;
+		}
+		if( entry.lastModified == file.lastModified() ) {
+			return true ;
+		}
+		//
+		// Touched but possibly not altered...
+		String hash = hashOf( file ) ;
+		if( hash.equals( entry.hash ) ) {
+			entries.put( key, new Entry( entry.size, file.lastModified(), hash ) ) ;
+			return true ;
+		}
+		return false ;
+	}
+
+	/**
+	 * Records the current state of a file that has been dealt with. The hash is supplied by the
+	 * caller, who digested the content as it was scanned or written (see {@link #newDigest()}),
+	 * so the file is not read again here.
+	 *
+	 * @param file
+	 * @param hash the SHA-1 of the file's content, in hex
+	 */
+	public void record( File file, String hash ) {
+		entries.put( keyOf( file ), new Entry( file.length(), file.lastModified(), hash ) ) ;
+	}
+
+	/**
+	 * Saves the manifest into the export directory (overwrites any previous manifest).
+	 * The manifest is written to the side and renamed into place atomically, so a crash
+	 * leaves either the old manifest or the new one.
+	 *
+	 * @throws IOException
+	 */
+	public void save() throws IOException {
+		File file = new File( exportDirectory, MANIFEST_FILE_NAME ) ;
+		File tempFile = new File( exportDirectory, MANIFEST_FILE_NAME + ".tmp" ) ;
+		Writer writer = new BufferedWriter( new OutputStreamWriter( new FileOutputStream( tempFile ), ENCODING ) ) ;
+		try {
+			writer.write( "# " + rulesVersion + "\n" ) ;
+			Iterator<Map.Entry<String,Entry>> it = entries.entrySet().iterator() ;
+			while( it.hasNext() ) {
+				Map.Entry<String,Entry> me = it.next() ;
+				Entry entry = me.getValue() ;
+				writer.write( entry.size + "\t" + entry.lastModified + "\t" + entry.hash + "\t" + me.getKey() + "\n" ) ;
+			}
+		}
+		finally {
+			writer.close() ;
+		}
+		Files.move( tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING ) ;
+	}
+
+	/**
+	 * Files are keyed by their path relative to the export directory (questionnaire/file-name).
+	 */
+	private String keyOf( File file ) {
+		return file.getParentFile().getName() + '/' + file.getName() ;
+	}
+
+	/**
+	 * @return a new digest of the kind the manifest records
+	 */
+	public static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance( "SHA-1" ) ;
+		}
+		catch( NoSuchAlgorithmException nsax ) {
+			throw new IllegalStateException( nsax ) ;
+		}
+	}
+
+	private static String hashOf( File file ) throws IOException {
+		MessageDigest digest = newDigest() ;
+		InputStream in = new BufferedInputStream( new FileInputStream( file ) ) ;
+		try {
+			byte[] buffer = new byte[ 8192 ] ;
+			int n ;
+			while( ( n = in.read( buffer ) ) != -1 ) {
+				digest.update( buffer, 0, n ) ;
+			}
+		}
+		finally {
+			in.close() ;
+		}
+		return toHex( digest.digest() ) ;
+	}
+
+	static String toHex( byte[] bytes ) {
+		StringBuilder b = new StringBuilder( bytes.length * 2 ) ;
+		for( int i=0; i<bytes.length; i++ ) {
+			b.append( Character.forDigit( ( bytes[i] >> 4 ) & 0xF, 16 ) )
+			 .append( Character.forDigit( bytes[i] & 0xF, 16 ) ) ;
+		}
+		return b.toString() ;
+	}
+
+}
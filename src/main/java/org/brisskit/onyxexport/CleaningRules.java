@@ -0,0 +1,192 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+
+/**
+ * The variable renaming rules applied by the <code>OnyxVariablesCleaner</code>.<p/>
+ *
+ * Rules are held in a properties file, one rule per line, keyed by questionnaire and old variable name:
+ * <p><blockquote><pre>
+ *     # questionnaire/old-variable-name = new-variable-name
+ *     RiskFactorQuestionnaire/father_die_age_cat.AGE_FAM.AGE_FAM = father_die_age
+ *     *&#47;some_misnamed_variable = some_variable
+ * </pre></blockquote><p>
+ * A questionnaire of <code>*</code> applies the rule to every questionnaire. Where both apply,
+ * the rule for the named questionnaire wins. <p/>
+ *
+ * The rules are compiled once into a hash map per questionnaire. Each rule set also carries
+ * a version (a digest of its rules) so that work done under one set of rules can be recognised.
+ *
+ * @author jl99
+ *
+ */
+public class CleaningRules {
+
+	public static final String ANY_QUESTIONNAIRE = "*" ;
+
+	/**
+	 * The rules applied when no rules file is supplied.
+	 */
+	public static final String[][] DEFAULT_RULES =
+	{
+		{ "RiskFactorQuestionnaire", "father_die_age_cat.AGE_FAM.AGE_FAM", "father_die_age" }
+	} ;
+
+	private final HashMap<String, Map<String,String>> renamesByQuestionnaire = new HashMap<String, Map<String,String>>() ;
+	private final HashMap<String,String> renamesForAny = new HashMap<String,String>() ;
+	private String version ;
+
+	private CleaningRules() {}
+
+	/**
+	 * @return the rules applied when no rules file is supplied.
+	 */
+	public static CleaningRules defaults() {
+		CleaningRules rules = new CleaningRules() ;
+		for( int i=0; i<DEFAULT_RULES.length; i++ ) {
+			rules.add( DEFAULT_RULES[i][0], DEFAULT_RULES[i][1], DEFAULT_RULES[i][2] ) ;
+		}
+		rules.compile() ;
+		return rules ;
+	}
+
+	/**
+	 * Loads the rules from the given properties file.
+	 *
+	 * @param file
+	 * @return the compiled rules
+	 * @throws IOException if the file cannot be read or contains a malformed rule
+	 */
+	public static CleaningRules load( File file ) throws IOException {
+		Properties props = new Properties() ;
+		InputStream in = new BufferedInputStream( new FileInputStream( file ) ) ;
+		try {
+			props.load( in ) ;
+		}
+		finally {
+			in.close() ;
+		}
+		CleaningRules rules = new CleaningRules() ;
+		Iterator<String> it = props.stringPropertyNames().iterator() ;
+		while( it.hasNext() ) {
+			String key = it.next() ;
+			int slash = key.indexOf( '/' ) ;
+			String newName = props.getProperty( key ).trim() ;
+			if( slash < 1 || slash == key.length()-1 || newName.length() == 0 ) {
+				throw new IOException( "Malformed rule in " + file.getName() + ": [" + key + "]" ) ;
+			}
+			rules.add( key.substring( 0, slash ), key.substring( slash+1 ), newName ) ;
+		}
+		rules.compile() ;
+		return rules ;
+	}
+
+	private void add( String questionnaire, String oldName, String newName ) {
+		if( questionnaire.equals( ANY_QUESTIONNAIRE ) ) {
+			renamesForAny.put( oldName, newName ) ;
+			return ;
+		}
+		Map<String,String> renames = renamesByQuestionnaire.get( questionnaire ) ;
+		if( renames == null ) {
+			renames = new HashMap<String,String>() ;
+			renamesByQuestionnaire.put( questionnaire, renames ) ;
+		}
+		renames.put( oldName, newName ) ;
+	}
+
+	/**
+	 * Folds the rules for any questionnaire into those of each named questionnaire,
+	 * so that a single lookup serves each directory.
+	 */
+	private void compile() {
+		this.version = computeVersion() ;
+		Iterator<Map.Entry<String, Map<String,String>>> it = renamesByQuestionnaire.entrySet().iterator() ;
+		while( it.hasNext() ) {
+			Map.Entry<String, Map<String,String>> entry = it.next() ;
+			HashMap<String,String> renames = new HashMap<String,String>( renamesForAny ) ;
+			renames.putAll( entry.getValue() ) ;
+			entry.setValue( Collections.unmodifiableMap( renames ) ) ;
+		}
+	}
+
+	/**
+	 * The version is a digest of the rules in a canonical order, 
+	 * so it changes whenever any rule changes.
+	 */
+	private String computeVersion() {
+		TreeSet<String> lines = new TreeSet<String>() ;
+		Iterator<Map.Entry<String,String>> it = renamesForAny.entrySet().iterator() ;
+		while( it.hasNext() ) {
+			Map.Entry<String,String> rule = it.next() ;
+			lines.add( ANY_QUESTIONNAIRE + '/' + rule.getKey() + '=' + rule.getValue() ) ;
+		}
+		Iterator<Map.Entry<String, Map<String,String>>> qit = renamesByQuestionnaire.entrySet().iterator() ;
+		while( qit.hasNext() ) {
+			Map.Entry<String, Map<String,String>> entry = qit.next() ;
+			it = entry.getValue().entrySet().iterator() ;
+			while( it.hasNext() ) {
+				Map.Entry<String,String> rule = it.next() ;
+				lines.add( entry.getKey() + '/' + rule.getKey() + '=' + rule.getValue() ) ;
+			}
+		}
+		try {
+			MessageDigest digest = MessageDigest.getInstance( "SHA-1" ) ;
+			Iterator<String> lit = lines.iterator() ;
+			while( lit.hasNext() ) {
+				digest.update( lit.next().getBytes( "UTF-8" ) ) ;
+				digest.update( (byte)'\n' ) ;
+			}
+			return CleaningManifest.toHex( digest.digest() ) ;
+		}
+		catch( NoSuchAlgorithmException nsax ) {
+			throw new IllegalStateException( nsax ) ;
+		}
+		catch( UnsupportedEncodingException uex ) {
+			throw new IllegalStateException( uex ) ;
+		}
+	}
+	
+	/**
+	 * @return the version of this set of rules
+	 */
+	public String getVersion() {
+		return version ;
+	}
+
+	/**
+	 * @param questionnaire
+	 * @return map of old variable name to new variable name for the given questionnaire (possibly empty).
+	 */
+	public Map<String,String> getRenames( String questionnaire ) {
+		Map<String,String> renames = renamesByQuestionnaire.get( questionnaire ) ;
+		if( renames == null ) {
+			return Collections.unmodifiableMap( renamesForAny ) ;
+		}
+		return renames ;
+	}
+
+	/**
+	 * @param questionnaire
+	 * @return true if any rule applies to the given questionnaire, false otherwise.
+	 */
+	public boolean hasRules( String questionnaire ) {
+		return !getRenames( questionnaire ).isEmpty() ;
+	}
+
+}
@@ -0,0 +1,170 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.brisskit.onyxexport.RefinerConfig.EnumDescriptor;
+
+/**
+ * The hints and excludes of the enumerated concepts from the config file, compiled once into
+ * a single Aho-Corasick automaton. One pass over a variable's name (or type) reports every
+ * enumeration having a hint, and every enumeration having an exclude, contained within it:
+ * <p><blockquote><pre>
+ *     &lt;enum name="AGE" first="0" last="119" group="5"&gt;
+ *        &lt;hint&gt;age&lt;/hint&gt;
+ *        &lt;exclude&gt;stage&lt;/exclude&gt;
+ *     &lt;/enum&gt;
+ * </pre></blockquote><p>
+ * This replaces testing each hint and exclude in turn with <code>String.contains()</code>. <p/>
+ *
+ * Enumerations are numbered in the order given to the constructor (the order of the config file),
+ * so the lowest set bit of a result is the first enumeration in that order.
+ *
+ * @author jl99
+ *
+ */
+public class EnumerationMatcher {
+
+	private static final class Node {
+		private final HashMap<Character,Node> next = new HashMap<Character,Node>() ;
+		private Node fail ;
+		private final BitSet hints = new BitSet() ;
+		private final BitSet excludes = new BitSet() ;
+		private boolean output = false ;
+	}
+
+	private final int size ;
+	private final HashMap<String,Integer> indexes = new HashMap<String,Integer>() ;
+	private final Node root = new Node() ;
+
+	/**
+	 * @param enumerations in order of precedence, one per name
+	 */
+	public EnumerationMatcher( List<EnumDescriptor> enumerations ) {
+		this.size = enumerations.size() ;
+		for( int i=0; i<size; i++ ) {
+			EnumDescriptor ed = enumerations.get( i ) ;
+			indexes.put( ed.getName(), i ) ;
+			List<String> hints = ed.getHints() ;
+			for( int j=0; j<hints.size(); j++ ) {
+				add( hints.get( j ) ).hints.set( i ) ;
+			}
+			List<String> excludes = ed.getExcludes() ;
+			for( int j=0; j<excludes.size(); j++ ) {
+				add( excludes.get( j ) ).excludes.set( i ) ;
+			}
+		}
+		link() ;
+	}
+
+	private Node add( String pattern ) {
+		Node node = root ;
+		for( int i=0; i<pattern.length(); i++ ) {
+			Character c = Character.valueOf( pattern.charAt( i ) ) ;
+			Node child = node.next.get( c ) ;
+			if( child == null ) {
+				child = new Node() ;
+				node.next.put( c, child ) ;
+			}
+			node = child ;
+		}
+		node.output = true ;
+		return node ;
+	}
+
+	/**
+	 * Sets the failure links breadth first, merging into each node the results
+	 * of the patterns that end as suffixes of its own.
+	 */
+	private void link() {
+		ArrayDeque<Node> queue = new ArrayDeque<Node>() ;
+		Iterator<Node> it = root.next.values().iterator() ;
+		while( it.hasNext() ) {
+			Node child = it.next() ;
+			child.fail = root ;
+			merge( child, root ) ;
+			queue.add( child ) ;
+		}
+		while( !queue.isEmpty() ) {
+			Node node = queue.poll() ;
+			Iterator<Map.Entry<Character,Node>> eit = node.next.entrySet().iterator() ;
+			while( eit.hasNext() ) {
+				Map.Entry<Character,Node> entry = eit.next() ;
+				Node child = entry.getValue() ;
+				Node f = node.fail ;
+				while( f != root && !f.next.containsKey( entry.getKey() ) ) {
+					f = f.fail ;
+				}
+				Node target = f.next.get( entry.getKey() ) ;
+				child.fail = ( target == null ? root : target ) ;
+				merge( child, child.fail ) ;
+				queue.add( child ) ;
+			}
+		}
+	}
+
+	private static void merge( Node node, Node from ) {
+		if( from.output ) {
+			node.hints.or( from.hints ) ;
+			node.excludes.or( from.excludes ) ;
+			node.output = true ;
+		}
+	}
+
+	/**
+	 * Scans the given string once, adding to the results every enumeration with a hint,
+	 * and every enumeration with an exclude, contained within the string.
+	 *
+	 * @param s
+	 * @param hints enumerations with a hint found in s are set here
+	 * @param excludes enumerations with an exclude found in s are set here
+	 */
+	public void match( String s, BitSet hints, BitSet excludes ) {
+		Node node = root ;
+		//
+		// (An empty pattern is contained within every string)...
+		collect( node, hints, excludes ) ;
+		for( int i=0; i<s.length(); i++ ) {
+			Character c = Character.valueOf( s.charAt( i ) ) ;
+			Node child = node.next.get( c ) ;
+			while( child == null && node != root ) {
+				node = node.fail ;
+				child = node.next.get( c ) ;
+			}
+			node = ( child == null ? root : child ) ;
+			collect( node, hints, excludes ) ;
+		}
+	}
+
+	private static void collect( Node node, BitSet hints, BitSet excludes ) {
+		if( node.output ) {
+			hints.or( node.hints ) ;
+			excludes.or( node.excludes ) ;
+		}
+	}
+
+	/**
+	 * @return the number of enumerations
+	 */
+	public int size() {
+		return size ;
+	}
+
+	/**
+	 * @param name
+	 * @return the number of the named enumeration, or -1 if there is none.
+	 */
+	public int indexOf( String name ) {
+		Integer index = indexes.get( name ) ;
+		return ( index == null ? -1 : index.intValue() ) ;
+	}
+
+}
@@ -0,0 +1,215 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import org.brisskit.export.metadata.config.beans.ExcludeType;
+import org.brisskit.export.metadata.config.beans.FilterType;
+
+/**
+ * A questionnaire filter from the config file, compiled once so that checking a node of the
+ * metadata tree costs the same however many excludes the filter has. <p/>
+ *
+ * Each exclude names a path below the questionnaire (or its alternate name), optionally
+ * qualified by hints, each of which gives one further path segment:
+ * <p><blockquote><pre>
+ *     &lt;filter questionnaire="BloodSamplesCollection"&gt;
+ *        &lt;exclude name="QuestionnaireRun"/&gt;
+ *        &lt;exclude name="RegisteredParticipantTube"&gt;
+ *           &lt;hint&gt;*&lt;/hint&gt;
+ *        &lt;/exclude&gt;
+ *     &lt;/filter&gt;
+ * </pre></blockquote><p>
+ * Names and hints may hold glob wildcards, matched within one path segment: <code>*</code> matches
+ * any run of characters and <code>?</code> any one character. So the hint <code>*</code> above
+ * excludes every child of RegisteredParticipantTube. A filter with no excludes excludes the
+ * whole questionnaire. <p/>
+ *
+ * Excludes without wildcards are held as a set of full paths. Those with wildcards are held as a
+ * trie of path segments, walked one segment at a time as the traversal descends: the states
+ * reached by a node are worked out from those of its parent, see {@link #step(List, String)}.
+ *
+ * @author jl99
+ *
+ */
+public class ExclusionFilter {
+
+	/**
+	 * The states of a node for which no pattern can match.
+	 */
+	public static final List<State> NO_STATES = Collections.emptyList() ;
+
+	/**
+	 * A position within the trie of patterns; opaque outside this class.
+	 */
+	public static final class State {
+		private final HashMap<String,State> literals = new HashMap<String,State>() ;
+		private final ArrayList<String> globs = new ArrayList<String>() ;
+		private final ArrayList<State> globStates = new ArrayList<State>() ;
+		private boolean terminal = false ;
+
+		private State child( String segment ) {
+			if( !isGlob( segment ) ) {
+				State node = literals.get( segment ) ;
+				if( node == null ) {
+					node = new State() ;
+					literals.put( segment, node ) ;
+				}
+				return node ;
+			}
+			int index = globs.indexOf( segment ) ;
+			if( index != -1 ) {
+				return globStates.get( index ) ;
+			}
+			State node = new State() ;
+			globs.add( segment ) ;
+			globStates.add( node ) ;
+			return node ;
+		}
+	}
+
+	private final boolean excludesAll ;
+	private final HashSet<String> excludedPaths = new HashSet<String>() ;
+	private final State patterns = new State() ;
+	private final List<State> startStates ;
+
+	/**
+	 * @param filter
+	 */
+	public ExclusionFilter( FilterType filter ) {
+		this.excludesAll = ( filter.sizeOfExcludeArray() == 0 ) ;
+		ExcludeType[] excludes = filter.getExcludeArray() ;
+		compile( filter.getQuestionnaire(), excludes ) ;
+		if( filter.isSetAlternateName() ) {
+			compile( filter.getAlternateName(), excludes ) ;
+		}
+		boolean hasPatterns = !patterns.literals.isEmpty() || !patterns.globs.isEmpty() ;
+		this.startStates = ( hasPatterns ? Collections.<State>singletonList( patterns ) : NO_STATES ) ;
+	}
+
+	private void compile( String questionnaire, ExcludeType[] excludes ) {
+		for( int i=0; i<excludes.length; i++ ) {
+			if( excludes[i].sizeOfHintArray() == 0 ) {
+				add( questionnaire, excludes[i].getName() ) ;
+			}
+			else {
+				String[] hta = excludes[i].getHintArray() ;
+				for( int j=0; j<hta.length; j++ ) {
+					add( questionnaire, excludes[i].getName() + '/' + hta[j] ) ;
+				}
+			}
+		}
+	}
+
+	private void add( String questionnaire, String path ) {
+		if( !isGlob( path ) ) {
+			excludedPaths.add( questionnaire + '/' + path ) ;
+			return ;
+		}
+		//
+		// The trie begins below the questionnaire (the filter is found by questionnaire name)...
+		State node = patterns ;
+		String[] segments = path.split( "/" ) ;
+		for( int i=0; i<segments.length; i++ ) {
+			node = node.child( segments[i] ) ;
+		}
+		node.terminal = true ;
+	}
+
+	/**
+	 * @return the states of the questionnaire (stage or entity) node itself
+	 */
+	public List<State> startStates() {
+		return startStates ;
+	}
+
+	/**
+	 * Works out the states of a node from those of its parent.
+	 *
+	 * @param parentStates
+	 * @param name the name of the node
+	 * @return the states of the node
+	 */
+	public List<State> step( List<State> parentStates, String name ) {
+		if( parentStates.isEmpty() ) {
+			return NO_STATES ;
+		}
+		ArrayList<State> states = new ArrayList<State>( 2 ) ;
+		for( int i=0; i<parentStates.size(); i++ ) {
+			State node = parentStates.get( i ) ;
+			State literal = node.literals.get( name ) ;
+			if( literal != null ) {
+				states.add( literal ) ;
+			}
+			for( int j=0; j<node.globs.size(); j++ ) {
+				if( globMatches( node.globs.get( j ), name ) ) {
+					states.add( node.globStates.get( j ) ) ;
+				}
+			}
+		}
+		return ( states.isEmpty() ? NO_STATES : states ) ;
+	}
+
+	/**
+	 * @param path the full path of the node, from the questionnaire name down
+	 * @param states the states of the node
+	 * @return true if the node is excluded, false otherwise.
+	 */
+	public boolean excludes( String path, List<State> states ) {
+		if( excludesAll || excludedPaths.contains( path ) ) {
+			return true ;
+		}
+		for( int i=0; i<states.size(); i++ ) {
+			if( states.get( i ).terminal ) {
+				return true ;
+			}
+		}
+		return false ;
+	}
+
+	private static boolean isGlob( String s ) {
+		return s.indexOf( '*' ) != -1 || s.indexOf( '?' ) != -1 ;
+	}
+
+	/**
+	 * Matches a glob within one segment; <code>*</code> matches any run of characters
+	 * (including none) and <code>?</code> any one character.
+	 */
+	static boolean globMatches( String glob, String s ) {
+		if( s == null ) {
+			return false ;
+		}
+		int g = 0 ;
+		int i = 0 ;
+		int star = -1 ;
+		int mark = 0 ;
+		while( i < s.length() ) {
+			if( g < glob.length() && ( glob.charAt( g ) == '?' || glob.charAt( g ) == s.charAt( i ) ) ) {
+				g++ ;
+				i++ ;
+			}
+			else if( g < glob.length() && glob.charAt( g ) == '*' ) {
+				star = g++ ;
+				mark = i ;
+			}
+			else if( star != -1 ) {
+				g = star + 1 ;
+				i = ++mark ;
+			}
+			else {
+				return false ;
+			}
+		}
+		while( g < glob.length() && glob.charAt( g ) == '*' ) {
+			g++ ;
+		}
+		return g == glob.length() ;
+	}
+
+}
@@ -0,0 +1,124 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.regex.Pattern;
+
+/**
+ * Lazily walks the directories of an Onyx export (and of the metadata produced from one).
+ * Entries are streamed from the file system one at a time through a <code>DirectoryStream</code>,
+ * so a directory holding hundreds of thousands of participant files is never materialized
+ * as an array. <p/>
+ *
+ * Hidden entries and those beginning with a dot are always bypassed
+ * (useful in development when .svn directories can get in the way). <p/>
+ *
+ * Each stream returned must be closed by the caller.
+ *
+ * @author jl99
+ *
+ */
+public class ExportDirectoryScanner {
+
+	public static final String VARIABLES_FILE_NAME = "variables.xml" ;
+	public static final String ENTITIES_FILE_NAME = "entities.xml" ;
+
+	/**
+	 * The format of the name of a participant data file is nnnnnnn.xml
+	 */
+	public static final Pattern PARTICIPANT_FILE_PATTERN = Pattern.compile( "\\d+\\.xml" ) ;
+
+	private static final DirectoryStream.Filter<Path> DIRECTORIES = new DirectoryStream.Filter<Path>() {
+		public boolean accept( Path entry ) throws IOException {
+			return isVisible( entry ) && Files.isDirectory( entry ) ;
+		}
+	} ;
+
+	private static final DirectoryStream.Filter<Path> FILES = new DirectoryStream.Filter<Path>() {
+		public boolean accept( Path entry ) throws IOException {
+			return isVisible( entry ) && !Files.isDirectory( entry ) ;
+		}
+	} ;
+
+	private static final DirectoryStream.Filter<Path> PARTICIPANT_FILES = new DirectoryStream.Filter<Path>() {
+		public boolean accept( Path entry ) throws IOException {
+			return isParticipantFile( entry.getFileName().toString() ) && Files.isRegularFile( entry ) ;
+		}
+	} ;
+
+	private ExportDirectoryScanner() {}
+
+	/**
+	 * @param exportDirectory
+	 * @return stream of the questionnaire directories within an export directory.
+	 * @throws IOException
+	 */
+	public static DirectoryStream<Path> questionnaireDirectories( File exportDirectory ) throws IOException {
+		return Files.newDirectoryStream( exportDirectory.toPath(), DIRECTORIES ) ;
+	}
+
+	/**
+	 * @param questionnaireDirectory
+	 * @return stream of the participant data files within a questionnaire directory.
+	 * @throws IOException
+	 */
+	public static DirectoryStream<Path> participantFiles( File questionnaireDirectory ) throws IOException {
+		return Files.newDirectoryStream( questionnaireDirectory.toPath(), PARTICIPANT_FILES ) ;
+	}
+
+	/**
+	 * @param directory
+	 * @return stream of the (non-directory) files within a directory; eg: the metadata files
+	 *         produced by <code>OnyxVariables2Metadata</code>.
+	 * @throws IOException
+	 */
+	public static DirectoryStream<Path> files( File directory ) throws IOException {
+		return Files.newDirectoryStream( directory.toPath(), FILES ) ;
+	}
+
+	/**
+	 * @param directory
+	 * @param glob
+	 * @return stream of the entries within a directory matching the glob, hidden or not.
+	 * @throws IOException
+	 */
+	public static DirectoryStream<Path> matching( File directory, String glob ) throws IOException {
+		return Files.newDirectoryStream( directory.toPath(), glob ) ;
+	}
+
+	/**
+	 * Checks for emptiness by reading at most one entry.
+	 *
+	 * @param directory
+	 * @return true if the directory has no entries at all, false otherwise.
+	 * @throws IOException
+	 */
+	public static boolean isEmpty( File directory ) throws IOException {
+		DirectoryStream<Path> stream = Files.newDirectoryStream( directory.toPath() ) ;
+		try {
+			return !stream.iterator().hasNext() ;
+		}
+		finally {
+			stream.close() ;
+		}
+	}
+
+	/**
+	 * @param fileName
+	 * @return true if the name is that of a participant data file, false otherwise.
+	 */
+	public static boolean isParticipantFile( String fileName ) {
+		return PARTICIPANT_FILE_PATTERN.matcher( fileName ).matches() ;
+	}
+
+	private static boolean isVisible( Path entry ) throws IOException {
+		return !entry.getFileName().toString().startsWith( "." ) && !Files.isHidden( entry ) ;
+	}
+
+}
@@ -0,0 +1,176 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Reads an Onyx export held as a zip file, one entry at a time, without extracting it to disk.
+ * The entries are expected to mirror the exported directory tree:
+ * <p><blockquote><pre>
+ *     [optional-root-folder/]questionnaire/variables.xml
+ *     [optional-root-folder/]questionnaire/entities.xml
+ *     [optional-root-folder/]questionnaire/nnnnnnn.xml
+ * </pre></blockquote><p>
+ * Directory entries and hidden entries (any part of whose path begins with a dot) are bypassed
+ * by {@link #nextEntry()}; {@link #nextRawEntry()} returns them too, for copying the zip as a whole.
+ * Any variable aliases held alongside a questionnaire's variables file are found by {@link #getAliases()}.
+ *
+ * @author jl99
+ *
+ */
+public class ExportZipReader implements Closeable {
+
+	public static final String ZIP_SUFFIX = ".zip" ;
+
+	private final File zipFile ;
+	private final ZipInputStream zin ;
+	private final InputStream entryStream ;
+	private ZipEntry entry ;
+	private String questionnaire ;
+	private String fileName ;
+	//
+	// Opened only if aliases are looked up (the entries are otherwise read in order)...
+	private ZipFile directory ;
+
+	/**
+	 * @param zipFile
+	 * @throws IOException
+	 */
+	public ExportZipReader( File zipFile ) throws IOException {
+		this.zipFile = zipFile ;
+		this.zin = new ZipInputStream( new BufferedInputStream( new FileInputStream( zipFile ) ) ) ;
+		//
+		// Parsers tend to close what they are given; the zip must stay open for the next entry...
+		this.entryStream = new FilterInputStream( zin ) {
+			public void close() {}
+		} ;
+	}
+
+	/**
+	 * @param file
+	 * @return true if the given file is an export held as a zip, false otherwise.
+	 */
+	public static boolean isZip( File file ) {
+		return file.isFile() && file.getName().toLowerCase().endsWith( ZIP_SUFFIX ) ;
+	}
+
+	/**
+	 * Advances to the next file entry.
+	 *
+	 * @return the entry, or null at the end of the zip.
+	 * @throws IOException
+	 */
+	public ZipEntry nextEntry() throws IOException {
+		while( nextRawEntry() != null ) {
+			if( fileName != null ) {
+				return entry ;
+			}
+		}
+		return null ;
+	}
+
+	/**
+	 * Advances to the next entry of any kind, including directories and hidden entries.
+	 * For those, there is no questionnaire or file name, so they are never taken for
+	 * a variables or participant file.
+	 *
+	 * @return the entry, or null at the end of the zip.
+	 * @throws IOException
+	 */
+	public ZipEntry nextRawEntry() throws IOException {
+		questionnaire = null ;
+		fileName = null ;
+		entry = zin.getNextEntry() ;
+		if( entry != null && !entry.isDirectory() && !isHidden( entry.getName() ) ) {
+			String[] parts = entry.getName().split( "/" ) ;
+			fileName = parts[ parts.length-1 ] ;
+			questionnaire = ( parts.length > 1 ? parts[ parts.length-2 ] : null ) ;
+		}
+		return entry ;
+	}
+
+	/**
+	 * @return the current entry's content. Closing it does not close the zip.
+	 */
+	public InputStream getInputStream() {
+		return entryStream ;
+	}
+
+	public ZipEntry getEntry() {
+		return entry ;
+	}
+
+	/**
+	 * @return the name of the directory holding the current entry, or null for a top level entry.
+	 */
+	public String getQuestionnaire() {
+		return questionnaire ;
+	}
+
+	public String getFileName() {
+		return fileName ;
+	}
+
+	public boolean isVariablesFile() {
+		return questionnaire != null && fileName.equals( ExportDirectoryScanner.VARIABLES_FILE_NAME ) ;
+	}
+
+	public boolean isParticipantFile() {
+		return questionnaire != null && ExportDirectoryScanner.isParticipantFile( fileName ) ;
+	}
+
+	/**
+	 * The aliases file need not come before the variables file within the zip,
+	 * so it is looked up directly rather than read in turn.
+	 *
+	 * @return the variable aliases held alongside the current entry, which are empty if there are none.
+	 * @throws IOException
+	 */
+	public VariableAliases getAliases() throws IOException {
+		if( questionnaire == null ) {
+			return new VariableAliases() ;
+		}
+		if( directory == null ) {
+			directory = new ZipFile( zipFile ) ;
+		}
+		String entryName = entry.getName() ;
+		ZipEntry aliasesEntry = directory.getEntry( entryName.substring( 0, entryName.length() - fileName.length() ) + VariableAliases.FILE_NAME ) ;
+		if( aliasesEntry == null ) {
+			return new VariableAliases() ;
+		}
+		InputStream in = new BufferedInputStream( directory.getInputStream( aliasesEntry ) ) ;
+		try {
+			return VariableAliases.load( in ) ;
+		}
+		finally {
+			in.close() ;
+		}
+	}
+
+	public void close() throws IOException {
+		try {
+			zin.close() ;
+		}
+		finally {
+			if( directory != null ) {
+				directory.close() ;
+			}
+		}
+	}
+
+	private static boolean isHidden( String entryName ) {
+		return entryName.startsWith( "." ) || entryName.contains( "/." ) ;
+	}
+
+}
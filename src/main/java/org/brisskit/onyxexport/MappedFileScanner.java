@@ -0,0 +1,120 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.Iterator;
+
+/**
+ * A quick, read-only scan over the raw bytes of a file for any one of a set of strings,
+ * used to decide whether a file needs parsing at all. The file is memory-mapped rather
+ * than read through a stream, and no XML parsing takes place.<p/>
+ *
+ * The strings are searched for in their UTF-8 form, which suits Onyx export files.
+ * A file too large to map in one go is reported as a match, so it still gets processed.
+ *
+ * @author jl99
+ *
+ */
+public class MappedFileScanner {
+
+	private final byte[][] patterns ;
+
+	/**
+	 * @param strings the strings to search for
+	 */
+	public MappedFileScanner( Collection<String> strings ) {
+		this.patterns = new byte[ strings.size() ][] ;
+		Iterator<String> it = strings.iterator() ;
+		for( int i=0; it.hasNext(); i++ ) {
+			try {
+				this.patterns[i] = it.next().getBytes( "UTF-8" ) ;
+			}
+			catch( UnsupportedEncodingException uex ) {
+				throw new IllegalStateException( uex ) ;
+			}
+		}
+	}
+
+	/**
+	 * @param file
+	 * @return true if the file contains at least one of the strings, false otherwise.
+	 * @throws IOException
+	 */
+	public boolean containsAny( File file ) throws IOException {
+		return containsAny( file, null ) ;
+	}
+
+	/**
+	 * As {@link #containsAny(File)}, but if none of the strings is found the whole of the
+	 * mapped file is also fed to the given digest, so the caller has its hash without reading it again.
+	 *
+	 * @param file
+	 * @param digest may be null
+	 * @return true if the file contains at least one of the strings, false otherwise.
+	 * @throws IOException
+	 */
+	public boolean containsAny( File file, MessageDigest digest ) throws IOException {
+		FileInputStream fis = new FileInputStream( file ) ;
+		try {
+			FileChannel channel = fis.getChannel() ;
+			long size = channel.size() ;
+			if( size > Integer.MAX_VALUE ) {
+				return true ;
+			}
+			MappedByteBuffer buffer = channel.map( FileChannel.MapMode.READ_ONLY, 0, size ) ;
+			if( containsAny( buffer, (int)size ) ) {
+				return true ;
+			}
+			if( digest != null ) {
+				digest.update( buffer ) ;
+			}
+			return false ;
+		}
+		finally {
+			fis.close() ;
+		}
+	}
+
+	/**
+	 * @param bytes
+	 * @param length the number of bytes in use
+	 * @return true if the bytes contain at least one of the strings, false otherwise.
+	 */
+	public boolean containsAny( byte[] bytes, int length ) {
+		return containsAny( ByteBuffer.wrap( bytes, 0, length ), length ) ;
+	}
+
+	private boolean containsAny( ByteBuffer buffer, int size ) {
+		for( int i=0; i<size; i++ ) {
+			byte b = buffer.get( i ) ;
+			for( int p=0; p<patterns.length; p++ ) {
+				byte[] pattern = patterns[p] ;
+				if( pattern.length == 0 ) {
+					return true ;
+				}
+				if( pattern[0] != b || i + pattern.length > size ) {
+					continue ;
+				}
+				int j = 1 ;
+				while( j < pattern.length && buffer.get( i+j ) == pattern[j] ) {
+					j++ ;
+				}
+				if( j == pattern.length ) {
+					return true ;
+				}
+			}
+		}
+		return false ;
+	}
+
+}
@@ -5,18 +5,17 @@ package org.brisskit.onyxexport;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayDeque;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Deque;
-import java.util.HashMap;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
-import java.util.Set;
+import java.util.List;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.xmlbeans.XmlCursor;
 import org.apache.xmlbeans.XmlObject;
 import org.apache.xmlbeans.XmlOptions;
 
@@ -30,7 +29,6 @@ import org.brisskit.onyxmetadata.stageone.beans.SourceDocument;
 import org.brisskit.onyxmetadata.stageone.beans.SourceType;
 import org.brisskit.onyxmetadata.stageone.beans.StageType;
 import org.brisskit.onyxmetadata.stageone.beans.VariableType;
-import org.brisskit.onyxmetadata.stagetwo.beans.Container;
 import org.brisskit.onyxmetadata.stagetwo.beans.ContainerDocument;
 import org.brisskit.onyxmetadata.stagetwo.beans.Folder;
 import org.brisskit.onyxmetadata.stagetwo.beans.Type;
@@ -96,6 +94,8 @@ public class MetadataRefiner {
 	 *        (4) The config file must exist.
 	 *        (5) The refine and enum paths must not exist.
      *        (6) Suggested refined metadata file name: Refined-Metadata.xml.
+     *        (7) Input files may be xml or the binary form written by OnyxVariables2Metadata;
+     *            the form is detected file by file.
      * </pre></blockquote><p> 
 	 */
 	private static final String USAGE =
@@ -112,7 +112,9 @@ public class MetadataRefiner {
         " (3) The input path must exist.\n" +
         " (4) The config file must exist.\n" +
         " (5) The refine and enum paths must not exist.\n" +
-        " (6) Suggested refined metadata file name: Refined-Metadata.xml." ;
+        " (6) Suggested refined metadata file name: Refined-Metadata.xml.\n" +
+        " (7) Input files may be xml or the binary form written by OnyxVariables2Metadata;\n" +
+        "     the form is detected file by file." ;
 	
 	public static final String[] ONYX_CONTINUOUS_TYPES = 
 	{ "DATETIME", "DECIMAL", "INTEGER", "TEXT" } ;
@@ -137,7 +139,6 @@ public class MetadataRefiner {
     private String mainFileName = null ;
     
     private File inputDirectory ;
-	String[] fileNames ;
 	File outputDirectory ;
 	
 	protected OnyxExportConfigDocument configDoc ;
@@ -147,22 +148,55 @@ public class MetadataRefiner {
 	
 	private IExport2Ontology userDefinedProcess ;
 	
-	private LinkedHashMap<String,EnumType> enumerations ;
-	private String[] standardBooleans ;
-	private CodeType[] ethnicCodes ;
-	private String ethnicityVariableName ;
-	private HashMap<String, FilterType> questionnaireFilters ;
+	//
+	// The config file compiled for processing (immutable)...
+	private RefinerConfig config ;
 	
 	/**
+	 * The child variables of one variable within a question, formed once when that variable 
+	 * is processed and passed explicitly to the processing of each child. Standard booleans
+	 * and the standard comment are left out. Immutable: once the group has been discriminated 
+	 * (see {@link MetadataRefiner#discriminateSiblings(Folder, TraversalContext, SiblingGroup)}) 
+	 * the remaining children are given a copy marked as such.
+	 * 
 	 * @author jl99
 	 *
 	 */
-	private class SiblingHolder {
-		public boolean processed = false ;
-		public VariableType parent ;
-		public ArrayList<VariableType> siblingList = new ArrayList<VariableType>() ;
+	private static final class SiblingGroup {
+		
+		static final SiblingGroup EMPTY = new SiblingGroup( new ArrayList<VariableType>(), false, false ) ;
+		
+		//
+		// The siblings, and those same siblings without the OPEN question booleans...
+		final List<VariableType> siblings ;
+		final List<VariableType> valueSiblings ;
+		final boolean openQuestion ;
+		final boolean discriminated ;
+		
+		SiblingGroup( ArrayList<VariableType> siblings, boolean openQuestion, boolean discriminated ) {
+			ArrayList<VariableType> valueSiblings = new ArrayList<VariableType>( siblings.size() ) ;
+			for( int i=0; i<siblings.size(); i++ ) {
+				if( !siblings.get( i ).getType().equalsIgnoreCase( "boolean" ) ) {
+					valueSiblings.add( siblings.get( i ) ) ;
+				}
+			}
+			this.siblings = Collections.unmodifiableList( siblings ) ;
+			this.valueSiblings = Collections.unmodifiableList( valueSiblings ) ;
+			this.openQuestion = openQuestion ;
+			this.discriminated = discriminated ;
+		}
+		
+		private SiblingGroup( SiblingGroup group ) {
+			this.siblings = group.siblings ;
+			this.valueSiblings = group.valueSiblings ;
+			this.openQuestion = group.openQuestion ;
+			this.discriminated = true ;
+		}
+		
+		SiblingGroup markDiscriminated() {
+			return ( discriminated ? this : new SiblingGroup( this ) ) ;
+		}
 	}
-	private SiblingHolder siblingHolder = new SiblingHolder() ;
 	
 	private HashSet<String> codeContainer = new HashSet<String>() ;
 	
@@ -233,13 +267,18 @@ public class MetadataRefiner {
 	
 	public void processInputDirectory() throws Exception {
 		
-		for( int i=0; i<fileNames.length; i++ ) {
-			File file = new File( inputDirectory, fileNames[i] ) ;
-			if( file.isHidden() || file.isDirectory() ) {
-				continue ;
+		//
+		// The scanner bypasses hidden files and directories...
+		DirectoryStream<Path> files = ExportDirectoryScanner.files( inputDirectory ) ;
+		try {
+			for( Path path : files ) {
+				File file = path.toFile() ;
+				log.info( "MetadataRefiner processing: " + file.getAbsolutePath() ) ;
+				processFile( file ) ;
 			}
-			log.info( "MetadataRefiner processing: " + file.getAbsolutePath() ) ;
-			processFile( file ) ;
+		}
+		finally {
+			files.close() ;
 		}
 
 		//
@@ -260,8 +299,13 @@ public class MetadataRefiner {
 		if( log.isTraceEnabled() ) enterTrace( "processFile" ) ;
 		try {
 			//
-			// Parse the in-file into XmlBeans...
-			currentSourceDoc = SourceDocument.Factory.parse( file ) ;
+			// Load the in-file into XmlBeans (it may be in OnyxVariables2Metadata's binary form)...
+			if( BinaryMetadataCodec.isBinary( file ) ) {
+				currentSourceDoc = BinaryMetadataCodec.loadSource( file ) ;
+			}
+			else {
+				currentSourceDoc = SourceDocument.Factory.parse( file ) ;
+			}
 			SourceType source = currentSourceDoc.getSource() ;
 			//
 			// Get the entity or stage name as represented by the file name...
@@ -301,14 +345,19 @@ public class MetadataRefiner {
 				return ;
 			}
 			
-			if( !isIncluded( entity ) )
+			TraversalContext context = TraversalContext.newInstance( entity.getName(),
+					                                                 true,
+					                                                 containerDoc.getContainer().getName(),
+					                                                 this.config.getFilter( entity.getName() ) ) ;
+			if( !context.isIncluded() )
 				return ;
 			
 			Folder folder = containerDoc.getContainer().addNewFolder() ;
 			folder.setName( name ) ;
+			context = context.folder( name ) ;
 			VariableType[] vta = entity.getVariableArray() ;
 			for( int i=0; i<vta.length; i++ ) {
-				processVariable( vta[i], folder, false ) ;
+				processVariable( vta[i], folder, context, null, false ) ;
 			}
 		}
 		finally {
@@ -357,21 +406,26 @@ public class MetadataRefiner {
 				return ;
 			}
 			
-			if( !isIncluded( stage ) )
+			TraversalContext context = TraversalContext.newInstance( stage.getName(),
+					                                                 false,
+					                                                 containerDoc.getContainer().getName(),
+					                                                 this.config.getFilter( stage.getName() ) ) ;
+			if( !context.isIncluded() )
 				return ;
 				
 			Folder folder = containerDoc.getContainer().addNewFolder() ;
 			folder.setName( name ) ;
+			context = context.folder( name ) ;
 			if( stage.sizeOfSectionArray() > 0 ) {
 				SectionType[] sta = stage.getSectionArray() ;
 				for( int i=0; i<sta.length; i++ ) {
-					processSection( sta[i], folder ) ;
+					processSection( sta[i], folder, context ) ;
 				}
 			}
 			if( stage.sizeOfVariableArray() > 0 ) {
 				VariableType[] vta = stage.getVariableArray() ;
 				for( int i=0; i<vta.length; i++ ) {
-					processVariable( vta[i], folder, false ) ;
+					processVariable( vta[i], folder, context, null, false ) ;
 				}
 			}
 		}
@@ -387,9 +441,10 @@ public class MetadataRefiner {
 	 * 
 	 * @param section
 	 * @param parentFolder
+	 * @param parentContext
 	 * @throws IOException
 	 */
-	private void processSection( SectionType section, Folder parentFolder ) throws IOException {
+	private void processSection( SectionType section, Folder parentFolder, TraversalContext parentContext ) throws IOException {
 		if( log.isTraceEnabled() ) enterTrace( "processSection" ) ;
 		try {
 			//
@@ -399,14 +454,16 @@ public class MetadataRefiner {
 				return ;
 			}
 			
-			if( !isIncluded( section ) ) 
+			TraversalContext context = parentContext.child( section.getName(), false ) ;
+			if( !context.isIncluded() ) 
 				return ;
 			
 			Folder folder = parentFolder.addNewFolder() ;
 			folder.setName( section.getName() ) ;
+			context = context.folder( section.getName() ) ;
 			QuestionType[] qta = section.getQuestionArray() ;
 			for( int i=0; i<qta.length; i++ ) {
-				processQuestion( qta[i], folder ) ;
+				processQuestion( qta[i], folder, context ) ;
 			}
 			
 		}
@@ -415,92 +472,6 @@ public class MetadataRefiner {
 		}
 	}
 	
-	private boolean isIncluded( XmlObject target ) {
-		//
-		// We include by default...
-		boolean retCode = true ;
-		//
-		// First build a collection of path parts for this object...	
-		Deque<String> pathParts = new ArrayDeque<String>() ;
-	
-		XmlCursor cursor = target.newCursor() ;	
-		try {
-			pathParts.push( getName(target) ) ;
-			while( cursor.toParent() ) {
-				XmlObject xo = cursor.getObject() ;
-				if( xo instanceof SourceDocument == false ) {
-					pathParts.push( getName( xo ) ) ;
-				}			
-			} ;
-			//
-			// We don't need the root of the tree...
-			pathParts.pop();
-		}
-		finally {
-			//
-			// Make sure we recover cursor resources...
-			cursor.dispose() ;
-		}
-		
-		if( pathParts.peek().contains( "Participant" ) ) {
-			log.debug( pathParts.peek() ) ;
-		}
-			
-		//
-		// We only need to check if the config file had something relevant...
-		if( this.questionnaireFilters.containsKey( pathParts.peek() ) ) {			
-			//
-			// Build the relevant path...
-			StringBuilder b = new StringBuilder() ;
-			Iterator<String> i = pathParts.iterator() ;
-			b.append( i.next() ) ;
-			while( i.hasNext() ) {
-				b.append( '/' ) 
-				 .append( i.next() ) ;			 
-			}
-			String currentPath = b.toString() ;
-			//
-			// Does the config contain excludes...
-			FilterType qt = this.questionnaireFilters.get( pathParts.peek() ) ;
-			if( qt.sizeOfExcludeArray() == 0 ) {
-				//
-				// This looks like the edge case where a whole stage or entity is excluded...
-				retCode = false ;
-			}
-			else {
-				retCode = !currentPathExcluded( currentPath, qt.getQuestionnaire(), qt.getExcludeArray() ) ;
-				if( retCode == true && qt.isSetAlternateName() ) {
-					retCode = !currentPathExcluded( currentPath, qt.getAlternateName(), qt.getExcludeArray() ) ;
-				}
-			}
-		}		
-		return retCode ;		
-	}
-	
-	private boolean currentPathExcluded( String currentPath, String questionnaire, ExcludeType[] excludePaths ) {
-		if( currentPath.contains( "pat_email" ) ) {
-			log.debug( "pat_email" ) ;
-		}
-		
-		for( int i=0; i<excludePaths.length; i++ ) {
-			if( excludePaths[i].sizeOfHintArray() == 0 ) {
-				if( currentPath.equals( questionnaire + '/' + excludePaths[i].getName() ) ) {
-					return true ;
-				}
-			}
-			else {
-				String[] hta = excludePaths[i].getHintArray() ;
-				for( int j=0; j<hta.length; j++ ) {
-					if( currentPath.equals( questionnaire + '/' + excludePaths[i].getName() + '/' + hta[j] ) ) {
-						return true ;
-					}
-				} // end inner for loop
-			}
-			
-		} // end outer for loop	
-		return false ;
-	}
-	
 	/**
 	 * Manages the processing of questions.<br/>
 	 * The following get ignored:
@@ -525,9 +496,10 @@ public class MetadataRefiner {
      * <p>    
 	 * @param question
 	 * @param parentFolder
+	 * @param parentContext
 	 * @throws IOException
 	 */
-	private void processQuestion( QuestionType question, Folder parentFolder ) throws IOException {
+	private void processQuestion( QuestionType question, Folder parentFolder, TraversalContext parentContext ) throws IOException {
 		if( log.isTraceEnabled() ) enterTrace( "processQuestion( QuestionType, Folder )" ) ;
 		try {
 			//
@@ -537,7 +509,8 @@ public class MetadataRefiner {
 				return ;
 			}
 			
-			if( !isIncluded( question ) )
+			TraversalContext context = parentContext.child( question.getName(), true ) ;
+			if( !context.isIncluded() )
 				return ;
 			
 			if( isInformationOnly( question ) ) {
@@ -549,22 +522,23 @@ public class MetadataRefiner {
 			folder.setName( question.getName() ) ;
 			if( question.getLabel() != null) {
 				folder.setDescription( question.getLabel() ) ;
-			}				
+			}
+			context = context.folder( question.getName() ) ;
 			if( question.sizeOfQuestionArray() > 0 ) {
 				QuestionType[] qta = question.getQuestionArray() ;
 				for( int i=0; i<qta.length; i++ ) {
-					processQuestion( qta[i], folder ) ;
+					processQuestion( qta[i], folder, context ) ;
 				}
 			}
 			else if( question.sizeOfVariableArray() > 1 ) {
 				VariableType[] vta = question.getVariableArray() ;
 				for( int i=0; i<vta.length; i++ ) {
-					processVariable( vta[i], folder, false ) ;
+					processVariable( vta[i], folder, context, null, false ) ;
 				}
 			}
 			else {
 				boolean collapsible = isCollapsible( question ) ;
-				processVariable( question.getVariableArray( 0 ), folder, collapsible ) ;	
+				processVariable( question.getVariableArray( 0 ), folder, context, null, collapsible ) ;	
 			}
 		
 		}
@@ -643,23 +617,31 @@ public class MetadataRefiner {
 	 * 
 	 * @param variable
 	 * @param parentFolder
+	 * @param parentContext
+	 * @param siblings The variable's sibling group, or null if its parent is not a variable within a question
 	 * @param collapsible Whether the question/variable is considered collapsible
 	 *                    See section <a href="MetadataRefiner.html#isCollapsible">isCollapsible</a>
+	 * @return true if processing this variable discriminated its sibling group, false otherwise.
 	 * @throws IOException
 	 */
-	private void processVariable( VariableType variable, Folder parentFolder, boolean collapsible ) throws IOException {
+	private boolean processVariable( VariableType variable, 
+			                         Folder parentFolder, 
+			                         TraversalContext parentContext, 
+			                         SiblingGroup siblings,
+			                         boolean collapsible ) throws IOException {
 		if( log.isTraceEnabled() ) enterTrace( "processVariable( VariableType, Folder, collapsible )" ) ;
 		Folder f = parentFolder ;
+		TraversalContext context = parentContext.child( variable.getName(), false ) ;
 		try {
 			//
 			// Let any user defined function have first crack...
 			if( isUserExcluded( variable ) ) {
 				log.warn( "Variable excluded by user defined function: " + variable.getName() ) ;
-				return ;
+				return false ;
 			}
 			
-			if( !isIncluded( variable ) ) 
-				return ;
+			if( !context.isIncluded() ) 
+				return false ;
 			
 			if( variable.sizeOfVariableArray() > 0 ) {
 				if( !collapsible ) {
@@ -667,11 +649,17 @@ public class MetadataRefiner {
 					f.setName( variable.getName() ) ;
 					if( variable.getLabel() != null ) {
 						f.setDescription( variable.getLabel() ) ;
-					}					
+					}
+					context = context.folder( variable.getName() ) ;
 				}	
+				//
+				// Within a question, the children form a sibling group...
+				SiblingGroup group = ( context.isQuestionRelated() ? formSiblingGroup( variable ) : null ) ;
 				VariableType[] vta = variable.getVariableArray() ;
 				for( int i=0; i<vta.length; i++ ) {
-					processVariable( vta[i], f, false ) ;
+					if( processVariable( vta[i], f, context, group, false ) ) {
+						group = group.markDiscriminated() ;
+					}
 				}
 			}
 			else if( variable.sizeOfRestrictionArray() > 0 ) {
@@ -686,14 +674,15 @@ public class MetadataRefiner {
 				for( int i=0; i<rta.length; i++ ) {
 					//
 					// This is an array of bottom leaf enumerations
-					processRestriction( rta[i], f ) ;
+					processRestriction( rta[i], f, context.child( null, false ) ) ;
 				}
 			}
 			else {
 				//
 				// This is a bottom leaf...
-				processVariable( variable, f ) ;
+				return processVariable( variable, f, context, siblings ) ;
 			}
+			return false ;
 		}
 		finally {
 			if( log.isTraceEnabled() ) exitTrace( "processVariable( VariableType, Folder, collapsible )" ) ;
@@ -709,8 +698,9 @@ public class MetadataRefiner {
 	 * 
 	 * @param restriction
 	 * @param parentFolder
+	 * @param context the restriction's own context
 	 */
-	private void processRestriction( RestrictionType restriction, Folder parentFolder ) {
+	private void processRestriction( RestrictionType restriction, Folder parentFolder, TraversalContext context ) {
 		if( log.isTraceEnabled() ) enterTrace( "processRestriction( RestrictionType, Folder )" ) ;
 		try {	
 			String[] ena = restriction.getEnumArray() ;
@@ -718,7 +708,7 @@ public class MetadataRefiner {
 				Variable v = parentFolder.addNewVariable() ;
 				v.setName( ena[i] ) ;
 				v.setType( Type.BOOLEAN ) ;
-				v.setCode( formCode( restriction, v.getName(), Type.BOOLEAN ) ) ; 
+				v.setCode( formCode( context, v.getName(), Type.BOOLEAN ) ) ; 
 			}
 		}
 		finally {
@@ -737,43 +727,50 @@ public class MetadataRefiner {
 	 * Question-related variables can be complicated by the existence of sibling variables
 	 * with differing characteristics. As examples of sibling variables, "Don't Know" and 
 	 * "Prefer Not To Answer" are instances, but these are simple examples. Question-related
-	 * variables possessing siblings are processed separately.<br/>
+	 * variables possessing siblings (that is, held within a variable) are processed separately.<br/>
 	 * Anything else is a sponge category of sorts and is a simple leaf on the ontology tree,
 	 * and is processed accordingly.
 	 * 
 	 * @param variable
 	 * @param parentFolder
+	 * @param context the variable's own context
+	 * @param siblings the variable's sibling group, or null if it has none
+	 * @return true if processing this variable discriminated its sibling group, false otherwise.
 	 * @throws IOException
 	 */
-	private void processVariable( VariableType variable, Folder parentFolder ) throws IOException {
+	private boolean processVariable( VariableType variable, Folder parentFolder, TraversalContext context, SiblingGroup siblings ) throws IOException {
 		if( log.isTraceEnabled() ) enterTrace( "processVariable( VariableType, Folder )" ) ;
 		try {
 			//
 			// Let any user defined function have first crack...
 			if( isUserExcluded( variable ) ) {
 				log.warn( "Variable excluded by user defined function: " + variable.getName() ) ;
-				return ;
+				return false ;
 			}
 			
-			if( !isIncluded( variable ) )
-				return ;
+			if( !context.isIncluded() )
+				return false ;
 			
-			if( isEntityRelated( variable ) ) {
-				processParticipantVariables( variable, parentFolder ) ;
+			if( context.isEntityRelated() ) {
+				if( log.isDebugEnabled() ) {
+					log.debug( "Entity related: " + variable.getName() ) ;
+				}
+				processParticipantVariables( variable, parentFolder, context ) ;
 			}
-			else if( isQuestionRelated( variable ) && hasSiblingVariables( variable ) ) {
-				processVariableHavingSiblings( variable, parentFolder ) ;					
+			else if( context.isQuestionRelated() && siblings != null ) {
+				return processVariableHavingSiblings( variable, parentFolder, context, siblings ) ;					
 			}
 			else {
 				Variable v = parentFolder.addNewVariable() ;
 				v.setName( variable.getName() ) ;				
 //				v.setType( Type.Enum.forString( variable.getType().toUpperCase() ) ) ;
 				setType( v, variable ) ;
-				v.setCode( formCode( variable, v.getName(), v.getType() ) ) ; 
+				v.setCode( formCode( context, v.getName(), v.getType() ) ) ; 
 				if( variable.getLabel() != null ) {
 					v.setDescription( formDescription( variable, parentFolder ) ) ;
 				}
 			}
+			return false ;
 		}
 		finally {
 			if( log.isTraceEnabled() ) exitTrace( "processVariable( VariableType, Folder )" ) ;
@@ -813,9 +810,10 @@ public class MetadataRefiner {
 	 * 
 	 * @param variable
 	 * @param parentFolder
+	 * @param context the variable's own context
 	 * @throws IOException
 	 */
-	private void processParticipantVariables( VariableType variable, Folder parentFolder ) throws IOException {
+	private void processParticipantVariables( VariableType variable, Folder parentFolder, TraversalContext context ) throws IOException {
 		if( log.isTraceEnabled() ) enterTrace( "processParticipantVariables( VariableType, Folder )" ) ;
 		
 		try {
@@ -827,48 +825,40 @@ public class MetadataRefiner {
 			String variableName = variable.getName() ;
 			//
 			// For Age we want to produce an Age enumeration...
-			EnumType ageEnumeration = this.enumerations.get( "AGE" ) ;
-			String[] ageHints = ageEnumeration.getHintArray() ;
-			//
-			// The outer loop tests for variable inclusion...
-			ageOuterLoop: for ( int i=0; i<ageHints.length; i++ ) {
-				if( variableName.contains( ageHints[i] ) ) {
-					String[] excludes = ageEnumeration.getExcludeArray() ;
-					//
-					// The inner loop tests for variable exclusion...
-					for( int j=0; j<excludes.length; j++ ) {
-						if( variableName.equals( excludes[j] ) ) {
-							break ageOuterLoop ;
-						}
-					}
+			// The name must contain an Age hint and not be one of the Age excludes.
+			// (A name equal to an exclude contains it, so the matcher reports all candidates)...
+			int age = this.config.indexOfEnumeration( "AGE" ) ;
+			BitSet hints = new BitSet() ;
+			BitSet excludes = new BitSet() ;
+			this.config.getEnumerationMatcher().match( variableName, hints, excludes ) ;
+			if( age != -1 && hints.get( age ) ) {
+				RefinerConfig.EnumDescriptor ageEnumeration = this.config.getEnumeration( age ) ;
+				if( !excludes.get( age ) || !ageEnumeration.isExclude( variableName ) ) {
 					//
 					// First we need to produce an Age folder...
 					Folder ageFolder = parentFolder.addNewFolder() ;
 					ageFolder.setName( variableName ) ;
 					ageFolder.setDescription( "Participant Age" ) ;
-					ageFolder.setCode( formCodeStrategyOne( variable, variableName ) ) ;
+					ageFolder.setCode( formCodeStrategyOne( context, variableName ) ) ;
 					//
-					// Then the enumeration...
-					// (Not good technique. Need to refactor).
-					// We modally switch off the fact that in this context there are no siblings...
-					this.siblingHolder.siblingList.clear() ;
-					_produceGroupedTree( ageFolder, ageEnumeration ) ;
+					// Then the enumeration (in this context there are no siblings)...
+					_produceGroupedTree( ageFolder, context.folder( variableName ), SiblingGroup.EMPTY, ageEnumeration ) ;
 					return ;
 				}
-			} // ageOuterLoop
+			}
 
 			//
 			// For ethnicity we want to produce an ethnic enumeration...
-			if( variableName.equals( this.ethnicityVariableName ) ) {
+			if( variableName.equals( this.config.getEthnicityVariableName() ) ) {
 				//
 				// First we need to produce an ethnicity folder
 				Folder eFolder = parentFolder.addNewFolder() ;
-				eFolder.setName( this.ethnicityVariableName ) ;
+				eFolder.setName( this.config.getEthnicityVariableName() ) ;
 				eFolder.setDescription( "Ethnic group" ) ;
-				eFolder.setCode( formCodeStrategyOne( variable, this.ethnicityVariableName ) ) ;
+				eFolder.setCode( formCodeStrategyOne( context, this.config.getEthnicityVariableName() ) ) ;
 				//
 				// Then the enumeration...
-				processEthnicEnumeration( eFolder ) ;
+				processEthnicEnumeration( eFolder, context.folder( this.config.getEthnicityVariableName() ) ) ;
 				return ;
 			}
 			//
@@ -879,10 +869,10 @@ public class MetadataRefiner {
 				Folder eFolder = parentFolder.addNewFolder() ;
 				eFolder.setName( "vital_status" ) ;
 				eFolder.setDescription( "Vital status" ) ;
-				eFolder.setCode( formCodeStrategyOne( variable, "vital_status" ) ) ;
+				eFolder.setCode( formCodeStrategyOne( context, "vital_status" ) ) ;
 				//
 				// Then the enumeration...
-				processVitalStatusEnumeration( eFolder ) ;
+				processVitalStatusEnumeration( eFolder, context.folder( "vital_status" ) ) ;
 				return ;
 			}
 			//
@@ -891,7 +881,7 @@ public class MetadataRefiner {
 			v.setName( variable.getName() ) ;				
 //			v.setType( Type.Enum.forString( variable.getType().toUpperCase() ) ) ;
 			setType( v, variable ) ;
-			v.setCode( formCode( variable, v.getName(), v.getType() ) ) ; 
+			v.setCode( formCode( context, v.getName(), v.getType() ) ) ; 
 			if( variable.getLabel() != null ) {
 				v.setDescription( formDescription( variable, parentFolder ) ) ;
 			}
@@ -908,14 +898,20 @@ public class MetadataRefiner {
 	 * First of all this method deals with Standard Booleans, which are easy to deal with 
 	 * and are standard leaf variables. <br/>
 	 * Secondly, Standard Comments are simply ignored (Question: Is this OK?). <br/>
-	 * Anything else requires discrimination, which means collecting siblings to do 
-	 * some reasonably complex analysis of siblings.
+	 * Anything else requires discrimination, which means some reasonably complex analysis 
+	 * of the sibling group. This is done once per group, by the first variable requiring it.
 	 * 
 	 * @param variable
 	 * @param parentFolder
+	 * @param context the variable's own context
+	 * @param siblings the variable's sibling group
+	 * @return true if this variable discriminated the sibling group, false otherwise.
 	 * @throws IOException
 	 */
-	private void processVariableHavingSiblings( VariableType variable, Folder parentFolder ) throws IOException {
+	private boolean processVariableHavingSiblings( VariableType variable, 
+			                                       Folder parentFolder, 
+			                                       TraversalContext context, 
+			                                       SiblingGroup siblings ) throws IOException {
 		if( log.isTraceEnabled() ) enterTrace( "processVariableHavingSiblings( VariableType, Folder )" ) ;
 		try {
 			if( variable.getName().equals( "tobacco_cigquant" ) ) {
@@ -925,27 +921,22 @@ public class MetadataRefiner {
 				Variable v = parentFolder.addNewVariable() ;
 				v.setName( variable.getName() ) ;				
 				v.setType( Type.BOOLEAN ) ;
-				v.setCode( formCode( variable, v.getName(), v.getType() ) ) ; 
+				v.setCode( formCode( context, v.getName(), v.getType() ) ) ; 
 				if( variable.getLabel() != null ) {
 					v.setDescription( formDescription( variable, parentFolder ) ) ;
 				}
 			}
 			else if( isStandardComment( variable ) ) {
-				return ;
+				return false ;
 			}
 			//
-			// Take careful note here of the use of the utility SiblingHolder class.
-			// I cannot see a better way of doing things at the moment than collecting
-			// siblings together once a sibling has been encountered. But it does mean
-			// the whole process gets switched modally into and out of sibling discrimination:
-			// ie: once the siblingHolder is involved, we have the concept of a current
-			// variable (the variable that triggers sibling processing), and the use
-			// of the siblingHolder as relied-upon state for subsequent method calls.
-			// Could do with a rethink.
-			else if( this.siblingHolder.processed == false ) {
-				discriminateSiblings( parentFolder ) ;
-				this.siblingHolder.processed = true ;
-			}			
+			// The first variable requiring discrimination does it for the whole group.
+			// The caller passes the remaining siblings a group marked as discriminated...
+			else if( !siblings.discriminated ) {
+				discriminateSiblings( parentFolder, context, siblings ) ;
+				return true ;
+			}
+			return false ;
 		}
 		finally {
 			if( log.isTraceEnabled() ) exitTrace( "processVariableHavingSiblings( VariableType, Folder )" ) ;
@@ -969,25 +960,29 @@ public class MetadataRefiner {
 	 *     I need to report on these, as it is a difficult topic to deal with.<p/>
 	 *     
 	 *     This is a difficult area.
+	 *     
+	 * @param parentFolder
+	 * @param context the context of the current variable (siblings share its parent)
+	 * @param siblings
 	 */
-	private void discriminateSiblings( Folder parentFolder ) throws IOException {
+	private void discriminateSiblings( Folder parentFolder, TraversalContext context, SiblingGroup siblings ) throws IOException {
 		if( log.isTraceEnabled() ) enterTrace( "discriminateSiblings" ) ;
-		if( containsOpenQuestion() ) {
+		if( siblings.openQuestion ) {
 			// If there is an open question, 
 			// we first try to find and process a type-2 enumeration.
 			// If we cannot find one, then assume it is a continuous variable...
 			// type-2...
-			boolean generatedEnumProcessed = processGeneratedEnumeration( parentFolder ) ;
+			boolean generatedEnumProcessed = processGeneratedEnumeration( parentFolder, context, siblings ) ;
 			//
 			// type-3...
 			if( !generatedEnumProcessed ) {
-				processContinuousVariable( parentFolder ) ;
+				processContinuousVariable( parentFolder, context, siblings ) ;
 			}
 		}
 		else {
 			//
 			// type-1...
-			processStandardEnumeration( parentFolder ) ;
+			processStandardEnumeration( parentFolder, context, siblings ) ;
 		}
 		if( log.isTraceEnabled() ) exitTrace( "discriminateSiblings" ) ;
 	}
@@ -1007,37 +1002,38 @@ public class MetadataRefiner {
 	 * <b><em>This routine should be a focus of redevelopment.</em></b>
 	 * 
 	 * @param parentFolder
+	 * @param context the context of the current variable
+	 * @param siblings
 	 * @return true if an enumeration has been generated, false otherwise.
 	 * @throws IOException
 	 */
-	private boolean processGeneratedEnumeration( Folder parentFolder ) throws IOException {
+	private boolean processGeneratedEnumeration( Folder parentFolder, TraversalContext context, SiblingGroup siblings ) throws IOException {
 		if( log.isTraceEnabled() ) enterTrace( "processGeneratedEnumeration( Folder parentFolder )" ) ;
 		boolean retValue = false ;
-		parentFolder.setCode( formCodeForFolder() ) ;
+		parentFolder.setCode( formCodeForFolder( context ) ) ;
 		
-		Iterator<EnumType> it = this.enumerations.values().iterator() ;
-		while( it.hasNext() ) {
-			EnumType et = it.next() ;
+		//
+		// The candidates are visited in config file order; the first that can be produced wins...
+		BitSet candidates = searchForGeneratedEnumerations( siblings ) ;
+		for( int i=candidates.nextSetBit( 0 ); i>=0; i=candidates.nextSetBit( i+1 ) ) {
+			RefinerConfig.EnumDescriptor et = this.config.getEnumeration( i ) ;
 			
-			if( searchForGeneratedEnumeration( et ) ) {
+			if( et.getName().equals( "RECENT_TIME" ) ) {
+				processRecentTimeEnumeration( parentFolder, context, siblings ) ;
+				retValue = true ;
+				break ;
+			}				
+			else if( et.isRange() ) {
 				
-				if( et.getName().equals( "RECENT_TIME" ) ) {
-					processRecentTimeEnumeration( parentFolder ) ;
+				if( et.isGrouped() ) {
+					_produceGroupedTree( parentFolder, context, siblings, et ) ;
+					retValue = true ;
+					break ;
+				}
+				else {
+					_produceUnGroupedTree( parentFolder, context, siblings, et ) ;
 					retValue = true ;
 					break ;
-				}				
-				else if( et.getFirst() != null ) {
-					
-					if( et.getGroup() != null ) {
-						_produceGroupedTree( parentFolder, et ) ;
-						retValue = true ;
-						break ;
-					}
-					else {
-						_produceUnGroupedTree( parentFolder, et ) ;
-						retValue = true ;
-						break ;
-					}
 				}
 			}
 		}
@@ -1049,13 +1045,15 @@ public class MetadataRefiner {
 	 * Produces a complex "grouped" enumeration for recent time.
 	 * 
 	 * @param parentFolder
+	 * @param context whose folder path is that of the parent folder
+	 * @param siblings
 	 * @throws IOException
 	 */
-	private void processRecentTimeEnumeration( Folder parentFolder ) throws IOException {
+	private void processRecentTimeEnumeration( Folder parentFolder, TraversalContext context, SiblingGroup siblings ) throws IOException {
 		//
 		// First deal with the main refined metadata file...
 		@SuppressWarnings("unused")
-		Variable[] va = _processEnumeration( parentFolder ) ;
+		Variable[] va = _processEnumeration( parentFolder, context, siblings ) ;
 		//
 		// The rest of the method covers generating the enumerations in a separate XML 
 		// enumerations file...
@@ -1066,11 +1064,8 @@ public class MetadataRefiner {
 		env.setType( RevType.Enum.forInt( Type.RECENTTIME.intValue() ) ) ;
 		//
 		// Path...
-		String path =  buildPath( parentFolder ) ;
-		env.setPath( path  ) ;
-		
-		String[] parts = path.split( "\\\\" ) ;
-		env.setHlevel( Integer.toString( parts.length - 2 ) ) ;
+		env.setPath( context.getFolderPath() ) ;
+		env.setHlevel( Integer.toString( context.getHlevel() ) ) ;
 		
 		//
 		// Format to make sure hours are always take up 2 character spaces...
@@ -1126,9 +1121,10 @@ public class MetadataRefiner {
 	 * Produces an "ungrouped" enumeration for ethnic groups.
 	 * 
 	 * @param parentFolder
+	 * @param context whose folder path is that of the parent folder
 	 * @throws IOException
 	 */
-	private void processEthnicEnumeration( Folder parentFolder ) throws IOException {
+	private void processEthnicEnumeration( Folder parentFolder, TraversalContext context ) throws IOException {
 		if( log.isTraceEnabled() ) enterTrace( "processEthnicEnumeration" ) ;	
 		
 		EnumeratedVariableDocument evDoc = EnumeratedVariableDocument.Factory.newInstance() ;
@@ -1138,17 +1134,15 @@ public class MetadataRefiner {
 		env.setType( RevType.Enum.forInt( Type.GENERATED_ENUMERATION.intValue() ) ) ;
 		//
 		// Path...
-		String path =  buildPath( parentFolder ) ;
-		env.setPath( path  ) ;
-		
-		String[] parts = path.split( "\\\\" ) ;
-		env.setHlevel( Integer.toString( parts.length - 2 ) ) ;
+		env.setPath( context.getFolderPath() ) ;
+		env.setHlevel( Integer.toString( context.getHlevel() ) ) ;
 		
-		for( int i=0; i<ethnicCodes.length; i++ ) {
+		List<RefinerConfig.EthnicCode> ethnicCodes = this.config.getEthnicCodes() ;
+		for( int i=0; i<ethnicCodes.size(); i++ ) {
 			RevVariable rv = env.addNewVariable() ;				
-			rv.setName( ethnicCodes[i].getName() ) ;
-			rv.setDescription( ethnicCodes[i].getDescription() ) ;
-			rv.setCode( env.getCode() + ':' + ethnicCodes[i].getStringValue() ) ;
+			rv.setName( ethnicCodes.get( i ).getName() ) ;
+			rv.setDescription( ethnicCodes.get( i ).getDescription() ) ;
+			rv.setCode( env.getCode() + ':' + ethnicCodes.get( i ).getValue() ) ;
 			if( rv.getCode().length() > 50 ) {
 				log.error( "Code length exceeds 50: " + rv.getCode() ) ;
 			}
@@ -1163,9 +1157,10 @@ public class MetadataRefiner {
 	 * Produces an "ungrouped" enumeration for vital_status.
 	 * 
 	 * @param parentFolder
+	 * @param context whose folder path is that of the parent folder
 	 * @throws IOException
 	 */
-	private void processVitalStatusEnumeration( Folder parentFolder ) throws IOException {
+	private void processVitalStatusEnumeration( Folder parentFolder, TraversalContext context ) throws IOException {
 		if( log.isTraceEnabled() ) enterTrace( "processVitalStatusEnumeration" ) ;	
 		
 		EnumeratedVariableDocument evDoc = EnumeratedVariableDocument.Factory.newInstance() ;
@@ -1175,11 +1170,8 @@ public class MetadataRefiner {
 		env.setType( RevType.Enum.forInt( Type.VITALSTATUS.intValue() ) ) ;
 		//
 		// Path...
-		String path =  buildPath( parentFolder ) ;
-		env.setPath( path  ) ;
-		
-		String[] parts = path.split( "\\\\" ) ;
-		env.setHlevel( Integer.toString( parts.length - 2 ) ) ;
+		env.setPath( context.getFolderPath() ) ;
+		env.setHlevel( Integer.toString( context.getHlevel() ) ) ;
 
 		for( int i=0; i<VITAL_STATUS.length; i++ ) {
 			RevVariable rv = env.addNewVariable() ;				
@@ -1198,12 +1190,12 @@ public class MetadataRefiner {
 	
 	
 	/**
-	 * The passed EnumType contains an array of hints and exclusions, and is examined against 
-	 * the current variable to see whether the variable can be considered a member of the class
-	 * of variables covered by the hints. For example, whether the variable covers
+	 * Each EnumType contains an array of hints and exclusions, and is examined against 
+	 * the current sibling group to see whether the variables can be considered members of the class
+	 * of variables covered by the hints. For example, whether the variables cover
 	 * cigarette smoking, or not.<p/>
 	 * 
-	 * The exclusions are then examined to see whether this variable is an exception to the rule.
+	 * The exclusions are then examined to see whether these variables are an exception to the rule.
 	 * 
 	 * Two things are taken into account in the two searches:<p/>
 	 * 1. The variable's type.<br/>
@@ -1213,62 +1205,36 @@ public class MetadataRefiner {
 	 * is provisionally satisfied. The the exclusions are searched for exceptions.
 	 * 
 	 * For example, "age" might be a hint, but would include "stage". "Stage" could be specifically
-	 * dropped by having the word "stage" as an exclusion.
+	 * dropped by having the word "stage" as an exclusion. <p/>
 	 * 
-	 * @param table
-	 * @return true if the current variable is considered to be EnumType, false otherwise.
+	 * All EnumTypes are searched at once: each name and type is scanned a single time
+	 * by the {@link EnumerationMatcher} compiled from the config file.
+	 * 
+	 * @param siblings
+	 * @return the EnumTypes (numbered as by the matcher) the sibling group is considered to be.
 	 */
-	private boolean searchForGeneratedEnumeration( final EnumType et ) {
-		if( log.isTraceEnabled() ) enterTrace( "searchForGeneratedEnumeration()" ) ;
-		boolean bType = false ;
-		boolean bName = false ;
-		boolean retCode = false ;
+	private BitSet searchForGeneratedEnumerations( SiblingGroup siblings ) {
+		if( log.isTraceEnabled() ) enterTrace( "searchForGeneratedEnumerations()" ) ;
+		BitSet hints = new BitSet() ;
+		BitSet excludes = new BitSet() ;
 		try {
-			//
-			// Search the hints first...
-			String[] hints = et.getHintArray() ;
-			Iterator<VariableType> it = this.siblingHolder.siblingList.iterator() ;
+			Iterator<VariableType> it = siblings.siblings.iterator() ;
 			while( it.hasNext() ) {
 				VariableType vt = it.next() ;
-				for( int i=0; i<hints.length; i++ ) {
-					if( vt.getType().contains( hints[i] ) ) {
-						bType = true ;
-					}
-					else if( vt.getName().contains( hints[i] ) ) {
-						bName = true ;
-					}
-				}
+				this.config.getEnumerationMatcher().match( vt.getType(), hints, excludes ) ;
+				this.config.getEnumerationMatcher().match( vt.getName(), hints, excludes ) ;
 			}
-			
-			retCode = bType || bName ;
 			//
-			// If there are excludes, examine them... 
-			String[] excludes = et.getExcludeArray() ;
-			if( excludes.length > 0 ) {
-				it = this.siblingHolder.siblingList.iterator() ;
-				while( it.hasNext() ) {
-					VariableType vt = it.next() ;
-					for( int i=0; i<excludes.length; i++ ) {
-						if( vt.getType().contains( excludes[i] ) ) {
-							retCode = false ;
-							break ;
-						}
-						else if( vt.getName().contains( excludes[i] ) ) {
-							retCode = false ;
-							break ;
-						}
-					}
-				}
-			}
+			// Any exclude found drops the EnumType...
+			hints.andNot( excludes ) ;
 		}
 		finally {
 			if( log.isDebugEnabled() ) {
-				log.debug( "retcode: " + retCode ) ;
+				log.debug( "candidates: " + hints ) ;
 			}
-			if( log.isTraceEnabled() ) exitTrace( "searchForGeneratedEnumeration()" ) ;
+			if( log.isTraceEnabled() ) exitTrace( "searchForGeneratedEnumerations()" ) ;
 		}
-						
-		return retCode ;
+		return hints ;
 	}
 	
 	/**
@@ -1276,35 +1242,33 @@ public class MetadataRefiner {
 	 * that every other routine wanting to produce a grouped enumeration invokes to do the work.
 	 * 
 	 * @param parentFolder
+	 * @param context whose folder path is that of the parent folder
+	 * @param siblings
 	 * @param type
 	 * @param table
 	 * @throws IOException
 	 */
-	private void _produceGroupedTree( Folder parentFolder, EnumType et ) throws IOException {
+	private void _produceGroupedTree( Folder parentFolder, TraversalContext context, SiblingGroup siblings, RefinerConfig.EnumDescriptor et ) throws IOException {
 		if( log.isTraceEnabled() ) enterTrace( "_produceGroupedTree( Folder parentFolder, EnumType et )" ) ;
 		@SuppressWarnings("unused")
-		Variable[] va =_processEnumeration( parentFolder ) ;
+		Variable[] va =_processEnumeration( parentFolder, context, siblings ) ;
 		EnumeratedVariableDocument evDoc = EnumeratedVariableDocument.Factory.newInstance() ;
 		RevEnumeratedVariable env = evDoc.addNewEnumeratedVariable() ;
 		env.setName( parentFolder.getName() ) ;
 		env.setCode( parentFolder.getCode() ) ;		
 		//
 		// Path...
-		String path =  buildPath( parentFolder ) ;
-		env.setPath( path  ) ;
-		
-		String[] parts = path.split( "\\\\" ) ;
-		env.setHlevel( Integer.toString( parts.length - 2 ) ) ;
+		env.setPath( context.getFolderPath() ) ;
+		env.setHlevel( Integer.toString( context.getHlevel() ) ) ;
 		
 		//
 		//
-		int first = Integer.valueOf( et.getFirst() ) ;
-		int last = Integer.valueOf( et.getLast() ) ;
-		int group = Integer.valueOf( et.getGroup() ) ;
-		int greatestWidth = et.getLast().length() ;
+		int first = et.getFirst() ;
+		int last = et.getLast() ;
+		int group = et.getGroup() ;
 		int numberGroups = ( last - first + 1 ) / group ;
 				
-		String format = "%" + String.valueOf( greatestWidth ) + "d" ;
+		String format = et.getFormat() ;
 		
 		
 		for( int i=0; i<numberGroups; i++ ) {
@@ -1325,66 +1289,21 @@ public class MetadataRefiner {
 		if( log.isTraceEnabled() ) exitTrace( "_produceGroupedTree( Folder parentFolder, EnumType et )" ) ;
 	}
 	
-	/**
-	 * Builds a path statement for a node in the ontology tree.
-	 * 
-	 * @param parentFolder
-	 * @return A path statement describing a node in the i2b2 ontology tree.
-	 *         (The path is in Microsoft format).
-	 */
-	private String buildPath( Folder parentFolder ) {
-		//
-		// First build a collection of ancestors...
-		XmlCursor cursor = parentFolder.newCursor() ;		
-		ArrayList<XmlObject> ancestors = new ArrayList<XmlObject>() ;
-		try {
-			ancestors.add( parentFolder ) ;
-			while( cursor.toParent() ) {
-				ancestors.add( (XmlObject)cursor.getObject() ) ;
-			} ;
-		}
-		finally {
-			cursor.dispose() ;
-		}
-		//
-		// Use the collection to build a path.
-		// Omits Participants and Participants/Admin, 
-		// which as folders are not used.
-		StringBuilder b = new StringBuilder() ;
-		XmlObject[] anca = ancestors.toArray( new XmlObject[ ancestors.size() ] ) ;
-		b.append( '\\' ) ;
-		for( int i=anca.length-1; i>-1; i-- ) {
-			if( anca[i] instanceof Folder ) {
-				String folderName = ((Folder)anca[i]).getName() ;
-				if( !folderName.equalsIgnoreCase( "Participants" ) 
-					&&
-					!folderName.equalsIgnoreCase( "Admin" ) ) {
-					b.append( folderName ).append( '\\' ) ;
-				}		
-			}
-			else if( anca[i] instanceof Container ) {
-				b.append( ((Container)anca[i]).getName() ).append( '\\' ) ;
-			}		
-		}
-		b.deleteCharAt( b.length()-1 ) ;
-		String path = b.toString() ;
-		
-		return path ;
-	}
-	
 	/**
 	 * Is the utility method for really producing an ungrouped enumeration. This is the real McCoy
 	 * that every other routine wanting to produce an ungrouped enumeration invokes to do the work.
 	 * 
 	 * @param parentFolder
+	 * @param context whose folder path is that of the parent folder
+	 * @param siblings
 	 * @param type
 	 * @param range
 	 * @throws IOException
 	 */
-	private void _produceUnGroupedTree( Folder parentFolder, EnumType et ) throws IOException {
+	private void _produceUnGroupedTree( Folder parentFolder, TraversalContext context, SiblingGroup siblings, RefinerConfig.EnumDescriptor et ) throws IOException {
 		if( log.isTraceEnabled() ) enterTrace( "_produceUnGroupedTree( Folder parentFolder, EnumType et )" ) ;
 		@SuppressWarnings("unused")
-		Variable[] va =_processEnumeration( parentFolder ) ;
+		Variable[] va =_processEnumeration( parentFolder, context, siblings ) ;
 		//
 		//
 		EnumeratedVariableDocument evDoc = EnumeratedVariableDocument.Factory.newInstance() ;
@@ -1393,18 +1312,14 @@ public class MetadataRefiner {
 		env.setCode( parentFolder.getCode() ) ;
 		//
 		// Path...
-		String path = buildPath( parentFolder ) ;
+		String path = context.getFolderPath() ;
 		log.debug( "built path: " + path ) ;
 		env.setPath( path ) ;
-
-		String[] parts = path.split( "\\\\" ) ;
-		env.setHlevel( Integer.toString( parts.length - 2 ) ) ;
+		env.setHlevel( Integer.toString( context.getHlevel() ) ) ;
 	
-		String greatestWidth = Integer.toString( et.getLast().length() ) ;
-		
-		String format = "%" + greatestWidth + "d";
-		int j = Integer.valueOf( et.getFirst() ) ;
-		int k = Integer.valueOf( et.getLast() ) - j + 1 ;
+		String format = et.getFormat() ;
+		int j = et.getFirst() ;
+		int k = et.getLast() - j + 1 ;
 		for( int i=0; i<k; i++, j++ ) {
 			RevVariable rv = env.addNewVariable() ;				
 			rv.setName( String.format( format, j ) ) ;
@@ -1422,25 +1337,21 @@ public class MetadataRefiner {
      * within the main file.
 	 * 
 	 * @param parentFolder
-	 * @param typeEnum
+	 * @param context the context of the current variable (siblings share its parent)
+	 * @param siblings
 	 * @return
 	 */
-	private Variable[] _processEnumeration( Folder parentFolder ) {
-		Iterator<VariableType> it = this.siblingHolder.siblingList.iterator() ;
+	private Variable[] _processEnumeration( Folder parentFolder, TraversalContext context, SiblingGroup siblings ) {
+		//
+		// The value siblings drop the open question variable...
+		Iterator<VariableType> it = siblings.valueSiblings.iterator() ;
 		ArrayList<Variable> alv = new ArrayList<Variable>() ;
 		while( it.hasNext() ) {
 			VariableType vt = it.next() ;
-			//
-			// This bit drops the open question variable...
-			if( vt.getType().equalsIgnoreCase( "boolean" ) ) {
-				if( !isStandardBoolean( vt ) ) {
-					continue ;
-				}
-			}
 			Variable v = parentFolder.addNewVariable() ;
 			v.setName( vt.getName() ) ;				
 			v.setType( Type.GENERATED_ENUMERATION ) ;
-			v.setCode( formCode( vt, v.getName(), v.getType() ) ) ;
+			v.setCode( formCode( context, v.getName(), v.getType() ) ) ;
 			if( vt.getLabel() != null ) {
 				v.setDescription( vt.getLabel() ) ;
 			}
@@ -1460,21 +1371,18 @@ public class MetadataRefiner {
 	 * Continuous variable may be misnamed, but the idea is of a variable that is not enumerated.
 	 * 
 	 * @param parentFolder
+	 * @param context the context of the current variable (siblings share its parent)
+	 * @param siblings
 	 */
-	private void processContinuousVariable( Folder parentFolder ) {
-		Iterator<VariableType> it = this.siblingHolder.siblingList.iterator() ;
+	private void processContinuousVariable( Folder parentFolder, TraversalContext context, SiblingGroup siblings ) {
+		Iterator<VariableType> it = siblings.valueSiblings.iterator() ;
 		while( it.hasNext() ) {
 			VariableType vt = it.next() ;
-			if( vt.getType().equalsIgnoreCase( "boolean" ) ) {
-				if( !isStandardBoolean( vt ) ) {
-					continue ;
-				}
-			}
 			Variable v = parentFolder.addNewVariable() ;
 			v.setName( vt.getName() ) ;				
 //			v.setType( Type.Enum.forString( vt.getType().toUpperCase() ) ) ;
 			setType( v, vt ) ;
-			v.setCode( formCode( vt, v.getName(), v.getType() ) ) ;
+			v.setCode( formCode( context, v.getName(), v.getType() ) ) ;
 			if( vt.getLabel() != null ) {
 				v.setDescription( vt.getLabel() ) ;
 			}
@@ -1486,16 +1394,18 @@ public class MetadataRefiner {
 	 * alongside the standard booleans. These are enumerations defined within Onyx.
 	 *     
 	 * @param parentFolder
+	 * @param context the context of the current variable (siblings share its parent)
+	 * @param siblings
 	 */
-	private void processStandardEnumeration( Folder parentFolder ) {
-		Iterator<VariableType> it = this.siblingHolder.siblingList.iterator() ;
+	private void processStandardEnumeration( Folder parentFolder, TraversalContext context, SiblingGroup siblings ) {
+		Iterator<VariableType> it = siblings.siblings.iterator() ;
 		while( it.hasNext() ) {
 			VariableType vt = it.next() ;
 			Variable v = parentFolder.addNewVariable() ;
 			v.setName( vt.getName() ) ;				
 //			v.setType( Type.Enum.forString( vt.getType().toUpperCase() ) ) ;
 			setType( v, vt ) ;
-			v.setCode( formCode( vt, v.getName(), v.getType() ) ) ;
+			v.setCode( formCode( context, v.getName(), v.getType() ) ) ;
 			if( vt.getLabel() != null ) {
 				v.setDescription( vt.getLabel() ) ;
 			}
@@ -1507,10 +1417,11 @@ public class MetadataRefiner {
 	 * contains at least one which is a continuous variable (a measure) and one which
 	 * is a non-standard boolean.
 	 * 
+	 * @param siblings
 	 * @return true if sibling variables are within the context of an OPEN question
 	 */
-	private boolean containsOpenQuestion() {
-		Iterator<VariableType> it = this.siblingHolder.siblingList.iterator() ;
+	private boolean containsOpenQuestion( List<VariableType> siblings ) {
+		Iterator<VariableType> it = siblings.iterator() ;
 		boolean continuousVariablePresent = false ;
 		boolean nonStandardBooleanPresent = false ;
 		while( it.hasNext() ) {
@@ -1552,13 +1463,7 @@ public class MetadataRefiner {
 	 * @return true if the variable is a standard boolean, false otherwise.
 	 */
 	private boolean isStandardBoolean( VariableType variable ) {
-		String name = variable.getName() ;
-		for( int i=0; i<standardBooleans.length; i++ ) {
-			if( name.equalsIgnoreCase( standardBooleans[i] ) ) {
-				return true ;
-			}
-		}
-		return false ;
+		return this.config.isStandardBoolean( variable.getName() ) ;
 	}
 	
 	/**
@@ -1576,142 +1481,21 @@ public class MetadataRefiner {
 	}
 	
 	/**
-	 * A variable is question related if it is held within a question.
-	 * This routine works its way up the tree, looking at the parent
-	 * and ancestors of the variable node. If it finds a QuestionType,
-	 * then the variable is question related.
-	 * 
-	 * @param variable
-	 * @return true if the variable is question related, false otherwise
-	 */
-	private boolean isQuestionRelated( VariableType variable ) {
-		XmlCursor cursor = variable.newCursor() ;
-		try {
-			while( cursor.toParent() ) {
-				XmlObject xo = cursor.getObject() ;
-				if( xo.schemaType() == QuestionType.type ) {
-					return true ;
-				}
-			}
-			return false ;
-		}
-		finally {
-			cursor.dispose() ;
-		}
-	}
-	
-	/**
-	 * A variable is enitity related if it is held within an entity.
-	 * For example a variable relating to a Participant.
-	 * This routine works its way up the tree, looking at the parent
-	 * and ancestors of the variable node. If it finds an EntityType,
-	 * then the variable is entitiy related.
+	 * Forms the sibling group of the given variable's children, leaving out
+	 * standard booleans and the standard comment.
 	 * 
-	 * @param variable
-	 * @return true if the variable is entity related, false otherwise.
+	 * @param parent
+	 * @return the sibling group
 	 */
-	private boolean isEntityRelated( VariableType variable ) {
-		XmlCursor cursor = variable.newCursor() ;
-		try {
-			while( cursor.toParent() ) {
-				XmlObject xo = cursor.getObject() ;
-				if( xo.schemaType() == EntityType.type ) {
-					if( log.isDebugEnabled() ) {
-						log.debug( "Entity related: " + variable.getName() ) ;
-					}
-					return true ;
-				}
+	private SiblingGroup formSiblingGroup( VariableType parent ) {
+		VariableType[] vta = parent.getVariableArray() ;
+		ArrayList<VariableType> siblings = new ArrayList<VariableType>( vta.length ) ;
+		for( int i=0; i<vta.length; i++ ) {
+			if( !isStandardBoolean( vta[i] ) && !isStandardComment( vta[i] ) ) {
+				siblings.add( vta[i] ) ;
 			}
-			return false ;
-		}
-		finally {
-			cursor.dispose() ;
 		}
-	}
-	
-	/**
-	 * A variable has sibling variables if - within the DOM - it has
-	 * sibling nodes which are also of VariableType. As a side effect,
-	 * if found this routine primes the sibling process.
-	 * 
-	 * @param variable
-	 * @return true if there are sibling variables for the given variable, false otherwise.
-	 */
-	private boolean hasSiblingVariables( VariableType variable ) {
-		if( log.isTraceEnabled() ) enterTrace( "hasSiblingVariables()" ) ;
-		if( log.isDebugEnabled() ) {
-			log.debug( "variable: " + variable.getName() ) ;
-		}
-		XmlCursor cursor = variable.newCursor() ;
-		try {
-			while( cursor.toPrevSibling() ) {}
-			if( cursor.getObject() instanceof VariableType ) {
-				primeSiblingsProcess( variable ) ;
-				return true ;
-			}
-			while( cursor.toNextSibling() ) {
-				if( cursor.getObject() instanceof VariableType ) {
-					primeSiblingsProcess( variable ) ;
-					return true ;
-				}
-			}
-			return false ;
-		}
-		finally {
-			cursor.dispose() ;
-			if( log.isTraceEnabled() ) exitTrace( "hasSiblingVariables()" ) ;
-		}
-	}
-	
-	/**
-	 * Given a variable, priming the sibling process initializes the sibling holder,
-	 * filling it with a collection of sibling variables and recording the parent of the siblings.
-	 * Standard booleans and the standard comment get ignored. 
-	 * 
-	 * @param vt
-	 */
-	private void primeSiblingsProcess( VariableType vt ) {
-		if( log.isTraceEnabled() ) enterTrace( "primeSiblingsProcess()" ) ;
-		XmlCursor cursor = vt.newCursor() ;
-		try {
-			cursor.push() ;
-			cursor.toParent() ;
-			if( cursor.getObject() != this.siblingHolder.parent ) {
-				if( log.isDebugEnabled() ) {
-					log.debug( "priming siblingHolder" ) ;
-				}
-				this.siblingHolder.processed = false ;
-				this.siblingHolder.parent = (VariableType)cursor.getObject() ;
-				this.siblingHolder.siblingList.clear() ;
-				cursor.pop() ;
-				while( cursor.toPrevSibling() ) {}
-				recordIfRelevant( cursor.getObject() ) ;
-				while( cursor.toNextSibling() ) {
-					recordIfRelevant( cursor.getObject() ) ;
-				}			
-			}
-		}
-		finally {
-			cursor.dispose() ;
-			if( log.isTraceEnabled() ) exitTrace( "primeSiblingsProcess()" ) ;
-		}
-	}
-	
-	/**
-	 * Adds the given object to the sibling collection within the sibling holder
-	 * if the object is a variable, but not a standard boolean or a standard comment.
-	 * 
-	 * @param obj
-	 */
-	private void recordIfRelevant( Object obj ) {
-		if( obj instanceof VariableType == false ) {
-			return ;
-		}
-		VariableType vt = (VariableType)obj ;
-		if( isStandardBoolean( vt ) || isStandardComment( vt ) ) {
-			return ;
-		}
-		this.siblingHolder.siblingList.add( vt ) ;
+		return new SiblingGroup( siblings, containsOpenQuestion( siblings ), false ) ;
 	}
 	
 	/**
@@ -1719,12 +1503,12 @@ public class MetadataRefiner {
 	 * the SNOMED or LOINC code. This routine is a makeshift whilst we work out the
 	 * formal codes for Onyx variables.
 	 * 
-	 * @param xo	The leaf object
+	 * @param context	The context of the leaf object
 	 * @param name	The name of the object
 	 * @param typeEnum	The type of the object
 	 * @return The code as a string (needs to be 50 characters or less for i2b2).
 	 */
-	private String formCode( XmlObject xo, String name, Type.Enum typeEnum ) {
+	private String formCode( TraversalContext context, String name, Type.Enum typeEnum ) {
 		if( typeEnum == null ) {
 			log.debug( "typeEnum is null!" ) ;
 		}
@@ -1748,27 +1532,26 @@ public class MetadataRefiner {
 		case Type.INT_WAIST:
 		case Type.INT_WEIGHT:
 		case Type.INT_YEAR:
-			return formCodeStrategyTwo( xo, name, typeEnum ) ;
+			return formCodeStrategyTwo( context, name, typeEnum ) ;
 		//
 		// Everything other than generated enumerations...
 		default:
-			return formCodeStrategyOne( xo, name ) ;
+			return formCodeStrategyOne( context, name ) ;
 		}		
 	}
 	
 	/**
 	 * Strategy one is the strategy for forming codes for non-enumerated variables.
 	 * 
-	 * @param xo	The leaf object
+	 * @param context	The context of the leaf object
 	 * @param name	The name of the object
 	 * @return		The code as a string
 	 */
-	private String formCodeStrategyOne( XmlObject xo, String name ) {
+	private String formCodeStrategyOne( TraversalContext context, String name ) {
 		String code = null ;
 		StringBuilder builder = new StringBuilder( 100 ) ;
-		XmlObject parent = getParent( xo ) ;
-		builder.append( this.configDoc.getOnyxExportConfig().getCodePrefix() ) 
-		       .append( getName( parent ) )
+		builder.append( this.config.getCodePrefix() ) 
+		       .append( context.getParentName() )
 		       .append( '.' )
 		       .append( name ) ; 
 		code = builder.toString() ;
@@ -1779,11 +1562,10 @@ public class MetadataRefiner {
 		
 		if( codeContainer.contains( code ) ) {
 			builder = new StringBuilder( 100 ) ;
-			parent = getParent( xo ) ;
-			builder.append( this.configDoc.getOnyxExportConfig().getCodePrefix() ) 
-			       .append( getHigherQualifier( parent ) )
+			builder.append( this.config.getCodePrefix() ) 
+			       .append( context.getParentQualifier() )
 			       .append( '.' )
-			       .append( getName( parent ) )
+			       .append( context.getParentName() )
 			       .append( '.' )
 			       .append( name ) ; 
 			code = builder.toString() ;
@@ -1817,16 +1599,15 @@ public class MetadataRefiner {
 	 * <p/>
 	 * CBO:father_hf_age_cat
 	 * 
-	 * @param xo	The leaf object
+	 * @param context	The context of the leaf object
 	 * @param name	The name of the object
 	 * @param typeEnum The type of the object
 	 * @return		The code as a string
 	 */
-	private String formCodeStrategyTwo( XmlObject xo, String name, Type.Enum typeEnum ) {
+	private String formCodeStrategyTwo( TraversalContext context, String name, Type.Enum typeEnum ) {
 		String code = null ;
 		StringBuilder builder = new StringBuilder( 100 ) ;
-		XmlObject parent = getParent( xo ) ;
-		builder.append( this.configDoc.getOnyxExportConfig().getCodePrefix() ) 
+		builder.append( this.config.getCodePrefix() ) 
 		       .append( name )  ;
 		code = builder.toString() ;
 		
@@ -1836,9 +1617,8 @@ public class MetadataRefiner {
 		
 		if( codeContainer.contains( code ) ) {
 			builder = new StringBuilder( 100 ) ;
-			parent = getParent( xo ) ;
-			builder.append( this.configDoc.getOnyxExportConfig().getCodePrefix() ) 
-			       .append( getHigherQualifier( parent ) )
+			builder.append( this.config.getCodePrefix() ) 
+			       .append( context.getParentQualifier() )
 			       .append( '.' )
 			       .append( name ) ;
 			code = builder.toString() ;
@@ -1860,16 +1640,18 @@ public class MetadataRefiner {
 	}
 	
 	/**
+	 * @param context the context of the current variable
 	 * @return an ontology code for the current variable's parent in string form
 	 */
-	private String formCodeForFolder() {
+	private String formCodeForFolder( TraversalContext context ) {
 		String code = null ;
 		StringBuilder builder = new StringBuilder( 100 ) ;
+		//
+		// The current variable's parent is the parent of its siblings...
+		TraversalContext parent = context.getParent() ;
 		
-		VariableType vt = this.siblingHolder.parent ;
-		
-		builder.append( this.configDoc.getOnyxExportConfig().getCodePrefix() ) 
-		       .append( vt.getName() )  ;
+		builder.append( this.config.getCodePrefix() ) 
+		       .append( parent.getName() )  ;
 		code = builder.toString() ;
 		
 		if( code.length() > 40 ) {
@@ -1878,11 +1660,10 @@ public class MetadataRefiner {
 		
 		if( codeContainer.contains( code ) ) {
 			builder = new StringBuilder( 100 ) ;
-			XmlObject parent = getParent( vt ) ;
-			builder.append( this.configDoc.getOnyxExportConfig().getCodePrefix() ) 
-			       .append( getHigherQualifier( parent ) )
+			builder.append( this.config.getCodePrefix() ) 
+			       .append( parent.getParentQualifier() )
 			       .append( '.' )
-			       .append( vt.getName() ) ;
+			       .append( parent.getName() ) ;
 			code = builder.toString() ;
 		}	
 		
@@ -1939,94 +1720,6 @@ public class MetadataRefiner {
 		return b.toString() ;
 	}
 	
-	/**
-	 * Makeshift utility to extract some higher level qualifier for a code.
-	 * Maybe required to ensure a variable code is unique.
-	 * 
-	 * @param xo Bottom leaf object.
-	 * @return A code qualifier based upon Stage Name or Entity Name.
-	 */
-	private String getHigherQualifier( XmlObject xo ) {
-		XmlCursor cursor = xo.newCursor() ;
-		String name = null ;
-		try {
-			while( cursor.toParent() ) {
-				XmlObject pxo = cursor.getObject() ;
-				if( pxo instanceof StageType ) {
-					name = ((StageType)pxo).getName() ;
-				}
-				else if( pxo instanceof EntityType ) {
-					name = ((EntityType)pxo).getName() ;
-				}
-			}
-			if( name == null ) {
-				return "" ;
-			}
-			StringBuilder b = new StringBuilder() ;
-			for( int i=0; i<name.length(); i++ ) {
-				if( Character.isUpperCase( name.charAt( i ) ) ) {
-					b.append( name.charAt(i) ) ;
-				}
-			}
-			if( b.length() == 0 ) {
-				return new String( new char[] { Character.toUpperCase( name.charAt( 0 ) ) } ) ;
-			}
-			return b.toString() ;
-		}
-		finally {
-			cursor.dispose() ;
-		}
-	}
-	
-	/**
-	 * Utility method for finding the parent of a given object within the DOM.
-	 * 
-	 * @param xo The given object
-	 * @return The parent of the given object
-	 */
-	private XmlObject getParent( XmlObject xo ) {
-		XmlCursor cursor = xo.newCursor() ;
-		try {
-			if( cursor.toParent() ) {
-				return cursor.getObject() ;
-			}
-			return null ;
-		}
-		finally {
-			cursor.dispose() ;
-		}
-	}
-	
-	/**
-	 * Utility method to return the name of a given object.
-	 * If a name cannot be found, returns null and logs an error.
-	 * 
-	 * @param xo
-	 * @return The name of the given object
-	 */
-	private String getName( XmlObject xo ) {
-		if( xo instanceof VariableType ) {
-			return ((VariableType)xo).getName() ;
-		}
-		else if( xo instanceof QuestionType ) {
-			return ((QuestionType)xo).getName() ;
-		}
-		else if( xo instanceof SectionType ) {
-			return ((SectionType)xo).getName() ;
-		}
-		else if( xo instanceof StageType ) {
-			return ((StageType)xo).getName() ;
-		}
-		else if( xo instanceof EntityType ) {
-			return ((EntityType)xo).getName() ;
-		}
-		else if( xo instanceof SourceType ) {
-			return ((SourceType)xo).getName() ;
-		}
-		log.error( "Method getName() misbehaves for object of type " + xo.getClass().getName() + " ***" ) ;
-		return null ;
-	}
-	
 	/**
 	 * Pretty prints the main refined metadata file to standard out.
 	 */
@@ -2150,9 +1843,13 @@ public class MetadataRefiner {
 		
 		//
 		// Bail out if no files exist...
-		this.fileNames = inputDirectory.list() ;
-		if( fileNames.length == 0 ) {
-			throw new MetadataRefinerException( "Input directory is empty." ) ;
+		try {
+			if( ExportDirectoryScanner.isEmpty( inputDirectory ) ) {
+				throw new MetadataRefinerException( "Input directory is empty." ) ;
+			}
+		}
+		catch( IOException iox ) {
+			throw new MetadataRefinerException( "Input directory cannot be read: [" + inDirectoryPath + "]", iox ) ;
 		}
 		
 		//
@@ -2167,48 +1864,18 @@ public class MetadataRefiner {
 		}
 		
 		//
-		// Retrieve data from the config file...
-		
-		//
-		// Give the ontology a name...
-		this.containerDoc.addNewContainer().setName( configDoc.getOnyxExportConfig().getOntologyPhase().getOntologyRootName() ) ;
-		
-		//
-		// Ethnic codes plus the questionnaire variable name...
-		this.ethnicityVariableName = configDoc.getOnyxExportConfig().getOntologyPhase().getEthnicity().getVariableName() ;
-		this.ethnicCodes = configDoc.getOnyxExportConfig().getOntologyPhase().getEthnicity().getCodeArray() ;
-		//
-		// Standard boolean values assumed within the questionnaire...
-		this.standardBooleans = configDoc.getOnyxExportConfig().getOntologyPhase().getStandardBooleans().getValueArray() ;	
-		//
-		// The (sub-)questionnaires to be excluded...
-		FilterType[] qta = configDoc.getOnyxExportConfig().getOntologyPhase().getQuestionnaires().getFilterArray() ;
-		//Jeff
-		this.questionnaireFilters = new HashMap<String, FilterType>() ;
-		for( FilterType filter : qta ) {
-			questionnaireFilters.put( filter.getQuestionnaire(), filter ) ;
-			//
-			// Some questionnaires may have an "alternative" internal/external name
-			// (eg: Participants and Participant)...
-			if( filter.isSetAlternateName() ) {
-				questionnaireFilters.put( filter.getAlternateName(), filter ) ;
-			}
-		}
+		// Compile what we use of the config file...
+		this.config = new RefinerConfig( configDoc ) ;
 		if( log.isDebugEnabled() ) {
-			Set<String> keys = questionnaireFilters.keySet() ;
-			Iterator it = keys.iterator() ;
+			Iterator<String> it = config.getFilteredQuestionnaires().iterator() ;
 			while( it.hasNext() ) {
 				log.debug( it.next() ) ;
 			}
 		}
-
+		
 		//
-		// All the enumerated types, which are place in a linked hash map...
-		EnumType[] ets = configDoc.getOnyxExportConfig().getOntologyPhase().getEnumeratedConcepts().getEnumArray() ;
-		this.enumerations = new LinkedHashMap<String,EnumType>() ;
-		for( EnumType enumType : ets ) {
-			this.enumerations.put( enumType.getName(), enumType ) ;
-		}
+		// Give the ontology a name...
+		this.containerDoc.addNewContainer().setName( config.getOntologyRootName() ) ;
 				
 		//
 		// If provided, vet output directories for non existence...
@@ -2380,7 +2047,7 @@ public class MetadataRefiner {
     	}
     }
     
-    public class MetadataRefinerException extends Exception {
+    public static class MetadataRefinerException extends Exception {
     	
 		private static final long serialVersionUID = 1L;
 
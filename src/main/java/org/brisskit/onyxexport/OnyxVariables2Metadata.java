@@ -5,10 +5,20 @@ package org.brisskit.onyxexport;
 
 import java.io.File ;
 import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.logging.Log ;
 import org.apache.commons.logging.LogFactory ;
@@ -27,13 +37,29 @@ public class OnyxVariables2Metadata {
 	private static final String USAGE =
         "Usage: OnyxVariables2Metadata {Parameters}\n" +       
         "Parameters:\n" +
-        " -input=path-to-onyx-export-directory\n" +
+        " -input=path-to-onyx-export-directory-or-zip\n" +
         " -output=path-to-working-directory\n" +
+        " -threads=number-of-worker-threads\n" +
+        " -reader=dom|stream\n" +
+        " -format=xml|binary\n" +
         "Notes:\n" +
-        " (1) Parameter triggers can be shortened to the first letter; ie: -i,-o.\n" +
+        " (1) Parameter triggers can be shortened to the first letter; ie: -i,-o,-t,-r,-f.\n" +
         " (2) The input parameter is the only mandatory one.\n" +
         " (3) If the output path parameter is omitted, output is directed to standard out.\n" +
-        " (4) If the output path parameter is provided, the working directory must not exist." ;
+        " (4) If the output path parameter is provided, the working directory must not exist.\n" +
+        " (5) An export held as a zip is read entry by entry without being extracted to disk;\n" +
+        "     each questionnaire's variables.xml is parsed straight from the zip.\n" +
+        " (6) Threads defaults to 1. With more, questionnaires are processed in parallel,\n" +
+        "     largest variables file first; output is identical to that of a single thread.\n" +
+        "     (An export held as a zip is always processed on a single thread.)\n" +
+        " (7) Reader defaults to dom, which parses each variables file whole with XmlBeans.\n" +
+        "     With stream, variables are read one at a time with StAX into compact records\n" +
+        "     and grouped into questions as they are read; each question's metadata is built\n" +
+        "     as it closes, so no XmlBeans document of the variables is built and no record\n" +
+        "     outlives its question. Output is identical.\n" +
+        " (8) Format defaults to xml. With binary, each output file is written in a compact\n" +
+        "     binary form (extension .bin) that MetadataRefiner loads without parsing XML.\n" +
+        "     Output directed to standard out is always xml." ;
 	
 	private static Log log = LogFactory.getLog( OnyxVariables2Metadata.class ) ;
 		
@@ -41,11 +67,22 @@ public class OnyxVariables2Metadata {
 	
     private static String inDirectoryPath = null ;
     private static String outDirectoryPath = null ;
+    private static int threads = 1 ;
+    private static boolean streamReader = false ;
+    private static boolean binaryFormat = false ;
 
-	private VariablesDocument varDoc ;
+	private String stageName = null ;
+	private String entityName = null ;
 	private Source source = null  ;
 	
-	private static StringBuffer logIndent = null ;
+	//
+	// Questionnaires may be converted on several worker threads, each with its own trace indent...
+	private static final ThreadLocal<StringBuilder> logIndent = new ThreadLocal<StringBuilder>() {
+		@Override
+		protected StringBuilder initialValue() {
+			return new StringBuilder() ;
+		}
+	} ;
 
 	/**
 	 * @param args
@@ -65,12 +102,20 @@ public class OnyxVariables2Metadata {
 			System.out.println( "Input directory does not exist: [" + inDirectoryPath + "]" ) ; 
 			System.exit(1) ;
 		}		
-		String[] fileNames = inputDirectory.list() ;
 		//
 		// Bail out if no files exist...
-		if( fileNames.length == 0 ) {
-			System.out.println( "Input directory is empty." ) ;
-			System.exit(1) ;
+		// (An export held as a zip is checked as it is read)...
+		if( !ExportZipReader.isZip( inputDirectory ) ) {
+			try {
+				if( ExportDirectoryScanner.isEmpty( inputDirectory ) ) {
+					System.out.println( "Input directory is empty." ) ;
+					System.exit(1) ;
+				}
+			}
+			catch( IOException iox ) {
+				System.out.println( "Input directory cannot be read: " + iox.getLocalizedMessage() ) ;
+				System.exit(1) ;
+			}
 		}
 		//
 		// If provided, vet output directory for non existence...
@@ -84,44 +129,198 @@ public class OnyxVariables2Metadata {
 			outputDirectory.mkdirs() ;
 		}
 		//
+		// Process an export held as a zip...
+		if( ExportZipReader.isZip( inputDirectory ) ) {
+			processZip( inputDirectory, outputDirectory ) ;
+		}
+		//
+		// Process the input directory in parallel...
+		if( threads > 1 ) {
+			processInParallel( inputDirectory, outputDirectory ) ;
+		}
+		//
 		// Process the input directory...
-		for( int i=0; i<fileNames.length; i++ ) {
-			
-			File candidateQuestionnaireDirectory = new File( inputDirectory.getAbsolutePath(), fileNames[i] ) ;
-			//
-			// Bypass hidden directories or those beginning with a dot.
-			// (Useful in development when .svn directories can get in the way)... 
-			if( candidateQuestionnaireDirectory.isHidden() || candidateQuestionnaireDirectory.getName().startsWith( ".") ) {
-				continue ;
-			}
-			//
-			// Everything at the top level to be processed is a directory...
-			if( candidateQuestionnaireDirectory.isDirectory() ) {
+		// (The scanner bypasses hidden directories and anything that is not a directory)...
+		DirectoryStream<Path> questionnaireDirectories = null ;
+		try {
+			questionnaireDirectories = ExportDirectoryScanner.questionnaireDirectories( inputDirectory ) ;
+			for( Path path : questionnaireDirectories ) {
+				File candidateQuestionnaireDirectory = path.toFile() ;
 				//
 				// For any given questionnaire directory, retrieve the variables file...
-				File variablesFile = new File(  candidateQuestionnaireDirectory.getAbsolutePath(), "variables.xml" ) ;			
+				File variablesFile = new File(  candidateQuestionnaireDirectory.getAbsolutePath(), ExportDirectoryScanner.VARIABLES_FILE_NAME ) ;			
 				System.out.println( "OnyxVariables2Metadata processing: " + variablesFile.getAbsolutePath() ) ;
+				OnyxVariables2Metadata v2m = OnyxVariables2Metadata.Factory.newInstance( variablesFile ) ;
+				v2m.exec() ;
+				//
+				// Print to standard out if no output directory was supplied...
+				if( outputDirectory == null ) {
+					v2m.print() ;
+				}
+				else {					
+					v2m.save( outputDirectory + File.separator + outputFileName( candidateQuestionnaireDirectory.getName() ) );
+				}					
+			}
+		}
+		//
+		// Catch all exceptions...
+		catch( Exception ex ) {
+			ex.printStackTrace() ; 
+			System.exit(1) ;
+		}
+		finally {
+			if( questionnaireDirectories != null ) {
 				try {
-					OnyxVariables2Metadata v2m = OnyxVariables2Metadata.Factory.newInstance( variablesFile ) ;
-					v2m.exec() ;
-					//
-					// Print to standard out if no output directory was supplied...
-					if( outputDirectory == null ) {
-						v2m.print() ;
+					questionnaireDirectories.close() ;
+				}
+				catch( IOException iox ) {
+					log.debug( "Failed to close directory stream: " + iox.getLocalizedMessage() ) ;
+				}
+			}
+		}
+		//
+		// We appear to have been successful...
+		System.out.println( "OnyxVariables2Metadata: Done!" ) ;	
+		System.exit(0) ;
+	}
+
+	/**
+	 * Processes the questionnaire directories on a pool of worker threads, then exits. <br/>
+	 * <br/>
+	 * Each questionnaire is independent of the others. Work is queued largest variables file first,
+	 * so that one big questionnaire does not hold up the end of the run. Output files are saved by
+	 * the workers. Everything written to standard out is written by this thread in directory order,
+	 * waiting for each questionnaire in turn, so the output is identical to that of a single thread.
+	 * 
+	 * @param inputDirectory
+	 * @param outputDirectory output directory, or null for standard out
+	 */
+	private static void processInParallel( File inputDirectory, final File outputDirectory ) {
+		ExecutorService executor = Executors.newFixedThreadPool( threads ) ;
+		try {
+			//
+			// Gather the questionnaire directories in directory order...
+			final ArrayList<File> variablesFiles = new ArrayList<File>() ;
+			DirectoryStream<Path> questionnaireDirectories = ExportDirectoryScanner.questionnaireDirectories( inputDirectory ) ;
+			try {
+				for( Path path : questionnaireDirectories ) {
+					variablesFiles.add( new File( path.toFile().getAbsolutePath(), ExportDirectoryScanner.VARIABLES_FILE_NAME ) ) ;
+				}
+			}
+			finally {
+				questionnaireDirectories.close() ;
+			}
+			//
+			// Queue the work largest first...
+			Integer[] bySize = new Integer[ variablesFiles.size() ] ;
+			for( int i=0; i<bySize.length; i++ ) {
+				bySize[i] = i ;
+			}
+			Arrays.sort( bySize, new Comparator<Integer>() {
+				public int compare( Integer a, Integer b ) {
+					long la = variablesFiles.get( a ).length() ;
+					long lb = variablesFiles.get( b ).length() ;
+					return ( la > lb ? -1 : ( la < lb ? 1 : a.compareTo( b ) ) ) ;
+				}
+			} ) ;
+			ArrayList<Future<OnyxVariables2Metadata>> results = new ArrayList<Future<OnyxVariables2Metadata>>( Collections.<Future<OnyxVariables2Metadata>>nCopies( bySize.length, null ) ) ;
+			for( int i=0; i<bySize.length; i++ ) {
+				final File variablesFile = variablesFiles.get( bySize[i] ) ;
+				results.set( bySize[i], executor.submit( new Callable<OnyxVariables2Metadata>() {
+					public OnyxVariables2Metadata call() throws Exception {
+						OnyxVariables2Metadata v2m = OnyxVariables2Metadata.Factory.newInstance( variablesFile ) ;
+						v2m.exec() ;
+						if( outputDirectory != null ) {
+							v2m.save( outputDirectory + File.separator + outputFileName( variablesFile.getParentFile().getName() ) ) ;
+						}
+						return v2m ;
 					}
-					else {					
-						v2m.save( outputDirectory + File.separator + fileNames[i] + ".xml" );
-					}					
+				} ) ) ;
+			}
+			//
+			// Report in directory order...
+			for( int i=0; i<variablesFiles.size(); i++ ) {
+				System.out.println( "OnyxVariables2Metadata processing: " + variablesFiles.get( i ).getAbsolutePath() ) ;
+				OnyxVariables2Metadata v2m = results.get( i ).get() ;
+				results.set( i, null ) ;
+				//
+				// Print to standard out if no output directory was supplied...
+				if( outputDirectory == null ) {
+					v2m.print() ;
 				}
+			}
+		}
+		//
+		// Catch all exceptions...
+		catch( ExecutionException eex ) {
+			eex.getCause().printStackTrace() ; 
+			System.exit(1) ;
+		}
+		catch( Exception ex ) {
+			ex.printStackTrace() ; 
+			System.exit(1) ;
+		}
+		finally {
+			executor.shutdownNow() ;
+		}
+		//
+		// We appear to have been successful...
+		System.out.println( "OnyxVariables2Metadata: Done!" ) ;	
+		System.exit(0) ;
+	}
+
+	/**
+	 * Processes each questionnaire's variables file straight from an export held as a zip, then exits.
+	 * 
+	 * @param inputZip
+	 * @param outputDirectory output directory, or null for standard out
+	 */
+	private static void processZip( File inputZip, File outputDirectory ) {
+		int count = 0 ;
+		ExportZipReader reader = null ;
+		try {
+			reader = new ExportZipReader( inputZip ) ;
+			while( reader.nextEntry() != null ) {
+				if( !reader.isVariablesFile() ) {
+					continue ;
+				}
+				System.out.println( "OnyxVariables2Metadata processing: " + inputZip.getAbsolutePath() + "!" + reader.getEntry().getName() ) ;
+				OnyxVariables2Metadata v2m = OnyxVariables2Metadata.Factory.newInstance( reader.getInputStream(), reader.getAliases(), streamReader ) ;
+				v2m.exec() ;
 				//
-				// Catch all exceptions...
-				catch( Exception ex ) {
-					ex.printStackTrace() ; 
-					System.exit(1) ;
+				// Print to standard out if no output directory was supplied...
+				if( outputDirectory == null ) {
+					v2m.print() ;
+				}
+				else {					
+					v2m.save( outputDirectory + File.separator + outputFileName( reader.getQuestionnaire() ) );
 				}
+				count++ ;
 			}
 		}
 		//
+		// Catch all exceptions...
+		catch( Exception ex ) {
+			ex.printStackTrace() ; 
+			System.exit(1) ;
+		}
+		finally {
+			if( reader != null ) {
+				try {
+					reader.close() ;
+				}
+				catch( IOException iox ) {
+					log.debug( "Failed to close zip: " + iox.getLocalizedMessage() ) ;
+				}
+			}
+		}
+		//
+		// Bail out if no files exist...
+		if( count == 0 ) {
+			System.out.println( "Input zip holds no variables files." ) ;
+			System.exit(1) ;
+		}
+		//
 		// We appear to have been successful...
 		System.out.println( "OnyxVariables2Metadata: Done!" ) ;	
 		System.exit(0) ;
@@ -129,22 +328,131 @@ public class OnyxVariables2Metadata {
 
 	private OnyxVariables2Metadata() {}
 	
+	/**
+	 * Converts one questionnaire of an export into stage one metadata, in memory,
+	 * reading the variables file into an XmlBeans document. <br/>
+	 * <br/>
+	 * Unlike main(), nothing is printed, nothing is written to disk and the JVM is never exited,
+	 * so this may be called repeatedly from a long running process. Each call is independent
+	 * of any other, and of the settings given to main().
+	 * 
+	 * @param questionnaireDirectory directory holding the questionnaire's variables file
+	 * @return the stage one metadata
+	 * @throws OnyxVariables2MetadataException if the directory or its variables file is missing, 
+	 *         cannot be read, cannot be parsed or cannot be converted
+	 */
+	public static SourceDocument convert( File questionnaireDirectory ) throws OnyxVariables2MetadataException {
+		return convert( questionnaireDirectory, false ) ;
+	}
+	
+	/**
+	 * As {@link #convert(File)}, with the choice of reader.
+	 * 
+	 * @param questionnaireDirectory directory holding the questionnaire's variables file
+	 * @param streamReader true to read variables one at a time as they are streamed, 
+	 *        false to read the file into an XmlBeans document
+	 * @return the stage one metadata
+	 * @throws OnyxVariables2MetadataException if the directory or its variables file is missing, 
+	 *         cannot be read, cannot be parsed or cannot be converted
+	 */
+	public static SourceDocument convert( File questionnaireDirectory, boolean streamReader ) throws OnyxVariables2MetadataException {
+		if( !questionnaireDirectory.isDirectory() ) {
+			throw new OnyxVariables2MetadataException( "Questionnaire directory does not exist: [" + questionnaireDirectory + "]" ) ;
+		}
+		File variablesFile = new File( questionnaireDirectory, ExportDirectoryScanner.VARIABLES_FILE_NAME ) ;
+		if( !variablesFile.isFile() ) {
+			throw new OnyxVariables2MetadataException( "Variables file does not exist: [" + variablesFile + "]" ) ;
+		}
+		try {
+			return convert( OnyxVariables2Metadata.Factory.newInstance( variablesFile, streamReader ) ) ;
+		}
+		catch( XmlException xmlx ) {
+			throw new OnyxVariables2MetadataException( "Variables file cannot be parsed: [" + variablesFile + "]", xmlx ) ;
+		}
+		catch( IOException iox ) {
+			throw new OnyxVariables2MetadataException( "Variables file cannot be read: [" + variablesFile + "]", iox ) ;
+		}
+		catch( RuntimeException rx ) {
+			throw new OnyxVariables2MetadataException( "Variables file cannot be converted: [" + variablesFile + "]", rx ) ;
+		}
+	}
+	
+	/**
+	 * Converts a variables file held in a stream into stage one metadata, in memory,
+	 * reading it into an XmlBeans document. The stream is not closed. 
+	 * No variable name corrections are applied.
+	 * 
+	 * @param in the content of a variables file
+	 * @return the stage one metadata
+	 * @throws OnyxVariables2MetadataException if the stream cannot be read, parsed or converted
+	 * @see #convert(File)
+	 */
+	public static SourceDocument convert( java.io.InputStream in ) throws OnyxVariables2MetadataException {
+		return convert( in, new VariableAliases(), false ) ;
+	}
+	
+	/**
+	 * Converts a variables file held in a stream into stage one metadata, in memory,
+	 * applying the given variable name corrections. The stream is not closed.
+	 * 
+	 * @param in the content of a variables file
+	 * @param aliases the corrections for the questionnaire; eg: from {@link ExportZipReader#getAliases()}
+	 * @param streamReader true to read variables one at a time as they are streamed, 
+	 *        false to read the stream into an XmlBeans document
+	 * @return the stage one metadata
+	 * @throws OnyxVariables2MetadataException if the stream cannot be read, parsed or converted
+	 */
+	public static SourceDocument convert( java.io.InputStream in, VariableAliases aliases, boolean streamReader ) throws OnyxVariables2MetadataException {
+		try {
+			return convert( OnyxVariables2Metadata.Factory.newInstance( in, aliases, streamReader ) ) ;
+		}
+		catch( XmlException xmlx ) {
+			throw new OnyxVariables2MetadataException( "Variables stream cannot be parsed.", xmlx ) ;
+		}
+		catch( IOException iox ) {
+			throw new OnyxVariables2MetadataException( "Variables stream cannot be read.", iox ) ;
+		}
+		catch( RuntimeException rx ) {
+			throw new OnyxVariables2MetadataException( "Variables stream cannot be converted.", rx ) ;
+		}
+	}
+	
+	private static SourceDocument convert( OnyxVariables2Metadata v2m ) {
+		v2m.exec() ;
+		return v2m.getSourceDocument() ;
+	}
+	
 	public void exec() {
 		if( log.isTraceEnabled() ) enterTrace( "exec" ) ;
 			this.source.process() ;
 		if( log.isTraceEnabled() ) exitTrace( "exec" ) ;
 	}	
 	
+	/**
+	 * @return the stage one metadata (complete once exec() has been called)
+	 */
+	public SourceDocument getSourceDocument() {
+		return source.sourceDocument ;
+	}
+	
 	public void print() {
 		XmlOptions opts = getSaveOptions() ;
 		System.out.println( source.sourceDocument.xmlText(opts) ) ;
 	}
 	
 	public void save( String fullPath ) throws IOException {
+		if( binaryFormat ) {
+			BinaryMetadataCodec.save( source.sourceDocument, new File( fullPath ) ) ;
+			return ;
+		}
 		XmlOptions opts = getSaveOptions() ;
 		source.sourceDocument.save( new File( fullPath ), opts ) ;
 	}	
 	
+	private static String outputFileName( String name ) {
+		return name + ( binaryFormat ? ".bin" : ".xml" ) ;
+	}
+	
     /**
      * Returns the <code>XmlOptions</code> required to produce
      * a text representation of the emitted XML.
@@ -199,276 +507,560 @@ public class OnyxVariables2Metadata {
      * @see        org.astrogrid.AdqlParser#indentPlus()
      */
     public static void indentMinus() {
-        if( logIndent.length() > 0 ) {
-            getIndent().deleteCharAt( logIndent.length()-1 ) ;
+    	StringBuilder indent = getIndent() ;
+        if( indent.length() > 0 ) {
+            indent.deleteCharAt( indent.length()-1 ) ;
         }
 	}
 	
     /**
      * Utility method used for indenting the structured trace log.
+     * The indent belongs to the calling thread.
      */
-    public static StringBuffer getIndent() {
-	    if( logIndent == null ) {
-	       logIndent = new StringBuffer() ;	
-	    }
-	    return logIndent ;	
+    public static StringBuilder getIndent() {
+	    return logIndent.get() ;	
 	}
     
     private static void resetIndent() {
-        if( logIndent != null ) { 
-            if( logIndent.length() > 0 ) {
-               logIndent.delete( 0, logIndent.length() )  ;
-            }
-        }   
+        getIndent().setLength( 0 ) ;
     }
 
+	/**
+	 * Raised by the in-memory conversions when a questionnaire cannot be converted.
+	 */
+	public static class OnyxVariables2MetadataException extends Exception {
+		
+		private static final long serialVersionUID = 1L;
+
+		public OnyxVariables2MetadataException(String message, Throwable cause) {
+			super(message, cause);
+		}
+
+		public OnyxVariables2MetadataException(String message) {
+			super(message);
+		}
+		
+	}
+
 	public static final class Factory {
 
+		/**
+		 * Parses a variables file with the reader chosen on the command line.
+		 */
 		public static OnyxVariables2Metadata newInstance( java.io.File file ) throws org.apache.xmlbeans.XmlException, java.io.IOException {
+			return newInstance( file, streamReader ) ;
+		}
+		
+		/**
+		 * Parses a variables file, applying any variable name corrections held alongside it.
+		 * 
+		 * @param file
+		 * @param stream true to stream the file, false to read it into an XmlBeans document
+		 */
+		public static OnyxVariables2Metadata newInstance( java.io.File file, boolean stream ) throws org.apache.xmlbeans.XmlException, java.io.IOException {
 			if( log.isTraceEnabled() ) enterTrace( "Factory.newInstance" ) ;
-			OnyxVariables2Metadata v2m = new OnyxVariables2Metadata() ;
-			v2m.varDoc = VariablesDocument.Factory.parse( file ) ;
+			if( stream ) {
+				OnyxVariables2Metadata v2m = newInstance( file, VariableAliases.load( file.getParentFile() ) ) ;
+				if( log.isTraceEnabled() ) exitTrace( "Factory.newInstance" ) ;
+				return v2m ;
+			}
+			VariablesDocument varDoc = VariablesDocument.Factory.parse( file ) ;
 			log.debug( "File parsed successfully." ) ;
-			divideVariablesIntoCollections( v2m ) ;	
+			//
+			// Apply any variable name corrections recorded for this questionnaire...
+			VariableAliases.load( file.getParentFile() ).apply( varDoc ) ;
+			OnyxVariables2Metadata v2m = newInstance( varDoc ) ;	
 			if( log.isTraceEnabled() ) exitTrace( "Factory.newInstance" ) ;
 			return v2m ; 
 		}
 		
-		private static void divideVariablesIntoCollections( OnyxVariables2Metadata v2m ) {	
-			if( log.isTraceEnabled() ) enterTrace( "Factory.divideVariablesIntoCollections" ) ;
-			if( isStage( v2m) ) {
-				newStage( v2m ) ;
+		/**
+		 * Parses a variables file from a stream, with the reader chosen on the command line; 
+		 * eg: an entry within an export held as a zip.
+		 * The stream is not closed. No variable name corrections are applied.
+		 */
+		public static OnyxVariables2Metadata newInstance( java.io.InputStream in ) throws org.apache.xmlbeans.XmlException, java.io.IOException {
+			return newInstance( in, new VariableAliases(), streamReader ) ;
+		}
+		
+		/**
+		 * Parses a variables file from a stream, applying the given variable name corrections.
+		 * The stream is not closed.
+		 * 
+		 * @param in
+		 * @param aliases
+		 * @param stream true to stream the variables, false to read them into an XmlBeans document
+		 */
+		public static OnyxVariables2Metadata newInstance( java.io.InputStream in, VariableAliases aliases, boolean stream ) throws org.apache.xmlbeans.XmlException, java.io.IOException {
+			if( log.isTraceEnabled() ) enterTrace( "Factory.newInstance(InputStream)" ) ;
+			if( stream ) {
+				OnyxVariables2Metadata v2m = stream( in, aliases ) ;
+				if( log.isTraceEnabled() ) exitTrace( "Factory.newInstance(InputStream)" ) ;
+				return v2m ;
 			}
-			else {
-				newEntity( v2m ) ;
+			VariablesDocument varDoc = VariablesDocument.Factory.parse( in ) ;
+			log.debug( "Stream parsed successfully." ) ;
+			aliases.apply( varDoc ) ;
+			OnyxVariables2Metadata v2m = newInstance( varDoc ) ;	
+			if( log.isTraceEnabled() ) exitTrace( "Factory.newInstance(InputStream)" ) ;
+			return v2m ; 
+		}
+		
+		private static OnyxVariables2Metadata newInstance( VariablesDocument varDoc ) {
+			//
+			// One pass over the document turns each variable into a record, 
+			// against which all the grouping logic runs (the document itself is not retained)...
+			VariableIndex variables = VariableIndex.newInstance( varDoc ) ;
+			VariableDivider divider = new VariableDivider() ;
+			for( int i=0; i<variables.size(); i++ ) {
+				divider.variable( variables.get( i ) ) ;
+			}
+			return divider.finish() ;
+		}
+		
+		private static OnyxVariables2Metadata newInstance( java.io.File file, VariableAliases aliases ) throws org.apache.xmlbeans.XmlException, java.io.IOException {
+			java.io.InputStream in = new java.io.BufferedInputStream( new java.io.FileInputStream( file ) ) ;
+			try {
+				OnyxVariables2Metadata v2m = stream( in, aliases ) ;
+				log.debug( "File streamed successfully." ) ;
+				return v2m ;
+			}
+			finally {
+				in.close() ;
 			}
-			if( log.isTraceEnabled() ) exitTrace( "Factory.divideVariablesIntoCollections" ) ;
 		}
 		
 		/**
-		 *  
-		 * @return true if this is a stage.
+		 * Reads variables one at a time into records; no XmlBeans document is built.
+		 * Each record is divided into its collection as soon as it has been read.
+		 * A malformed file is reported as XmlBeans would report it.
 		 */
-		private static boolean isStage( OnyxVariables2Metadata v2m) {
-			return ( getStageName( v2m ) == null ? false : true ) ;
+		private static OnyxVariables2Metadata stream( java.io.InputStream in, VariableAliases aliases ) throws org.apache.xmlbeans.XmlException {
+			VariableDivider divider = new VariableDivider() ;
+			try {
+				new VariablesStreamReader( aliases ).read( in, divider ) ;
+			}
+			catch( javax.xml.stream.XMLStreamException xsx ) {
+				throw new org.apache.xmlbeans.XmlException( xsx.getMessage(), xsx ) ;
+			}
+			return divider.finish() ;
 		}
 		
 		/**
-		 * 
 		 * If any variable within the file has an attribute of "stage"
 		 * Then its stage value is assumed to be the stage name.
 		 *  
 		 * @return Stage name or null
 		 */
 		private static String getStageName( OnyxVariables2Metadata v2m ) {
-			VariableType[] vta = v2m.varDoc.getVariables().getVariableArray() ;
-			for( int i=0; i<vta.length; i++ ) {
-				if( vta[i].isSetAttributes() ) {
-					AttributeType[] ata = vta[i].getAttributes().getAttributeArray() ;
-					for( int j=0; j<ata.length; j++ ) {
-						if( ata[j].getName().equalsIgnoreCase( "stage" ) ) {
-							return ata[j].getStringValue() ;
-						}
+			return v2m.stageName ;
+		}
+		
+		/**
+		 * Divides variables one at a time, in document order, as they are read, building the metadata
+		 * for each as soon as it can be placed. <br/>
+		 * <br/>
+		 * What kind of source the file describes is settled by facts gathered along the way:
+		 * <p><blockquote><pre>
+		 *     stage name         : the stage attribute of the first variable that has one
+		 *     questionnaire name : the questionnaire attribute of the first variable
+		 *     entity name        : the entity type of the first variable that has one
+		 * </pre></blockquote><p>
+		 * A stage with a questionnaire name is a questionnaire. Its non-question variables are built
+		 * into the stage as they arrive, and every variable is fed to a {@link QuestionGrouper}, 
+		 * which holds only the question being gathered and hands it over to be built as it closes.
+		 * A stage without a questionnaire name, or an entity, builds every variable into its 
+		 * structured variables as it arrives. <br/>
+		 * <br/>
+		 * Records are only held whilst the kind of source is unknown; for a questionnaire,
+		 * until the first stage attribute has been seen. Otherwise none outlives its question.
+		 */
+		private static class VariableDivider implements VariablesStreamReader.Sink {
+			
+			private final OnyxVariables2Metadata v2m = new OnyxVariables2Metadata() ;
+			private final QuestionSink questionSink ;
+			private final ArrayList<VariableRecord> held = new ArrayList<VariableRecord>() ;
+			private final StructuredVariables structured = v2m.new StructuredVariables() ;
+			private boolean first = true ;
+			private String questionnaireName = null ;
+			private QuestionnaireStage questionnaire = null ;
+			private QuestionGrouper grouper = null ;
+			
+			/**
+			 * Builds each question into the questionnaire's metadata.
+			 */
+			VariableDivider() {
+				this( null ) ;
+			}
+			
+			/**
+			 * @param questionSink receives each question as it closes instead of the questionnaire
+			 */
+			VariableDivider( QuestionSink questionSink ) {
+				this.questionSink = questionSink ;
+			}
+			
+			public void variable( VariableRecord vr ) {
+				if( first ) {
+					questionnaireName = vr.getAttribute( "questionnaire" ) ;
+					first = false ;
+				}
+				if( v2m.stageName == null ) {
+					v2m.stageName = vr.getAttribute( "stage" ) ;
+				}
+				if( v2m.entityName == null ) {
+					v2m.entityName = vr.entityType ;
+				}
+				if( grouper != null ) {
+					divide( vr ) ;
+				}
+				else if( questionnaireName == null ) {
+					structured.add( vr ) ;
+				}
+				else {
+					held.add( vr ) ;
+					if( v2m.stageName != null ) {
+						newQuestionnaire() ;
 					}
 				}
 			}
-			return null ;
-		}
-		
-		private static void newStage( OnyxVariables2Metadata v2m ) {
-			if( log.isTraceEnabled() ) enterTrace( "Factory.newStage" ) ;
-			if( isQuestionnaire( v2m) ) {
-				newQuestionnaire( v2m ) ;
+			
+			/**
+			 * @return the divided variables, once the last variable has been read
+			 */
+			public OnyxVariables2Metadata finish() {
+				if( log.isTraceEnabled() ) enterTrace( "Factory.VariableDivider.finish" ) ;
+				if( grouper != null ) {
+					grouper.finish() ;
+				}
+				else {
+					for( int i=0; i<held.size(); i++ ) {
+						structured.add( held.get( i ) ) ;
+					}
+					held.clear() ;
+					if( v2m.stageName != null ) {
+						v2m.source = v2m.new NonQuestionnaireStage( SOURCE, structured ) ;
+					}
+					else {
+						v2m.source = v2m.new Entity( SOURCE, structured ) ;
+					}
+				}
+				if( log.isTraceEnabled() ) exitTrace( "Factory.VariableDivider.finish" ) ;
+				return v2m ;
 			}
-			else {
-				newNonQuestionnaire( v2m ) ;
+			
+			private void newQuestionnaire() {
+				if( log.isTraceEnabled() ) enterTrace( "Factory.VariableDivider.newQuestionnaire" ) ;
+				questionnaire = v2m.new QuestionnaireStage( SOURCE ) ;
+				v2m.source = questionnaire ;
+				grouper = new QuestionGrouper( v2m, ( questionSink == null ? questionnaire : questionSink ) ) ;
+				for( int i=0; i<held.size(); i++ ) {
+					divide( held.get( i ) ) ;
+				}
+				held.clear() ;
+				if( log.isTraceEnabled() ) exitTrace( "Factory.VariableDivider.newQuestionnaire" ) ;
+			}
+			
+			private void divide( VariableRecord vr ) {
+				if( !isQuestion( vr ) ) {
+					questionnaire.nonQuestionVariable( vr ) ;
+				}
+				//
+				// The grouper sees every variable, so that a section change is judged
+				// against the variable immediately before...
+				grouper.variable( vr ) ;
 			}
-			if( log.isTraceEnabled() ) exitTrace( "Factory.newStage" ) ;
+			
 		}
 		
-		private static void newNonQuestionnaire( OnyxVariables2Metadata v2m ) {
-			if( log.isTraceEnabled() ) enterTrace( "Factory.newNonQuestionnaire" ) ;
-			v2m.source = v2m.new NonQuestionnaireStage( SOURCE ) ;
-
-			VariableType[] vta = v2m.varDoc.getVariables().getVariableArray() ;
-			for( int i=0; i<vta.length; i++ ) {
-				v2m.source.nqv.variables.add( vta[i] ) ;
-			}	
-			if( log.isTraceEnabled() ) exitTrace( "Factory.newNonQuestionnaire" ) ;
-		}
-		
-		private static void newQuestionnaire( OnyxVariables2Metadata v2m ) {
-			if( log.isTraceEnabled() ) enterTrace( "Factory.newQuestionnaire" ) ;
-			v2m.source = v2m.new QuestionnaireStage( SOURCE ) ;
-			gatherNonQuestionVariables( v2m ) ;
-			gatherQuestionVariables( v2m ) ;
-			if( log.isTraceEnabled() ) exitTrace( "Factory.newQuestionnaire" ) ;
-		}
-		
-		private static void gatherNonQuestionVariables( OnyxVariables2Metadata v2m ) {
-			if( log.isTraceEnabled() ) enterTrace( "Factory.gatherNonQuestionVariables" ) ;
-			VariableType[] vta = v2m.varDoc.getVariables().getVariableArray() ;
-			for( int i=0; i<vta.length; i++ ) {
-				if( !isQuestion( vta[i] ) ) {
-					v2m.source.nqv.variables.add( vta[i] ) ;
-				}			
+		/**
+		 * Divides the given variables and describes each question they are grouped into,
+		 * by the names of its variables: 
+		 * <p><blockquote><pre>
+		 *     S[a,a.Y]             : a singleton question
+		 *     P[b][c,c.N][d]       : a parent question, followed by each of its child questions
+		 *     K[][e][f]            : a kludged question (which has no variables of its own)
+		 * </pre></blockquote><p>
+		 * Package visible so that tests can compare groupings without building any metadata.
+		 * 
+		 * @param records the variables of a questionnaire, in document order
+		 * @return one description per question, in order; empty if the variables are not a questionnaire's
+		 */
+		static List<String> describeQuestions( List<VariableRecord> records ) {
+			final ArrayList<String> descriptions = new ArrayList<String>() ;
+			VariableDivider divider = new VariableDivider( new QuestionSink() {
+				public void question( Question q ) {
+					StringBuilder b = new StringBuilder() ;
+					if( q instanceof ParentQuestion ) {
+						b.append( q instanceof KludgeQuestion ? 'K' : 'P' ) ;
+						describe( q.variables, b ) ;
+						Iterator<ChildQuestion> cit = ((ParentQuestion)q).children.iterator() ;
+						while( cit.hasNext() ) {
+							describe( cit.next().variables, b ) ;
+						}
+					}
+					else {
+						b.append( 'S' ) ;
+						describe( q.variables, b ) ;
+					}
+					descriptions.add( b.toString() ) ;
+				}
+			} ) ;
+			for( int i=0; i<records.size(); i++ ) {
+				divider.variable( records.get( i ) ) ;
 			}
-			if( log.isTraceEnabled() ) exitTrace( "Factory.gatherNonQuestionVariables" ) ;
+			divider.finish() ;
+			return descriptions ;
 		}
 		
-		private static boolean isQuestion( VariableType vt ) {
-			AttributeType[] ata = vt.getAttributes().getAttributeArray() ;
-			for( int i=0; i<ata.length; i++ ) {
-				if( ata[i].getName().equalsIgnoreCase( "questionName" ) ) {
-					return true ;
+		private static void describe( List<VariableRecord> variables, StringBuilder b ) {
+			b.append( '[' ) ;
+			for( int i=0; i<variables.size(); i++ ) {
+				if( i > 0 ) {
+					b.append( ',' ) ;
 				}
+				b.append( variables.get( i ).name ) ;
 			}
-			return false ;
+			b.append( ']' ) ;
 		}
 		
-		private static void gatherQuestionVariables( OnyxVariables2Metadata v2m ) {
-			if( log.isTraceEnabled() ) enterTrace( "Factory.gatherQuestionVariables" ) ;
-			VariableType[] vta = v2m.varDoc.getVariables().getVariableArray() ;
-			for( int i=0; i<vta.length; i++ ) {
-				if( isQuestion( vta[i] ) ) {
-					if( isParentQuestion( vta[i] ) ) {
-						i = gatherParentQuestionVariables( v2m, i ) ;
-					}
-					else if( isDataSubmissionQuestionnaire_Kludge( v2m, i ) ) {
-						i = kludge_gatherObservationsDuringCurrentPeriodOfCare( v2m, i ) ;
-					}
-					else {
-						i = gatherSingletonQuestionVariables( v2m, i ) ;
-					}
-				}			
-			}
-			if( log.isTraceEnabled() ) exitTrace( "Factory.gatherQuestionVariables" ) ;
+		private static boolean isQuestion( VariableRecord vr ) {
+			return vr.isQuestion() ;
 		}
 		
-		private static boolean isParentQuestion(  VariableType vt  ) {
-			boolean retValue = false ;
-			try {
-				if( vt.isSetAttributes() ) {
-					AttributeType[] ata = vt.getAttributes().getAttributeArray() ;
-					for( int i=0; i<ata.length; i++ ) {
-						if( ata[i].getName().equalsIgnoreCase( "parentQuestion" ) ) {
-							if( ata[i].getStringValue().equalsIgnoreCase( "true" ) ) {
-								retValue = true ;
+		/**
+		 * Receives each question as the {@link QuestionGrouper} closes it.
+		 */
+		private interface QuestionSink {
+			public void question( Question q ) ;
+		}
+		
+		/**
+		 * Groups question variables into questions in a single pass, one variable at a time, in document order. <br/>
+		 * <br/>
+		 * The grouper is always in one of the states below, and each variable either joins the group
+		 * being gathered or closes it and is then offered afresh in the state that follows:
+		 * <p><blockquote><pre>
+		 *     BETWEEN   : no group open; non-question variables are passed over.
+		 *     SINGLETON : variables sharing the question name of the first.
+		 *     PARENT    : variables sharing the parent's question name, then child questions
+		 *                 (in the same section, and associated with the first child).
+		 *     KLUDGE    : child questions of a kludged question, which has no parent.
+		 *     CHILD     : variables sharing the question name of the child's first variable.
+		 * </pre></blockquote><p>
+		 * No variable is looked at more than three times, so grouping is linear in the number of variables.
+		 * The grouper is fed by the {@link VariableDivider}, and hands each question to its sink as it closes,
+		 * keeping no reference to it.
+		 */
+		private static class QuestionGrouper {
+			
+			private static final int BETWEEN = 0 ;
+			private static final int SINGLETON = 1 ;
+			private static final int PARENT = 2 ;
+			private static final int KLUDGE = 3 ;
+			private static final int CHILD = 4 ;
+			
+			private final OnyxVariables2Metadata v2m ;
+			private final QuestionSink sink ;
+			private int state = BETWEEN ;
+			private int parentState = BETWEEN ;
+			private VariableRecord previous = null ;
+			private VariableRecord firstChild = null ;
+			private Question question = null ;
+			private ParentQuestion parent = null ;
+			private ChildQuestion child = null ;
+			private String questionName = null ;
+			private String childQuestionName = null ;
+			
+			QuestionGrouper( OnyxVariables2Metadata v2m, QuestionSink sink ) {
+				this.v2m = v2m ;
+				this.sink = sink ;
+			}
+			
+			public void variable( VariableRecord vr ) {
+				while( !accept( vr ) ) {
+					//
+					// The variable closed the group being gathered; offer it again...
+				}
+				previous = vr ;
+			}
+			
+			/**
+			 * Closes any group still being gathered.
+			 */
+			public void finish() {
+				if( state == CHILD ) {
+					closeChild() ;
+				}
+				if( state == SINGLETON ) {
+					sink.question( question ) ;
+				}
+				else if( state == PARENT || state == KLUDGE ) {
+					sink.question( parent ) ;
+				}
+				question = null ;
+				parent = null ;
+				firstChild = null ;
+				state = BETWEEN ;
+			}
+			
+			/**
+			 * @return true if the variable has been dealt with, false if it closed the current group.
+			 */
+			private boolean accept( VariableRecord vr ) {
+				switch( state ) {
+					case SINGLETON:
+						if( questionName.equals( getQuestionName( vr ) ) ) {
+							question.variables.add( vr ) ;
+							return true ;
+						}
+						finish() ;
+						return false ;
+					case CHILD:
+						if( childQuestionName.equals( getQuestionName( vr ) ) ) {
+							child.variables.add( vr ) ;
+							return true ;
+						}
+						closeChild() ;
+						return false ;
+					case PARENT:
+						if( questionName.equals( getQuestionName( vr ) ) ) {
+							parent.variables.add( vr ) ;
+							return true ;
+						}
+						if( !isParentQuestion( vr ) && !isSectionChanged( previous, vr ) ) {
+							if( firstChild == null ) {
+								firstChild = vr ;
+								openChild( vr ) ;
+								return true ;
+							}
+							if( areAssociated( vr, firstChild ) ) {
+								openChild( vr ) ;
+								return true ;
 							}
-							break ;
 						}
-					}
+						finish() ;
+						return false ;
+					case KLUDGE:
+						if( !isSectionChanged( previous, vr ) && areAssociated( vr, firstChild ) ) {
+							openChild( vr ) ;
+							return true ;
+						}
+						finish() ;
+						return false ;
+					default:
+						open( vr ) ;
+						return true ;
 				}
 			}
-			finally {
-				;
-			}
-			return retValue ;
-		}
-		
-		private static int gatherParentQuestionVariables( OnyxVariables2Metadata v2m, int driverDisplacement ) {
-			if( isDataSubmissionQuestionnaire_Kludge( v2m, driverDisplacement ) )
-				return driverDisplacement ;
-			QuestionnaireStage qs = (QuestionnaireStage)v2m.source ;
-			VariableType[] vta = v2m.varDoc.getVariables().getVariableArray() ;
-			VariableType driver = vta[ driverDisplacement ] ;
-			String driverQuestionName = getQuestionName( driver ) ;
-			int i=driverDisplacement+1 ;
-			ParentQuestion pq = v2m.new ParentQuestion() ;
-			VariableType firstChild = null ;
-			pq.variables.add( driver ) ;
-			for( ; i<vta.length; i++ ) {
-				if( driverQuestionName.equals( getQuestionName( vta[ i] ) ) ) {
-					pq.variables.add( vta[i] ) ;
-					continue ;
+			
+			private void open( VariableRecord vr ) {
+				if( !isQuestion( vr ) ) {
+					return ;
 				}
-				else if( !isParentQuestion( vta[i]) 
-						 && 
-						 !isSectionChanged( vta, i ) 
-						) {	
-					if( firstChild == null ) {
-						firstChild = vta[i] ;
-						i = gatherChildQuestionVariables( v2m, i, pq ) ;
-						continue ;
+				KludgeRule rule = KLUDGE_RULES.get( vr.name ) ;
+				if( isParentQuestion( vr ) ) {
+					//
+					// A parent question that should begin a kludged question is passed over...
+					if( rule != null ) {
+						return ;
 					}
-					else if( areAssociated( vta[i], firstChild ) ) {
-						i = gatherChildQuestionVariables( v2m, i, pq ) ;
-						continue ;
-					}					
+					parent = v2m.new ParentQuestion() ;
+					parent.variables.add( vr ) ;
+					questionName = getQuestionName( vr ) ;
+					firstChild = null ;
+					state = PARENT ;
+				}
+				else if( rule != null ) {
+					//
+					// The kludged question has no parent variable;
+					// this variable begins its first child question...
+					parent = v2m.new KludgeQuestion( rule ) ;
+					firstChild = vr ;
+					state = KLUDGE ;
+					openChild( vr ) ;
+				}
+				else {
+					question = v2m.new SingletonQuestion() ;
+					question.variables.add( vr ) ;
+					questionName = getQuestionName( vr ) ;
+					state = SINGLETON ;
 				}
-				break ;
 			}
-			qs.questions.list.add( pq ) ;
-			return --i;
+			
+			private void openChild( VariableRecord vr ) {
+				child = v2m.new ChildQuestion() ;
+				child.variables.add( vr ) ;
+				childQuestionName = getQuestionName( vr ) ;
+				parentState = state ;
+				state = CHILD ;
+			}
+			
+			private void closeChild() {
+				parent.children.add( child ) ;
+				child = null ;
+				state = parentState ;
+			}
+			
 		}
 		
-		private static boolean isDataSubmissionQuestionnaire_Kludge( OnyxVariables2Metadata v2m, int i ) {
-			VariableType[] vta = v2m.varDoc.getVariables().getVariableArray() ;
-			if( vta[i].getName().equals( "epi_obshr_cat" ) )
-				return true ;
-			return false ;
+		private static boolean isParentQuestion(  VariableRecord vr  ) {
+			return vr.parentQuestion ;
 		}
 		
-		private static int kludge_gatherObservationsDuringCurrentPeriodOfCare( OnyxVariables2Metadata v2m, int driverDisplacement ) {
-			if( log.isTraceEnabled() ) enterTrace( "Factory.kludge_gatherObservationsDuringCurrentPeriodOfCare" ) ;
-			QuestionnaireStage qs = (QuestionnaireStage)v2m.source ;
-			VariableType[] vta = v2m.varDoc.getVariables().getVariableArray() ;
-			int i=driverDisplacement;
-			Kludge_ObservationsDuringCurrentPeriodOfCareQuestion 
-				pq = v2m.new Kludge_ObservationsDuringCurrentPeriodOfCareQuestion() ;
-			VariableType firstChild = null ;
-			//
-			// NB: This does NOT have a parent question -
-			//     that is the minor questionnaire fault we are trying to overcome.
-			// So for the moment, we need just to gather "child" questions...
-			for( ; i<vta.length; i++ ) {
-				if( !isSectionChanged( vta, i ) ) {	
-					if( firstChild == null ) {
-						firstChild = vta[i] ;
-						i = gatherChildQuestionVariables( v2m, i, pq ) ;
-						continue ;
-					}
-					else if( areAssociated( vta[i], firstChild ) ) {
-						i = gatherChildQuestionVariables( v2m, i, pq ) ;
-						continue ;
-					}					
-				}
-				break ;
+		/**
+		 * A kludge puts right a question the questionnaire definition gets wrong. 
+		 * Each row of the table is one rule:
+		 * <p><blockquote><pre>
+		 *     { variable beginning the question, question name, question label,
+		 *       name of the variable the question is given, its type, section name }
+		 * </pre></blockquote><p>
+		 * The DataSubmissionQuestionnaire has a minor structural fault regarding
+		 * "Observations during current episode of care": its child questions have no parent question.
+		 */
+		private static final String[][] KLUDGE_RULE_TABLE = {
+			{ "epi_obshr_cat", 
+			  "Observations during current episode of care", 
+			  "Observations during current episode of care", 
+			  "ODCEOC", 
+			  "text", 
+			  "MAIN" }
+		} ;
+		
+		private static final HashMap<String,KludgeRule> KLUDGE_RULES = compileKludgeRules( KLUDGE_RULE_TABLE ) ;
+		
+		private static HashMap<String,KludgeRule> compileKludgeRules( String[][] table ) {
+			HashMap<String,KludgeRule> rules = new HashMap<String,KludgeRule>() ;
+			for( int i=0; i<table.length; i++ ) {
+				KludgeRule rule = new KludgeRule( table[i][1], table[i][2], table[i][3], table[i][4], table[i][5] ) ;
+				rules.put( table[i][0], rule ) ;
 			}
-			qs.questions.list.add( pq ) ;
-			if( log.isTraceEnabled() ) exitTrace( "Factory.kludge_gatherObservationsDuringCurrentPeriodOfCare" ) ;
-			return --i;
+			return rules ;
 		}
 		
-		private static boolean kludge_isObservationDuringCurrentPeriodOfCare( VariableType target ) {
-			if( target.getName().equals( "epi_obshr_cat" ) )
-				return true ;
-			return false ;
-		}
-		
-		private static boolean areAssociated( VariableType target, VariableType firstChild ) {
+		private static boolean areAssociated( VariableRecord target, VariableRecord firstChild ) {
 			if( log.isTraceEnabled() ) enterTrace( "Factory.areAssociated" ) ;
 			boolean associated = false ;			
 			try {
 
 				//
-				// This is a kludge for the DataSubmissionQuestionnaire
-				// which has a minor structural fault regarding
-				// "Observations during current episode of care."
-				if( kludge_isObservationDuringCurrentPeriodOfCare( target ) )
+				// A variable that begins a kludged question is never associated with what went before...
+				if( KLUDGE_RULES.containsKey( target.name ) )
 					return false ;
 
-				String[] firstChildParts = firstChild.getName().split( "\\." ) ;
-				String[] targetParts = target.getName().split( "\\." ) ;
-				if( targetParts[0].equals( firstChild.getName() ) ) {
+				//
+				// Names are compared segment by segment, as pre-tokenized in each record...
+				String[] firstChildParts = firstChild.segments ;
+				String[] targetParts = target.segments ;
+				if( targetParts[0].equals( firstChild.name ) ) {
 					associated = true ;
 				}
 				else if( targetParts[0].equals( firstChildParts[0] ) ) {
 					associated = true ;
 				}
 				else {
-					String[] fcp1 =  firstChildParts[0].split( "_" ) ;
-					String[] tp1 = targetParts[0].split( "_" ) ;
+					String[] fcp1 =  firstChild.words ;
+					String[] tp1 = target.words ;
 					if( tp1.length >= fcp1.length ) {
 						int smallest = ( tp1.length <= fcp1.length ? tp1.length : fcp1.length ) ;
 						associated = true ;
@@ -521,112 +1113,24 @@ public class OnyxVariables2Metadata {
 			}
 		}
 		
-		private static boolean isSectionChanged( VariableType[] vta, int index ) {
-			AttributeType[] previousAttributeArray = vta[index-1].getAttributes().getAttributeArray() ;
-			String sectionNameOne = null ;
-			for( int i=0; i<previousAttributeArray.length; i++ ) {
-				if( previousAttributeArray[i].getName().equalsIgnoreCase( "section" ) ) {
-					sectionNameOne =  previousAttributeArray[i].getStringValue() ;
-					break ;
-				}
-			}
-			AttributeType[] currentAttributeArray = vta[index].getAttributes().getAttributeArray() ;
-			String sectionNameTwo = null ;
-			for( int i=0; i<currentAttributeArray.length; i++ ) {
-				if( currentAttributeArray[i].getName().equalsIgnoreCase( "section" ) ) {
-					sectionNameTwo =  currentAttributeArray[i].getStringValue() ;
-					break ;
-				}
-			}
+		private static boolean isSectionChanged( VariableRecord previous, VariableRecord current ) {
+			String sectionNameOne = previous.section ;
+			String sectionNameTwo = current.section ;
 			if( sectionNameOne.equalsIgnoreCase( sectionNameTwo) ) {
 				return false ;
 			}
 			return true ;
 		}
 		
-		private static int gatherChildQuestionVariables( OnyxVariables2Metadata v2m, int driverDisplacement, ParentQuestion pq ) {
-			VariableType[] vta = v2m.varDoc.getVariables().getVariableArray() ;
-			VariableType driver = vta[ driverDisplacement ] ;
-			String driverQuestionName = getQuestionName( driver ) ;
-			int i=driverDisplacement+1 ;
-			ChildQuestion cq = v2m.new ChildQuestion() ;
-			cq.variables.add( driver ) ;
-			for( ; i<vta.length; i++ ) {
-				if( driverQuestionName.equals( getQuestionName( vta[ i] ) ) ) {
-					cq.variables.add( vta[i] ) ;
-					continue ;
-				}
-				break ;
-			}
-			pq.children.add( cq ) ;
-			return --i;
-		}	
-		
-		private static int gatherSingletonQuestionVariables( OnyxVariables2Metadata v2m, int driverDisplacement ) {
-			QuestionnaireStage qs = (QuestionnaireStage)v2m.source ;
-			VariableType[] vta = v2m.varDoc.getVariables().getVariableArray() ;
-			VariableType driver = vta[ driverDisplacement ] ;
-			String driverQuestionName = getQuestionName( driver ) ;
-			if( driverQuestionName.equalsIgnoreCase( "epi_symptomother_cat" ) ) {
-				log.debug( "epi_symptomother_cat" ) ;
-			}
-			int i=driverDisplacement+1 ;
-			SingletonQuestion sq = v2m.new SingletonQuestion() ;
-			sq.variables.add( driver ) ;
-			for( ; i<vta.length; i++ ) {
-				if( driverQuestionName.equals( getQuestionName( vta[ i] ) ) ) {
-					sq.variables.add( vta[i] ) ;
-					continue ;
-				}
-				break ;
-			}
-			qs.questions.list.add( sq ) ;
-			return --i;
-		}	
-		
-		private static boolean isQuestionnaire( OnyxVariables2Metadata v2m ) {
-			return ( getQuestionnaireName( v2m ) == null ? false : true ) ;
+		private static String getQuestionName( VariableRecord vr ) {
+			return vr.getQuestionName() ;
 		}
 		
-		private static String getQuestionnaireName( OnyxVariables2Metadata v2m ) {
-			//
-			// Retrieve the attributes of the first variable present in the file...
-			AttributeType[] ata = v2m.varDoc.getVariables().getVariableArray()[0].getAttributes().getAttributeArray() ;
-			for( int i=0; i<ata.length; i++ ) {
-				if( ata[i].getName().equalsIgnoreCase( "questionnaire" ) ) {
-					return ata[i].getStringValue() ;
-				}
-			}
-			return null ;
-		}
-		
-		private static String getQuestionName( VariableType vt ) {
-			AttributeType[] ata = vt.getAttributes().getAttributeArray() ;
-			for( int i=0; i<ata.length; i++ ) {
-				String attributeName = ata[i].getName() ;
-				if( attributeName.equalsIgnoreCase( "questionName" ) ) {
-					return ata[i].getStringValue() ;
-				}
-			}
-			return "" ;
-		}
-		
-		private static void newEntity(OnyxVariables2Metadata v2m) {
-			if( log.isTraceEnabled() ) enterTrace( "Factory.newEntity" ) ;
-			v2m.source = v2m.new Entity(SOURCE);
-			VariableType[] vta = v2m.varDoc.getVariables().getVariableArray();
-			for (int i = 0; i < vta.length; i++) {
-				v2m.source.nqv.variables.add(vta[i]);
-			}
-			if( log.isTraceEnabled() ) exitTrace( "Factory.newEntity" ) ;
-		}
-
 	} // end of class Factory
 	
 	private abstract class Source {
 		
 		protected SourceDocument sourceDocument ;
-		protected NonQuestionVariables nqv = new NonQuestionVariables() ;
 		
 		Source( String sourceName ) {
 			this.sourceDocument = SourceDocument.Factory.newInstance() ; 	
@@ -635,14 +1139,22 @@ public class OnyxVariables2Metadata {
 		
 		public abstract void process() ;
 		
-		protected ArrayList<org.brisskit.onyxmetadata.stageone.beans.VariableType> processStructuredVariables() {
-			if( log.isTraceEnabled() ) enterTrace( "Source.processStructuredVariables" ) ;
-			Iterator<VariableType> vit = this.nqv.variables.listIterator() ;
-			HashMap<String, org.brisskit.onyxmetadata.stageone.beans.VariableType> structuredVarsMap = new HashMap<String, org.brisskit.onyxmetadata.stageone.beans.VariableType>( 256 ) ;
-			while( vit.hasNext() ) {
-				processStructuredVariable( vit.next(), structuredVarsMap ) ;
-			}
-			Iterator<org.brisskit.onyxmetadata.stageone.beans.VariableType> sit = structuredVarsMap.values().iterator() ;
+	} // end of class Source
+	
+	/**
+	 * The variables of a stage that is not a questionnaire, or of an entity, built up one at a time
+	 * into a tree by their dot qualified names. Only the built metadata is kept, not the records.
+	 */
+	private class StructuredVariables {
+		
+		private final HashMap<String, org.brisskit.onyxmetadata.stageone.beans.VariableType> svm = new HashMap<String, org.brisskit.onyxmetadata.stageone.beans.VariableType>( 256 ) ;
+		
+		/**
+		 * @return the variables at the top of the tree
+		 */
+		public ArrayList<org.brisskit.onyxmetadata.stageone.beans.VariableType> roots() {
+			if( log.isTraceEnabled() ) enterTrace( "StructuredVariables.roots" ) ;
+			Iterator<org.brisskit.onyxmetadata.stageone.beans.VariableType> sit = svm.values().iterator() ;
 			ArrayList<org.brisskit.onyxmetadata.stageone.beans.VariableType> list = new ArrayList<org.brisskit.onyxmetadata.stageone.beans.VariableType>() ;
 			while( sit.hasNext() ) {
 				org.brisskit.onyxmetadata.stageone.beans.VariableType oiv = sit.next() ;
@@ -657,14 +1169,16 @@ public class OnyxVariables2Metadata {
 				}
 				
 			}
-			if( log.isTraceEnabled() ) exitTrace( "Source.processStructuredVariables" ) ;
+			if( log.isTraceEnabled() ) exitTrace( "StructuredVariables.roots" ) ;
 			return list ;
 		}
 		
-		private void processStructuredVariable( org.brisskit.onyxvariables.beans.VariableType ov, 
-				                                HashMap<String, org.brisskit.onyxmetadata.stageone.beans.VariableType> svm) {
-			if( log.isTraceEnabled() ) enterTrace( "Source.processStructuredVariable" ) ;
-			String[] parts = ov.getName().split( "\\." ) ;
+		/**
+		 * Builds the variable into the tree, adding any containing variables its name implies.
+		 */
+		public void add( VariableRecord ov ) {
+			if( log.isTraceEnabled() ) enterTrace( "StructuredVariables.add" ) ;
+			String[] parts = ov.segments ;
 			StringBuilder buffer = new StringBuilder( 256 ) ;
 			org.brisskit.onyxmetadata.stageone.beans.VariableType oiv = null ;
 			org.brisskit.onyxmetadata.stageone.beans.VariableType oivParent = null ;
@@ -686,26 +1200,24 @@ public class OnyxVariables2Metadata {
 					svm.put( name, oiv ) ;
 				}
 			}
-			oiv.setType( ov.getValueType() ) ;
-			if( ov.isSetRepeatable() ) {
-				if( ov.getRepeatable().equalsIgnoreCase( "true" ) ) {
-					oiv.setRepeatable( true ) ;
-				}
+			oiv.setType( ov.valueType ) ;
+			if( ov.isRepeatable() ) {
+				oiv.setRepeatable( true ) ;
 			}
-			if( ov.isSetCategories() ) {
+			if( ov.categories != null ) {
 				RestrictionType et = oiv.addNewRestriction() ;
-				CategoryType[] cta = ov.getCategories().getCategoryArray() ;
+				VariableRecord.Category[] cta = ov.categories ;
 				for( int i=0; i<cta.length; i++ ) {
-					if( cta[i].isSetAttributes() ) {
+					if( cta[i].hasAttributes ) {
 						return ;
 					}
-					et.addNewEnum().setStringValue( cta[i].getName() ) ;
+					et.addNewEnum().setStringValue( cta[i].name ) ;
 				}
 			}
-			if( log.isTraceEnabled() ) exitTrace( "Source.processStructuredVariable" ) ;
-		} 
+			if( log.isTraceEnabled() ) exitTrace( "StructuredVariables.add" ) ;
+		}
 		
-	} // end of class Source
+	} // end of class StructuredVariables
 	
 	private abstract class Stage extends Source {
 		
@@ -715,57 +1227,60 @@ public class OnyxVariables2Metadata {
 			st.setName( OnyxVariables2Metadata.Factory.getStageName( OnyxVariables2Metadata.this ) ) ;
 		}
 		
-		public void process() {
-			if( log.isTraceEnabled() ) enterTrace( "Stage.process" ) ;
-			ArrayList<org.brisskit.onyxmetadata.stageone.beans.VariableType> list = processStructuredVariables() ;
-			StageType et = sourceDocument.getSource().getStage() ;
-			org.brisskit.onyxmetadata.stageone.beans.VariableType[] vta = list.toArray( new org.brisskit.onyxmetadata.stageone.beans.VariableType[ list.size() ] ) ;
-			et.setVariableArray( vta ) ;
-			if( log.isTraceEnabled() ) exitTrace( "Stage.process" ) ;
-		}
-		
 	}
 	
 	private class NonQuestionnaireStage extends Stage {
 		
-		NonQuestionnaireStage(String sourceName) {
-			super(sourceName);
+		private final StructuredVariables structured ;
+		
+		NonQuestionnaireStage( String sourceName, StructuredVariables structured ) {
+			super( sourceName ) ;
+			this.structured = structured ;
+		}
+		
+		public void process() {
+			if( log.isTraceEnabled() ) enterTrace( "NonQuestionnaireStage.process" ) ;
+			ArrayList<org.brisskit.onyxmetadata.stageone.beans.VariableType> list = structured.roots() ;
+			StageType et = sourceDocument.getSource().getStage() ;
+			org.brisskit.onyxmetadata.stageone.beans.VariableType[] vta = list.toArray( new org.brisskit.onyxmetadata.stageone.beans.VariableType[ list.size() ] ) ;
+			et.setVariableArray( vta ) ;
+			if( log.isTraceEnabled() ) exitTrace( "NonQuestionnaireStage.process" ) ;
 		}
 
 	}
 	
-	private class QuestionnaireStage extends Stage {
+	/**
+	 * A questionnaire is built as its variables are divided: each non-question variable as it arrives
+	 * and each question as it closes, after which the records are no longer referenced.
+	 */
+	private class QuestionnaireStage extends Stage implements Factory.QuestionSink {
 		
-		private Questions questions = new Questions() ;
 		private SectionType currentSection = null ;
+		private final HashMap<String, org.brisskit.onyxmetadata.stageone.beans.VariableType> containingVariables = new HashMap<String, org.brisskit.onyxmetadata.stageone.beans.VariableType>() ;
 		
 		public QuestionnaireStage(String sourceName) {
 			super(sourceName);
 		}
 		
+		/**
+		 * Everything has been built as the variables were divided.
+		 */
 		public void process() {
 			if( log.isTraceEnabled() ) enterTrace( "QuestionnaireStage.process" ) ;
-
-			processNonQuestionVariables() ;
-
-			processQuestionVariables() ;
-			
 			if( log.isTraceEnabled() ) exitTrace( "QuestionnaireStage.process" ) ;
 		}
 		
-		private void processQuestionVariables() {
-			if( log.isTraceEnabled() ) enterTrace( "processQuestionVariables" ) ;
-			
-			Iterator<Question> it = questions.list.listIterator() ;
-			while( it.hasNext() ) {
-				Question qu = it.next() ;
-				if( isNewSectionRequired( currentSection, qu ) ) {
-					currentSection = sourceDocument.getSource().getStage().addNewSection() ;
-					currentSection.setName( getSectionName( qu ) ) ;
-				}
-				qu.buildQuestion( currentSection ) ;				
+		/**
+		 * Builds the question into the current section, opening a new section if the question's differs.
+		 */
+		public void question( Question qu ) {
+			if( log.isTraceEnabled() ) enterTrace( "QuestionnaireStage.question" ) ;
+			if( isNewSectionRequired( currentSection, qu ) ) {
+				currentSection = sourceDocument.getSource().getStage().addNewSection() ;
+				currentSection.setName( getSectionName( qu ) ) ;
 			}
-			if( log.isTraceEnabled() ) exitTrace( "processQuestionVariables" ) ;
+			qu.buildQuestion( currentSection ) ;				
+			if( log.isTraceEnabled() ) exitTrace( "QuestionnaireStage.question" ) ;
 		}
 		
 		private boolean isNewSectionRequired( SectionType section, Question question ) {
@@ -788,75 +1303,57 @@ public class OnyxVariables2Metadata {
 		private String getSectionName( Question question ) {
 			//
 			// Guard added after kludge for DataSubmissionQuestionnaire coded...
-			if( question instanceof Kludge_ObservationsDuringCurrentPeriodOfCareQuestion )
-				return "MAIN" ;
+			if( question instanceof KludgeQuestion )
+				return ((KludgeQuestion)question).rule.section ;
 			
-			AttributeType[] ata = question.variables.get(0).getAttributes().getAttributeArray() ;
-			for( int i=0; i<ata.length; i++ ) {
-				if( ata[i].getName().equalsIgnoreCase( "section" ) ) {
-					return ata[i].getStringValue() ;
-				}
-			}
-			return null ;
+			return question.variables.get(0).section ;
 		}
 
 		
-		private void processNonQuestionVariables() {
-			if( log.isTraceEnabled() ) enterTrace( "QuestionnaireStage.processNonQuestionVariables" ) ;
-			LinkedHashSet<String> qualifiers = gatherHighLevelQualifiers() ; 
-			log.debug( "qualifiers number: " + qualifiers.size() ) ;
-			StageType stage = sourceDocument.getSource().getStage() ;
-			Iterator<String> qit = qualifiers.iterator() ;
-			while( qit.hasNext() ) {
-				String qualifier = qit.next() ;
-				org.brisskit.onyxmetadata.stageone.beans.VariableType containingVar = stage.addNewVariable() ;
-				containingVar.setName( qualifier ) ;
-				Iterator<VariableType> vit = this.nqv.variables.listIterator() ;
-				while( vit.hasNext() ) {
-					VariableType v = vit.next() ;
-					if( v.getName().startsWith( qualifier + '.' ) ) {
-						String name = v.getName().split( "\\." )[1] ;
-						org.brisskit.onyxmetadata.stageone.beans.VariableType containedVar = containingVar.addNewVariable() ;
-						containedVar.setName( name ) ;
-						containedVar.setType( v.getValueType() ) ;
-						if( v.isSetRepeatable() ) {
-							if( v.getRepeatable().equalsIgnoreCase( "true" )  ) {
-								containedVar.setRepeatable( true ) ;
-							}
-						}
-					}
-				}	
-			}
-			if( log.isTraceEnabled() ) exitTrace( "QuestionnaireStage.processNonQuestionVariables" ) ;
-
-		}
-		
-		private LinkedHashSet<String> gatherHighLevelQualifiers() {
-			LinkedHashSet<String> qualifiers = new LinkedHashSet<String>() ; 
-			Iterator<VariableType> it = this.nqv.variables.listIterator() ;
-			while( it.hasNext() ) {
-				VariableType v = it.next() ;
-				if( v.getName().contains( "." ) ) {
-					String qualifier = v.getName().split( "\\." )[0] ;
-					qualifiers.add( qualifier ) ;
+		/**
+		 * Dot qualified non-question variables are grouped by their qualifier (first segment),
+		 * both qualifiers and variables in document order: each qualifier becomes a containing variable 
+		 * when first seen, and each variable a contained variable within it.
+		 * Variables that are not dot qualified are not carried.
+		 */
+		public void nonQuestionVariable( VariableRecord v ) {
+			if( log.isTraceEnabled() ) enterTrace( "QuestionnaireStage.nonQuestionVariable" ) ;
+			if( v.dotted ) {
+				String qualifier = v.segments[0] ;
+				org.brisskit.onyxmetadata.stageone.beans.VariableType containingVar = containingVariables.get( qualifier ) ;
+				if( containingVar == null ) {
+					//
+					// The stage's variables precede its sections, wherever they are added...
+					containingVar = sourceDocument.getSource().getStage().addNewVariable() ;
+					containingVar.setName( qualifier ) ;
+					containingVariables.put( qualifier, containingVar ) ;
+				}
+				org.brisskit.onyxmetadata.stageone.beans.VariableType containedVar = containingVar.addNewVariable() ;
+				containedVar.setName( v.segments[1] ) ;
+				containedVar.setType( v.valueType ) ;
+				if( v.isRepeatable() ) {
+					containedVar.setRepeatable( true ) ;
 				}
 			}
-			return qualifiers ;
+			if( log.isTraceEnabled() ) exitTrace( "QuestionnaireStage.nonQuestionVariable" ) ;
 		}
 		
 	}
 	
 	private class Entity extends Source {		
 		
-		Entity( String sourceName ) {
+		private final StructuredVariables structured ;
+		
+		Entity( String sourceName, StructuredVariables structured ) {
 			super( sourceName ) ;
+			this.structured = structured ;
 			EntityType et = this.sourceDocument.getSource().addNewEntity() ;
 			et.setName( this.getEntityName() ) ;
 		}
 		
 		public void process() {
 			if( log.isTraceEnabled() ) enterTrace( "Entity.process" ) ;
-			ArrayList<org.brisskit.onyxmetadata.stageone.beans.VariableType> list = processStructuredVariables() ;
+			ArrayList<org.brisskit.onyxmetadata.stageone.beans.VariableType> list = structured.roots() ;
 			EntityType et = sourceDocument.getSource().getEntity() ;
 			org.brisskit.onyxmetadata.stageone.beans.VariableType[] 
 			    vta = list.toArray( new org.brisskit.onyxmetadata.stageone.beans.VariableType[ list.size() ] ) ;
@@ -892,28 +1389,41 @@ public class OnyxVariables2Metadata {
 		}
 		
 		private String getEntityName() {
-			VariableType[] vta = OnyxVariables2Metadata.this.varDoc.getVariables().getVariableArray() ;
-			for( int i=0; i<vta.length; i++ ) {
-				if( vta[i].isSetEntityType() ) {
-					return vta[i].getEntityType() ;
-				}
-			}
-			return null ;
+			return OnyxVariables2Metadata.this.entityName ;
 		}
 				
 	} // end of class Entity
 	
-	private class NonQuestionVariables {
-		protected ArrayList<VariableType> variables = new ArrayList<VariableType>() ;		
+	/**
+	 * The type and label resolved for a category of a question.
+	 */
+	private static class CategoryResolution {
+		String type ;
+		String label ;
 	}
 	
-	private class Questions {
-		private ArrayList<Question> list = new ArrayList<Question>() ;
+	/**
+	 * A compiled kludge rule.
+	 */
+	private static class KludgeRule {
+		final String questionName ;
+		final String questionLabel ;
+		final String variableName ;
+		final String variableType ;
+		final String section ;
+		KludgeRule( String questionName, String questionLabel, String variableName, String variableType, String section ) {
+			this.questionName = questionName ;
+			this.questionLabel = questionLabel ;
+			this.variableName = variableName ;
+			this.variableType = variableType ;
+			this.section = section ;
+		}
 	}
 	
 	private abstract class Question {
-		protected ArrayList<VariableType> variables = new ArrayList<VariableType>() ;	
+		protected ArrayList<VariableRecord> variables = new ArrayList<VariableRecord>() ;	
 		QuestionType question ;
+		private HashMap<String,CategoryResolution> categoryIndex ;
 		
 		public void buildQuestion( SectionType st ) {
 			if( log.isTraceEnabled() ) enterTrace( "Question.buildQuestion" ) ;
@@ -924,33 +1434,20 @@ public class OnyxVariables2Metadata {
 		}
 		
 		public String getQuestionName() {
-			AttributeType[] ata = variables.get(0).getAttributes().getAttributeArray() ;
-			for( int i=0; i<ata.length; i++ ) {
-				String attributeName = ata[i].getName() ;
-				if( attributeName.equalsIgnoreCase( "questionName" ) ) {
-					return ata[i].getStringValue() ;
-				}
-			}
-			return "" ;
+			return variables.get(0).getQuestionName() ;
 		}
 		
 		protected String getQuestionLabel() {
-			AttributeType[] ata = variables.get(0).getAttributes().getAttributeArray() ;
-			for( int i=0; i<ata.length; i++ ) {
-				String attributeName = ata[i].getName() ;
-				if( attributeName.equalsIgnoreCase( "label" ) ) {
-					return ata[i].getStringValue() ;
-				}
-			}
-			return "" ;
+			String label = variables.get(0).label ;
+			return ( label == null ? "" : label ) ;
 		}
 		
 		protected void buildVariablesForQuestion() {
 			if( log.isTraceEnabled() ) enterTrace( "Question.buildVariablesForQuestion" ) ;
 			org.brisskit.onyxmetadata.stageone.beans.VariableType oiVariable = question.addNewVariable() ;
-			oiVariable.setName( getUnqualifiedName( this.variables.get(0).getName() ) );
-			oiVariable.setType( this.variables.get(0).getValueType() ) ;
-			if( this.variables.get(0).isSetCategories() ) {
+			oiVariable.setName( getUnqualifiedName( this.variables.get(0) ) );
+			oiVariable.setType( this.variables.get(0).valueType ) ;
+			if( this.variables.get(0).categories != null ) {
 				processCategories( oiVariable ) ;
 			}
 			else {
@@ -959,71 +1456,108 @@ public class OnyxVariables2Metadata {
 			if( log.isTraceEnabled() ) exitTrace( "Question.buildVariablesForQuestion" ) ;
 		}
 		
-		protected String getUnqualifiedName( String name ) {
-			String[] parts = name.split( "\\." ) ;
-			StringBuilder b = new StringBuilder( name.length() ) ;
-			if( parts.length > 1 ) {
-				for( int i=1; i<parts.length; i++ ) {
-					b.append( parts[i]).append( '.' ) ;
-				}
-				b.deleteCharAt( b.length()-1 ) ;
-				return b.toString() ;
-			}
-			return name ;
+		protected String getUnqualifiedName( VariableRecord vr ) {
+			return vr.unqualifiedName ;
 		}
 		
 		private void processCategories( org.brisskit.onyxmetadata.stageone.beans.VariableType oiVariable ) {
 			if( log.isTraceEnabled() ) enterTrace( "Question.processCategories" ) ;
-			VariableType vt = this.variables.get(0) ;
-			CategoryType[] cta = vt.getCategories().getCategoryArray() ;
+			VariableRecord vr = this.variables.get(0) ;
+			VariableRecord.Category[] cta = vr.categories ;
 			for( int i=0; i<cta.length; i++ ) {
 				org.brisskit.onyxmetadata.stageone.beans.VariableType catVar = oiVariable.addNewVariable() ;
-				catVar.setName( cta[i].getName() ) ;
+				catVar.setName( cta[i].name ) ;
 				processForwardCategoryVariables( catVar ) ;		
 			}
 			processForwardConnectedVariables( oiVariable ) ;
 			if( log.isTraceEnabled() ) exitTrace( "Question.processCategories" ) ;
 		}
 		
+		/**
+		 * A category is resolved against those variables of the question (other than the main one) 
+		 * whose name holds the category as a segment other than the first; 
+		 * ie: ends with '.' + category or contains '.' + category + '.'
+		 * The type comes from the last such variable and the label from the last such with a label.
+		 */
 		private void processForwardCategoryVariables( org.brisskit.onyxmetadata.stageone.beans.VariableType catVar ) {
 			if( log.isTraceEnabled() ) enterTrace( "Question.processForwardCategoryVariables" ) ;
-			Iterator<VariableType> it = this.variables.listIterator() ;
+			String category = catVar.getName() ;
+			if( category.length() > 0 && category.indexOf( '.' ) == -1 ) {
+				CategoryResolution resolution = getCategoryIndex().get( category ) ;
+				if( resolution != null ) {
+					catVar.setType( resolution.type ) ;
+					if( resolution.label != null ) {
+						catVar.setLabel( resolution.label ) ;
+					}
+				}
+				if( log.isTraceEnabled() ) exitTrace( "Question.processForwardCategoryVariables" ) ;
+				return ;
+			}
+			//
+			// A category that is empty or itself dot qualified cannot be a single segment,
+			// so it is matched the long way round...
+			Iterator<VariableRecord> it = this.variables.listIterator() ;
 			it.next() ; // skip passed the main variable
 			while( it.hasNext() ) {
-				VariableType v = it.next() ;
-				if( v.getName().endsWith( '.' + catVar.getName() ) 
+				VariableRecord v = it.next() ;
+				if( v.name.endsWith( '.' + catVar.getName() ) 
 					||
-					v.getName().contains(  '.' + catVar.getName() + '.' )				
+					v.name.contains(  '.' + catVar.getName() + '.' )				
 				) {
-					catVar.setType( v.getValueType() ) ;
-					AttributeType[] ata = v.getAttributes().getAttributeArray();
-					for( int j=0; j<ata.length; j++ ) {
-						if( ata[j].getName().equalsIgnoreCase( "label" ) ) {
-							catVar.setLabel( ata[j].getStringValue() ) ;
-						}
+					catVar.setType( v.valueType ) ;
+					//
+					// Where a variable carries more than one label, the last one applies...
+					if( v.lastLabel != null ) {
+						catVar.setLabel( v.lastLabel ) ;
 					}				
 				}	
 			}
 			if( log.isTraceEnabled() ) exitTrace( "Question.processForwardCategoryVariables" ) ;
 		}
 		
+		/**
+		 * Builds (once per question) the index from name segment to the resolution 
+		 * of a category of that name. One pass over the question's variables in order,
+		 * so the last variable to match wins, as with a scan.
+		 */
+		private HashMap<String,CategoryResolution> getCategoryIndex() {
+			if( categoryIndex == null ) {
+				categoryIndex = new HashMap<String,CategoryResolution>() ;
+				for( int i=1; i<this.variables.size(); i++ ) {
+					VariableRecord v = this.variables.get( i ) ;
+					for( int j=1; j<v.segments.length; j++ ) {
+						CategoryResolution resolution = categoryIndex.get( v.segments[j] ) ;
+						if( resolution == null ) {
+							resolution = new CategoryResolution() ;
+							categoryIndex.put( v.segments[j], resolution ) ;
+						}
+						resolution.type = v.valueType ;
+						if( v.lastLabel != null ) {
+							resolution.label = v.lastLabel ;
+						}
+					}
+				}
+			}
+			return categoryIndex ;
+		}
+		
 		private void processForwardConnectedVariables( org.brisskit.onyxmetadata.stageone.beans.VariableType mainVar ) {
 			if( log.isTraceEnabled() ) enterTrace( "Question.processForwardConnectedVariables" ) ;
-			Iterator<VariableType> it = this.variables.listIterator() ;
+			Iterator<VariableRecord> it = this.variables.listIterator() ;
 			it.next() ; // skip passed the main variable
 			while( it.hasNext() ) {
-				VariableType v = it.next() ;
+				VariableRecord v = it.next() ;
 				if( !isCategory( v ) ) {
-					if( v.isSetCategories() ) {
-						log.debug( "======>> " + v.getName() + " <<======") ;
+					if( v.categories != null ) {
+						log.debug( "======>> " + v.name + " <<======") ;
 					}
 					//
 					// We may need to deal with dot qualified names here
 					// eg: tobacco_any.comment
 					org.brisskit.onyxmetadata.stageone.beans.VariableType newVar = mainVar.addNewVariable() ;
-					String name = rationalizeName( this.variables.get(0).getName(), v.getName() ) ;
+					String name = rationalizeName( this.variables.get(0), v ) ;
 					newVar.setName( name ) ;
-					newVar.setType( v.getValueType() ) ;
+					newVar.setType( v.valueType ) ;
 					if( isLabel( v ) ) {
 						newVar.setLabel( getLabel( v ) ) ;
 					}					
@@ -1032,7 +1566,7 @@ public class OnyxVariables2Metadata {
 			if( log.isTraceEnabled() ) exitTrace( "Question.processForwardConnectedVariables" ) ;
 		}
 		
-		private boolean isCategory( VariableType vt ) {
+		private boolean isCategory( VariableRecord vr ) {
 			if( log.isTraceEnabled() ) enterTrace( "Question.isCategory" ) ;
 			try {
 				//
@@ -1043,55 +1577,36 @@ public class OnyxVariables2Metadata {
 				//     but are also not explicitly defined earlier with a category element.
 				//     For example, an integer measure of the amount of alcohol.
 				//     This condition rules those out, but they get processed later as connected variables.
-				if( !vt.getName().contains( "." ) ) {
+				if( !vr.name.contains( "." ) ) {
 					return false ;
 				}
 
-				if( vt.isSetAttributes() ) {
-					AttributeType[] ata = vt.getAttributes().getAttributeArray() ;
-					for( int i=0; i<ata.length; i++ ) {
-						if( ata[i].getName().equalsIgnoreCase( "categoryName" ) ) {
-							return true ;
-						}
-					}
-				}
-				return false ;
+				return vr.categoryName != null ;
 			}
 			finally {
 				if( log.isTraceEnabled() ) exitTrace( "Question.isCategory" ) ;
 			}
 		}
 		
-		private boolean isLabel( VariableType vt ) {
-			return ( getLabel(vt) == null ? false : true ) ;
+		private boolean isLabel( VariableRecord vr ) {
+			return ( getLabel(vr) == null ? false : true ) ;
 		}
 		
-		private String getLabel( VariableType vt ) {
-			AttributeType[] ata = vt.getAttributes().getAttributeArray() ;
-			for( int i=0; i<ata.length; i++ ) {
-				if( ata[i].getName().equalsIgnoreCase( "label" ) ) {
-					return ata[i].getStringValue() ;
-				}
-			}
-			return null ;
+		private String getLabel( VariableRecord vr ) {
+			return vr.label ;
 		}
 		
-		private String rationalizeName( String mainVar, String minorVar ) {
+		private String rationalizeName( VariableRecord mainVar, VariableRecord minorVar ) {
 			if( log.isTraceEnabled() ) enterTrace( "Question.rationalizeName" ) ;
 			try { 
-				String[] partsMinor = minorVar.split( "\\." ) ;
+				String[] partsMinor = minorVar.segments ;
 				if( partsMinor.length == 1 ) {
-					return minorVar ;
+					return minorVar.name ;
 				}
-				else if( partsMinor[0].equals( mainVar ) ) {
-					StringBuilder builder = new StringBuilder( minorVar.length() ) ;
-					for( int i=1; i<partsMinor.length; i++ ) {
-						builder.append( partsMinor[i] ).append( '.' ) ;
-					}
-					builder.deleteCharAt( builder.length()-1 ) ;
-					return builder.toString() ;
+				else if( partsMinor[0].equals( mainVar.name ) ) {
+					return minorVar.unqualifiedName ;
 				}
-				return minorVar ;
+				return minorVar.name ;
 			}
 			finally {
 				if( log.isTraceEnabled() ) exitTrace( "Question.rationalizeName" ) ;
@@ -1116,7 +1631,7 @@ public class OnyxVariables2Metadata {
 		public void buildQuestion( QuestionType qt ) {
 			if( log.isTraceEnabled() ) enterTrace( "ChildQuestion.buildQuestion" ) ;
 			this.question = qt.addNewQuestion() ;			
-			String name = getUnqualifiedName( this.variables.get(0).getName() ) ;
+			String name = getUnqualifiedName( this.variables.get(0) ) ;
 			this.question.setName( name ) ;
 			this.question.setLabel( getQuestionLabel() ) ;
 			buildVariablesForQuestion() ;
@@ -1142,24 +1657,33 @@ public class OnyxVariables2Metadata {
 		
 	}
 	
-	private class Kludge_ObservationsDuringCurrentPeriodOfCareQuestion extends ParentQuestion {
+	/**
+	 * A question made up, by rule, for child questions that have no parent question.
+	 */
+	private class KludgeQuestion extends ParentQuestion {
+		
+		private final KludgeRule rule ;
+		
+		KludgeQuestion( KludgeRule rule ) {
+			this.rule = rule ;
+		}
 		
 		public void buildQuestion( SectionType st ) {
-			if( log.isTraceEnabled() ) enterTrace( "Kludge_ObservationsDuringCurrentPeriodOfCareQuestion.buildQuestion" ) ;
+			if( log.isTraceEnabled() ) enterTrace( "KludgeQuestion.buildQuestion" ) ;
 			question = st.addNewQuestion() ;
-			question.setName( "Observations during current episode of care" ) ;
-			question.setLabel( "Observations during current episode of care" ) ;	
+			question.setName( rule.questionName ) ;
+			question.setLabel( rule.questionLabel ) ;	
 			
 			org.brisskit.onyxmetadata.stageone.beans.VariableType oiVariable = question.addNewVariable() ;
-			oiVariable.setName( "ODCEOC" );
-			oiVariable.setType( "text" ) ;
+			oiVariable.setName( rule.variableName );
+			oiVariable.setType( rule.variableType ) ;
 			
 			Iterator<ChildQuestion> cit = children.listIterator() ;
 			while( cit.hasNext() ) {
 				cit.next().buildQuestion( this.question ) ;
 			}
 			
-			if( log.isTraceEnabled() ) exitTrace( "Kludge_ObservationsDuringCurrentPeriodOfCareQuestion.buildQuestion" ) ;
+			if( log.isTraceEnabled() ) exitTrace( "KludgeQuestion.buildQuestion" ) ;
 		}
 		
 	}
@@ -1182,6 +1706,24 @@ public class OnyxVariables2Metadata {
                 else if( args[i].startsWith( "-o=" ) ) { 
                 	OnyxVariables2Metadata.outDirectoryPath = args[i].substring(3) ;
                 }                  
+                else if( args[i].startsWith( "-threads=" ) ) { 
+                	if( !setThreads( args[i].substring(9) ) ) return false ;
+                }
+                else if( args[i].startsWith( "-t=" ) ) { 
+                	if( !setThreads( args[i].substring(3) ) ) return false ;
+                }
+                else if( args[i].startsWith( "-reader=" ) ) { 
+                	if( !setReader( args[i].substring(8) ) ) return false ;
+                }
+                else if( args[i].startsWith( "-r=" ) ) { 
+                	if( !setReader( args[i].substring(3) ) ) return false ;
+                }
+                else if( args[i].startsWith( "-format=" ) ) { 
+                	if( !setFormat( args[i].substring(8) ) ) return false ;
+                }
+                else if( args[i].startsWith( "-f=" ) ) { 
+                	if( !setFormat( args[i].substring(3) ) ) return false ;
+                }
                 
             }
             if( OnyxVariables2Metadata.inDirectoryPath != null ) {
@@ -1190,5 +1732,47 @@ public class OnyxVariables2Metadata {
         }       
         return retVal ;
     }
+    
+    private static boolean setThreads( String number ) {
+    	try {
+    		OnyxVariables2Metadata.threads = Integer.parseInt( number ) ;
+    	}
+    	catch( NumberFormatException nfx ) {
+    		OnyxVariables2Metadata.threads = 0 ;
+    	}
+    	if( OnyxVariables2Metadata.threads < 1 ) {
+    		System.out.println( "Threads must be a positive number: [" + number + "]" ) ;
+    		return false ;
+    	}
+    	return true ;
+    }
+    
+    private static boolean setReader( String reader ) {
+    	if( reader.equalsIgnoreCase( "stream" ) ) {
+    		OnyxVariables2Metadata.streamReader = true ;
+    	}
+    	else if( reader.equalsIgnoreCase( "dom" ) ) {
+    		OnyxVariables2Metadata.streamReader = false ;
+    	}
+    	else {
+    		System.out.println( "Reader must be dom or stream: [" + reader + "]" ) ;
+    		return false ;
+    	}
+    	return true ;
+    }
+    
+    private static boolean setFormat( String format ) {
+    	if( format.equalsIgnoreCase( "binary" ) ) {
+    		OnyxVariables2Metadata.binaryFormat = true ;
+    	}
+    	else if( format.equalsIgnoreCase( "xml" ) ) {
+    		OnyxVariables2Metadata.binaryFormat = false ;
+    	}
+    	else {
+    		System.out.println( "Format must be xml or binary: [" + format + "]" ) ;
+    		return false ;
+    	}
+    	return true ;
+    }
 	
 }
@@ -3,8 +3,34 @@
  */
 package org.brisskit.onyxexport;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -27,18 +53,65 @@ public class OnyxVariablesCleaner {
 	private static final String USAGE =
         "Usage: OnyxVariablesCleaner {Parameters}\n" +       
         "Parameters:\n" +
-        " -export=path-to-onyx-export-directory\n" +
+        " -export=path-to-onyx-export-directory-or-zip\n" +
+        " -output=path-to-cleaned-zip\n" +
+        " -mode=dom|stream|alias\n" +
+        " -threads=number-of-worker-threads\n" +
+        " -rules=path-to-rules-file\n" +
         "Notes:\n" +
-        " (1) Parameter triggers can be shortened to the first letter; ie: -i,-o.\n" +
+        " (1) Parameter triggers can be shortened to the first letter; ie: -e,-o,-m,-t,-r.\n" +
         " (2) The export parameter is mandatory.\n" +
         " (3) The export directory must exist and contain an onyx export with files" +
-        "     enhanced with appropriate XML name spaces." ;
+        "     enhanced with appropriate XML name spaces.\n" +
+        " (4) Mode dom (the default) parses each file into XmlBeans;\n" +
+        "     mode stream rewrites each file through StAX in constant memory;\n" +
+        "     mode alias leaves the export untouched, writing instead a map of corrections\n" +
+        "     (" + VariableAliases.FILE_NAME + ") for readers to apply when parsing.\n" +
+        " (5) Threads defaults to 1. Failures are reported once all files have been tried.\n" +
+        " (6) The rules file holds one rename per line: questionnaire/old-name = new-name\n" +
+        "     If omitted, only the RiskFactorQuestionnaire father_die_age fix is applied.\n" +
+        " (7) Files already dealt with under the same rules are recorded in the export\n" +
+        "     directory (" + CleaningManifest.MANIFEST_FILE_NAME + ") and skipped on a re-run.\n" +
+        " (8) In modes dom and stream, each cleaned file is written in full to a temporary file\n" +
+        "     which is synced to disk and then renamed over the original. An interrupted run\n" +
+        "     never leaves a half-written file behind.\n" +
+        " (9) If the export is a zip file, the output parameter is mandatory and must not exist.\n" +
+        "     The zip is cleaned in a single streaming pass (as per mode stream) into a new zip;\n" +
+        "     nothing is extracted to disk. Threads and the manifest do not apply; mode alias is not allowed." ;
 	
 	private static Log log = LogFactory.getLog( OnyxVariablesCleaner.class ) ;
 	
     private static String inDirectoryPath = null ;
+    private static String outZipPath = null ;
+    private static final String MODE_DOM = "dom" ;
+    private static final String MODE_STREAM = "stream" ;
+    private static final String MODE_ALIAS = "alias" ;
+    
+    private static String mode = MODE_DOM ;
+    private static int threads = 1 ;
+    private static String rulesFilePath = null ;
+    private static final int PUBLISH_GROUP_SIZE = 32 ;
     
     private File directory ;
+    private Map<String,String> renames ;
+    private StreamingVariableRenamer renamer ;
+    private MappedFileScanner scanner ;
+    private CleaningManifest manifest ;
+    private ExecutorService executor ;
+    private CleanedFileWriter writer ;
+    private List<Failure> failures ;
+    
+    /**
+     * Records a file that could not be cleaned.
+     */
+    private static class Failure {
+    	final File file ;
+    	final Exception exception ;
+    	Failure( File file, Exception exception ) {
+    		this.file = file ;
+    		this.exception = exception ;
+    	}
+    }
 
 	/**
 	 * @param args
@@ -58,43 +131,152 @@ public class OnyxVariablesCleaner {
 			System.out.println( "Input directory does not exist: [" + inDirectoryPath + "]" ) ; 
 			System.exit(1) ;
 		}		
-		String[] fileNames = inputDirectory.list() ;
 		//
-		// Bail out if no files exist...
-		if( fileNames.length == 0 ) {
-			System.out.println( "Input directory is empty." ) ;
+		// An export held as a zip is cleaned into a new zip...
+		if( ExportZipReader.isZip( inputDirectory ) ) {
+			mainZip( inputDirectory ) ;
+		}
+		else if( outZipPath != null ) {
+			System.out.println( "The output parameter only applies to an export held as a zip." ) ; 
 			System.exit(1) ;
 		}
 		//
-		// Process the input directory...
-		for( int i=0; i<fileNames.length; i++ ) {
-			
-			File candidateQuestionnaireDirectory = new File( inputDirectory.getAbsolutePath(), fileNames[i] ) ;
-			//
-			// Bypass hidden directories or those beginning with a dot.
-			// (Useful in development when .svn directories can get in the way)... 
-			if( candidateQuestionnaireDirectory.isHidden() || candidateQuestionnaireDirectory.getName().startsWith( ".") ) {
-				continue ;
+		// Bail out if no files exist...
+		try {
+			if( ExportDirectoryScanner.isEmpty( inputDirectory ) ) {
+				System.out.println( "Input directory is empty." ) ;
+				System.exit(1) ;
 			}
-			//
-			// Everything at the top level to be processed is a directory...
-			if( candidateQuestionnaireDirectory.isDirectory() ) {
-				
-				try {
-					log.debug( "Processing: " + candidateQuestionnaireDirectory.getName() ) ;
-					if( candidateQuestionnaireDirectory.getName().equals( "RiskFactorQuestionnaire" ) ) {
-						System.out.println( "OnyxVariablesCleaner cleaning: RiskFactorQuestionnaire" ) ;
-						OnyxVariablesCleaner ovc = new OnyxVariablesCleaner( candidateQuestionnaireDirectory ) ;
-						ovc.cleanRiskFactorQuestionnaire() ;
-					}
+		}
+		catch( IOException iox ) {
+			System.out.println( "Input directory cannot be read: " + iox.getLocalizedMessage() ) ;
+			System.exit(1) ;
+		}
+		//
+		// Compile the renaming rules...
+		CleaningRules rules = null ;
+		try {
+			rules = ( rulesFilePath == null ? CleaningRules.defaults() : CleaningRules.load( new File( rulesFilePath ) ) ) ;
+		}
+		catch( IOException iox ) {
+			System.out.println( "Rules file is invalid: " + iox.getLocalizedMessage() ) ; 
+			System.exit(1) ;
+		}
+		//
+		// Load the record of files already dealt with under these rules...
+		CleaningManifest manifest = null ;
+		try {
+			manifest = CleaningManifest.load( inputDirectory, rules.getVersion() ) ;
+		}
+		catch( IOException iox ) {
+			System.out.println( "Cleaning manifest could not be read: " + iox.getLocalizedMessage() ) ; 
+			System.exit(1) ;
+		}
+		//
+		// Files are cleaned on a bounded worker pool if more than one thread was asked for.
+		// When the queue is full the submitting thread cleans the file itself...
+		ExecutorService executor = null ;
+		if( threads > 1 ) {
+			executor = new ThreadPoolExecutor( threads, threads, 0L, TimeUnit.MILLISECONDS,
+					                           new ArrayBlockingQueue<Runnable>( threads * 2 ),
+					                           new ThreadPoolExecutor.CallerRunsPolicy() ) ;
+		}
+		final List<Failure> failures = Collections.synchronizedList( new ArrayList<Failure>() ) ;
+		//
+		// Cleaned files are published (synced and renamed into place) by a write-behind stage.
+		// A file is only recorded in the manifest once it has been published...
+		CleanedFileWriter writer = null ;
+		if( !MODE_ALIAS.equals( mode ) ) {
+			final CleaningManifest publishedManifest = manifest ;
+			writer = new CleanedFileWriter( PUBLISH_GROUP_SIZE, new CleanedFileWriter.Listener() {
+				public void published( File target, String hash ) {
+					publishedManifest.record( target, hash ) ;
 				}
-				//
-				// Catch all exceptions...
-				catch( Exception ex ) {
-					ex.printStackTrace() ; 
-					System.exit(1) ;
+				public void failed( File target, Exception ex ) {
+					log.error( "Failed to publish " + target.getAbsolutePath(), ex ) ;
+					failures.add( new Failure( target, ex ) ) ;
 				}
+			} ) ;
+		}
+		//
+		// Process the input directory in one pass, applying every rule relevant to each questionnaire...
+		// (The scanner bypasses hidden directories and anything that is not a directory)...
+		DirectoryStream<Path> questionnaireDirectories = null ;
+		try {
+			questionnaireDirectories = ExportDirectoryScanner.questionnaireDirectories( inputDirectory ) ;
+			for( Path path : questionnaireDirectories ) {
+				File candidateQuestionnaireDirectory = path.toFile() ;
+				log.debug( "Processing: " + candidateQuestionnaireDirectory.getName() ) ;
+				String questionnaire = candidateQuestionnaireDirectory.getName() ;
+				if( rules.hasRules( questionnaire ) ) {
+					System.out.println( "OnyxVariablesCleaner cleaning: " + questionnaire ) ;
+					OnyxVariablesCleaner ovc = new OnyxVariablesCleaner( candidateQuestionnaireDirectory, 
+							                                             rules.getRenames( questionnaire ),
+							                                             manifest,
+							                                             executor, 
+							                                             writer,
+							                                             failures ) ;
+					if( MODE_ALIAS.equals( mode ) ) {
+						ovc.aliasQuestionnaire() ;
+					}
+					else {
+						ovc.cleanQuestionnaire() ;
+					}
+				}
+			}
+		}
+		//
+		// Catch all exceptions...
+		catch( Exception ex ) {
+			ex.printStackTrace() ; 
+			System.exit(1) ;
+		}
+		finally {
+			closeQuietly( questionnaireDirectories ) ;
+		}
+		//
+		// Wait for outstanding files...
+		if( executor != null ) {
+			executor.shutdown() ;
+			try {
+				executor.awaitTermination( Long.MAX_VALUE, TimeUnit.MILLISECONDS ) ;
 			}
+			catch( InterruptedException ix ) {
+				System.out.println( "Interrupted whilst waiting for files to be cleaned." ) ;
+				System.exit(1) ;
+			}
+		}
+		//
+		// Wait for outstanding files to be published...
+		if( writer != null ) {
+			try {
+				writer.close() ;
+			}
+			catch( InterruptedException ix ) {
+				System.out.println( "Interrupted whilst waiting for cleaned files to be written." ) ;
+				System.exit(1) ;
+			}
+			catch( IOException iox ) {
+				System.out.println( "Cleaned files could not all be written: " + iox.getLocalizedMessage() ) ;
+			}
+		}
+		//
+		// Record what has been done, so a re-run can skip it...
+		try {
+			manifest.save() ;
+		}
+		catch( IOException iox ) {
+			System.out.println( "Cleaning manifest could not be saved: " + iox.getLocalizedMessage() ) ;
+		}
+		//
+		// Report any files that could not be cleaned...
+		if( !failures.isEmpty() ) {
+			for( Failure failure : failures ) {
+				System.out.println( "OnyxVariablesCleaner failed on: " + failure.file.getAbsolutePath() ) ;
+				failure.exception.printStackTrace() ;
+			}
+			System.out.println( "OnyxVariablesCleaner: " + failures.size() + " file(s) could not be cleaned." ) ;
+			System.exit(1) ;
 		}
 		//
 		// We appear to have been successful...
@@ -102,72 +284,357 @@ public class OnyxVariablesCleaner {
 		System.exit(0) ;
 	}
 
-	private OnyxVariablesCleaner( File directory ) throws XmlException, IOException {
+	/**
+	 * Cleans an export held as a zip file into a new zip file, then exits.
+	 * 
+	 * @param inputZip
+	 */
+	private static void mainZip( File inputZip ) {
+		if( outZipPath == null ) {
+			System.out.println( "The output parameter is mandatory for an export held as a zip." ) ; 
+			System.exit(1) ;
+		}
+		File outputZip = new File( outZipPath ) ;
+		if( outputZip.exists() ) {
+			System.out.println( "Output zip already exists: [" + outZipPath + "]" ) ; 
+			System.exit(1) ;
+		}
+		if( MODE_ALIAS.equals( mode ) ) {
+			System.out.println( "Mode alias is not allowed for an export held as a zip." ) ; 
+			System.exit(1) ;
+		}
+		try {
+			CleaningRules rules = ( rulesFilePath == null ? CleaningRules.defaults() : CleaningRules.load( new File( rulesFilePath ) ) ) ;
+			int count = cleanZip( inputZip, outputZip, rules ) ;
+			System.out.println( "OnyxVariablesCleaner: " + count + " file(s) cleaned into " + outputZip.getAbsolutePath() ) ;
+		}
+		//
+		// Catch all exceptions...
+		catch( Exception ex ) {
+			ex.printStackTrace() ; 
+			System.exit(1) ;
+		}
+		//
+		// We appear to have been successful...
+		System.out.println( "OnyxVariablesCleaner: Done!" ) ;	
+		System.exit(0) ;
+	}
+	
+	/**
+	 * Streams every entry of the input zip into the output zip, renaming variables within 
+	 * the variables and participant files of each questionnaire that has rules. Every other
+	 * entry, including directories and hidden files, is copied as it is.
+	 * Only one entry at a time is held in memory. The output zip is written to the side
+	 * and renamed into place once complete.
+	 * 
+	 * @param inputZip
+	 * @param outputZip
+	 * @param rules
+	 * @return the number of files changed
+	 * @throws IOException
+	 */
+	public static int cleanZip( File inputZip, File outputZip, CleaningRules rules ) throws IOException {
+		HashMap<String,StreamingVariableRenamer> renamers = new HashMap<String,StreamingVariableRenamer>() ;
+		HashMap<String,MappedFileScanner> scanners = new HashMap<String,MappedFileScanner>() ;
+		File tempZip = CleanedFileWriter.tempFileFor( outputZip ) ;
+		byte[] buffer = new byte[ 64 * 1024 ] ;
+		int count = 0 ;
+		ExportZipReader reader = new ExportZipReader( inputZip ) ;
+		try {
+			ZipOutputStream zout = new ZipOutputStream( new BufferedOutputStream( new FileOutputStream( tempZip ) ) ) ;
+			try {
+				while( reader.nextRawEntry() != null ) {
+					ZipEntry entry = new ZipEntry( reader.getEntry().getName() ) ;
+					entry.setTime( reader.getEntry().getTime() ) ;
+					if( reader.getEntry().getComment() != null ) {
+						entry.setComment( reader.getEntry().getComment() ) ;
+					}
+					zout.putNextEntry( entry ) ;
+					String questionnaire = reader.getQuestionnaire() ;
+					if( ( reader.isVariablesFile() || reader.isParticipantFile() ) && rules.hasRules( questionnaire ) ) {
+						StreamingVariableRenamer renamer = renamers.get( questionnaire ) ;
+						if( renamer == null ) {
+							renamer = new StreamingVariableRenamer( rules.getRenames( questionnaire ) ) ;
+							renamers.put( questionnaire, renamer ) ;
+							scanners.put( questionnaire, new MappedFileScanner( rules.getRenames( questionnaire ).keySet() ) ) ;
+						}
+						//
+						// Hold the entry so that most, which have nothing to clean, are copied byte for byte...
+						ByteArrayOutputStream holder = new ByteArrayOutputStream() ;
+						copy( reader.getInputStream(), holder, buffer ) ;
+						byte[] content = holder.toByteArray() ;
+						if( scanners.get( questionnaire ).containsAny( content, content.length ) ) {
+							log.debug( "Cleaning " + entry.getName() ) ;
+							renamer.rewrite( new ByteArrayInputStream( content ), zout ) ;
+							count++ ;
+						}
+						else {
+							zout.write( content ) ;
+						}
+					}
+					else {
+						copy( reader.getInputStream(), zout, buffer ) ;
+					}
+					zout.closeEntry() ;
+				}
+			}
+			finally {
+				zout.close() ;
+			}
+		}
+		catch( IOException iox ) {
+			tempZip.delete() ;
+			throw iox ;
+		}
+		finally {
+			reader.close() ;
+		}
+		Files.move( tempZip.toPath(), outputZip.toPath(), StandardCopyOption.ATOMIC_MOVE ) ;
+		return count ;
+	}
+	
+	private static void copy( InputStream in, OutputStream out, byte[] buffer ) throws IOException {
+		int n ;
+		while( ( n = in.read( buffer ) ) != -1 ) {
+			out.write( buffer, 0, n ) ;
+		}
+	}
+	
+	private OnyxVariablesCleaner( File directory, 
+			                      Map<String,String> renames,
+			                      CleaningManifest manifest,
+			                      ExecutorService executor, 
+			                      CleanedFileWriter writer,
+			                      List<Failure> failures ) throws XmlException, IOException {
 		this.directory = directory ;
-
+		this.renames = renames ;
+		this.manifest = manifest ;
+		this.executor = executor ;
+		this.writer = writer ;
+		this.failures = failures ;
+		this.scanner = new MappedFileScanner( renames.keySet() ) ;
+		if( MODE_STREAM.equals( mode ) ) {
+			this.renamer = new StreamingVariableRenamer( renames ) ;
+		}
 	}
 	
-	private void cleanRiskFactorQuestionnaire() throws Exception {
-		File[] files = directory.listFiles() ;
-		for( File file : files ) {
-			String fileName = file.getName();
-			//
-			// We need to process the variables file...
-			if( fileName.equals( "variables.xml" ) ) {
-				cleanRFQVariablesFile( file ) ;
+	/**
+	 * Rather than rewriting files, records the corrections that apply to the 
+	 * questionnaire's variables file as aliases for readers to apply.
+	 * 
+	 * @throws Exception
+	 */
+	private void aliasQuestionnaire() throws Exception {
+		File variablesFile = new File( directory, "variables.xml" ) ;
+		VariableAliases aliases = new VariableAliases() ;
+		if( variablesFile.exists() && isCleaningRequired( variablesFile, null ) ) {
+			VariablesDocument varDoc = VariablesDocument.Factory.parse( variablesFile ) ;
+			VariableType[] vtArray = varDoc.getVariables().getVariableArray() ;
+			for( VariableType vt : vtArray ) {
+				String newName = renames.get( vt.getName() ) ;
+				if( newName != null ) {
+					aliases.put( vt.getName(), newName ) ;
+				}
 			}
+		}
+		if( aliases.isEmpty() ) {
 			//
-			// We ignore the enitities file...
-			else if( fileName.equals( "entities.xml" ) ) {
-				log.debug( "Skipping " + fileName ) ;
-				continue ;
+			// Make sure no stale aliases survive...
+			new File( directory, VariableAliases.FILE_NAME ).delete() ;
+		}
+		else {
+			aliases.save( directory ) ;
+		}
+	}
+	
+	private void cleanQuestionnaire() throws Exception {
+		//
+		// A cleaned file left unpublished by an interrupted run is discarded...
+		DirectoryStream<Path> unpublished = ExportDirectoryScanner.matching( directory, ".*" + CleanedFileWriter.TEMP_SUFFIX ) ;
+		try {
+			for( Path path : unpublished ) {
+				log.debug( "Discarding unpublished " + path.getFileName() ) ;
+				Files.deleteIfExists( path ) ;
 			}
-			else {
-				//
-				// The format of the name of a participant data file is nnnnnnn.xml
-				// Check on this format before selecting for processing...
-				String basename = fileName.split( "\\." )[0] ;
+		}
+		finally {
+			unpublished.close() ;
+		}
+		//
+		// We need to process the variables file...
+		File variablesFile = new File( directory, ExportDirectoryScanner.VARIABLES_FILE_NAME ) ;
+		if( variablesFile.isFile() ) {
+			submit( variablesFile, true ) ;
+		}
+		//
+		// And every participant data file (the entities file and anything else is ignored).
+		// Files are fed to the workers as the directory is read...
+		DirectoryStream<Path> participantFiles = ExportDirectoryScanner.participantFiles( directory ) ;
+		try {
+			for( Path path : participantFiles ) {
+				submit( path.toFile(), false ) ;
+			}
+		}
+		finally {
+			participantFiles.close() ;
+		}
+	}
+	
+	/**
+	 * Cleans the given file, either on the worker pool or (without one) on the current thread.
+	 * A failure is recorded rather than thrown, so that the remaining files still get cleaned.
+	 * 
+	 * @param file
+	 * @param variablesFile true for the variables file, false for a participant data file
+	 */
+	private void submit( final File file, final boolean variablesFile ) {
+		Runnable task = new Runnable() {
+			public void run() {
 				try {
-					Integer.valueOf( basename ) ;
-					cleanRFQDataFiles( file ) ;
+					if( manifest.isUnchanged( file ) ) {
+						if( log.isDebugEnabled() ) {
+							log.debug( "Already clean: " + file.getName() ) ;
+						}
+						return ;
+					}
+					//
+					// A file with nothing to clean is recorded with the hash taken as it was scanned...
+					MessageDigest digest = CleaningManifest.newDigest() ;
+					if( !isCleaningRequired( file, digest ) ) {
+						manifest.record( file, CleaningManifest.toHex( digest.digest() ) ) ;
+						return ;
+					}
+					//
+					// A cleaned file is recorded once the writer has it safely in place...
+					if( variablesFile ) {
+						cleanVariablesFile( file ) ;
+					}
+					else {
+						cleanDataFile( file ) ;
+					}
 				}
-				catch( NumberFormatException nfx ) {
-					log.debug( "Skipping " + fileName ) ;
-					continue ;
+				catch( Exception ex ) {
+					log.error( "Failed to clean " + file.getAbsolutePath(), ex ) ;
+					failures.add( new Failure( file, ex ) ) ;
 				}
 			}
+		} ;
+		if( executor == null ) {
+			task.run() ;
+		}
+		else {
+			executor.execute( task ) ;
 		}
-		
 	}
 	
-	private void cleanRFQVariablesFile( File variablesFile ) throws Exception {			
+	/**
+	 * Hands a cleaned version of the variables file to the writer.
+	 * 
+	 * @param variablesFile
+	 * @throws Exception
+	 */
+	private void cleanVariablesFile( File variablesFile ) throws Exception {
+		File tempFile = CleanedFileWriter.tempFileFor( variablesFile ) ;
+		if( MODE_STREAM.equals( mode ) ) {
+			writer.publish( tempFile, variablesFile, write( tempFile, variablesFile, null ) ) ;
+			return ;
+		}
 		VariablesDocument varDoc = VariablesDocument.Factory.parse( variablesFile ) ;
 		VariableType[] vtArray = varDoc.getVariables().getVariableArray() ;
 		for( VariableType vt : vtArray ) {
 			//
-			// Correct the name for father_die_age...
-			if( vt.getName().equals( "father_die_age_cat.AGE_FAM.AGE_FAM") ) {
-				vt.setName( "father_die_age" ) ;
+			// Correct the name if a rule says so...
+			String newName = renames.get( vt.getName() ) ;
+			if( newName != null ) {
+				vt.setName( newName ) ;
 			}
 		}
 		//
-		// Save the file in-place (overwrites the old file)...
-		save( variablesFile, varDoc ) ;
+		// Save to the side; the writer replaces the old file...
+		writer.publish( tempFile, variablesFile, write( tempFile, null, varDoc ) ) ;
 	}
 	
-	private void cleanRFQDataFiles( File valueSetFile ) throws Exception {
+	/**
+	 * Hands a cleaned version of the participant data file to the writer.
+	 * 
+	 * @param valueSetFile
+	 * @throws Exception
+	 */
+	private void cleanDataFile( File valueSetFile ) throws Exception {
+		File tempFile = CleanedFileWriter.tempFileFor( valueSetFile ) ;
+		if( MODE_STREAM.equals( mode ) ) {
+			writer.publish( tempFile, valueSetFile, write( tempFile, valueSetFile, null ) ) ;
+			return ;
+		}
 		ValueSetDocument vsDoc = ValueSetDocument.Factory.parse( valueSetFile ) ;
 		VariableValueType[] vvtArray = vsDoc.getValueSet().getVariableValueArray() ;
 		for( VariableValueType vvt : vvtArray ) {
 			//
-			// Correct the name for father_die_age...
-			if( vvt.getVariable().equals( "father_die_age_cat.AGE_FAM.AGE_FAM") ) {
-				vvt.setVariable( "father_die_age" ) ;
+			// Correct the name if a rule says so...
+			String newName = renames.get( vvt.getVariable() ) ;
+			if( newName != null ) {
+				vvt.setVariable( newName ) ;
 			}
 		}
 		//
-		// Save the file in-place (overwrites the old file)...
-		save( valueSetFile, vsDoc ) ;
+		// Save to the side; the writer replaces the old file...
+		writer.publish( tempFile, valueSetFile, write( tempFile, null, vsDoc ) ) ;
+	}
+	
+	/**
+	 * Writes a cleaned version to the temporary file, either by streaming the source through
+	 * the renamer or by saving the corrected document. The bytes are digested as they are written,
+	 * so the manifest never has to read the file back. On failure the temporary file is deleted.
+	 * 
+	 * @param tempFile
+	 * @param source the file to stream, or null
+	 * @param document the corrected document to save, or null
+	 * @return the hash of what was written
+	 * @throws IOException
+	 */
+	private String write( File tempFile, File source, XmlObject document ) throws IOException {
+		MessageDigest digest = CleaningManifest.newDigest() ;
+		OutputStream out = new BufferedOutputStream( new DigestOutputStream( new FileOutputStream( tempFile ), digest ) ) ;
+		try {
+			if( source != null ) {
+				InputStream in = new BufferedInputStream( new FileInputStream( source ) ) ;
+				try {
+					renamer.rewrite( in, out ) ;
+				}
+				finally {
+					in.close() ;
+				}
+			}
+			else {
+				document.save( out, getSaveOptions() ) ;
+			}
+			out.close() ;
+		}
+		catch( IOException iox ) {
+			closeQuietly( out ) ;
+			tempFile.delete() ;
+			throw iox ;
+		}
+		return CleaningManifest.toHex( digest.digest() ) ;
+	}
+	
+	/**
+	 * Most files never mention a variable that needs correcting. A scan of the raw bytes
+	 * lets those files bypass parsing and rewriting altogether.
+	 * 
+	 * @param file
+	 * @param digest if there is nothing to correct, the file's content is digested here; may be null
+	 * @return true if the file mentions a variable to be corrected, false otherwise.
+	 * @throws IOException
+	 */
+	private boolean isCleaningRequired( File file, MessageDigest digest ) throws IOException {
+		if( scanner.containsAny( file, digest ) ) {
+			return true ;
+		}
+		if( log.isDebugEnabled() ) {
+			log.debug( "Nothing to clean in " + file.getName() ) ;
+		}
+		return false ;
 	}
 	
     private static boolean retrieveArgs( String[] args ) {
@@ -181,6 +648,30 @@ public class OnyxVariablesCleaner {
                 }
                 else if( args[i].startsWith( "-e=" ) ) { 
                 	OnyxVariablesCleaner.inDirectoryPath = args[i].substring(3) ;
+                }
+                else if( args[i].startsWith( "-output=" ) ) { 
+                	OnyxVariablesCleaner.outZipPath = args[i].substring(8) ;
+                }
+                else if( args[i].startsWith( "-o=" ) ) { 
+                	OnyxVariablesCleaner.outZipPath = args[i].substring(3) ;
+                }
+                else if( args[i].startsWith( "-mode=" ) ) { 
+                	if( !setMode( args[i].substring(6) ) ) return false ;
+                }
+                else if( args[i].startsWith( "-m=" ) ) { 
+                	if( !setMode( args[i].substring(3) ) ) return false ;
+                }
+                else if( args[i].startsWith( "-threads=" ) ) { 
+                	if( !setThreads( args[i].substring(9) ) ) return false ;
+                }
+                else if( args[i].startsWith( "-t=" ) ) { 
+                	if( !setThreads( args[i].substring(3) ) ) return false ;
+                }
+                else if( args[i].startsWith( "-rules=" ) ) { 
+                	OnyxVariablesCleaner.rulesFilePath = args[i].substring(7) ;
+                }
+                else if( args[i].startsWith( "-r=" ) ) { 
+                	OnyxVariablesCleaner.rulesFilePath = args[i].substring(3) ;
                 }                 
                 
             }
@@ -191,6 +682,48 @@ public class OnyxVariablesCleaner {
         return retVal ;
     }
     
+    private static boolean setMode( String mode ) {
+    	if( mode.equalsIgnoreCase( MODE_STREAM ) ) {
+    		OnyxVariablesCleaner.mode = MODE_STREAM ;
+    		return true ;
+    	}
+    	else if( mode.equalsIgnoreCase( MODE_DOM ) ) {
+    		OnyxVariablesCleaner.mode = MODE_DOM ;
+    		return true ;
+    	}
+    	else if( mode.equalsIgnoreCase( MODE_ALIAS ) ) {
+    		OnyxVariablesCleaner.mode = MODE_ALIAS ;
+    		return true ;
+    	}
+    	System.out.println( "Unrecognised mode: [" + mode + "]" ) ;
+    	return false ;
+    }
+    
+    private static boolean setThreads( String number ) {
+    	try {
+    		OnyxVariablesCleaner.threads = Integer.parseInt( number ) ;
+    	}
+    	catch( NumberFormatException nfx ) {
+    		OnyxVariablesCleaner.threads = 0 ;
+    	}
+    	if( OnyxVariablesCleaner.threads < 1 ) {
+    		System.out.println( "Threads must be a positive number: [" + number + "]" ) ;
+    		return false ;
+    	}
+    	return true ;
+    }
+    
+    private static void closeQuietly( Closeable closeable ) {
+    	if( closeable != null ) {
+    		try {
+    			closeable.close() ;
+    		}
+    		catch( IOException iox ) {
+    			log.debug( "Failed to close: " + iox.getLocalizedMessage() ) ;
+    		}
+    	}
+    }
+    
     public void save( File file, XmlObject document ) throws IOException {
 		XmlOptions opts = getSaveOptions() ;
 		document.save( file, opts ) ;
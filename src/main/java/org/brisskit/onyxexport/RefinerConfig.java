@@ -0,0 +1,355 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.brisskit.export.metadata.config.beans.CodeType;
+import org.brisskit.export.metadata.config.beans.EnumType;
+import org.brisskit.export.metadata.config.beans.FilterType;
+import org.brisskit.export.metadata.config.beans.OntologyPhaseType;
+import org.brisskit.export.metadata.config.beans.OnyxExportConfigDocument;
+import org.brisskit.onyxexport.MetadataRefiner.MetadataRefinerException;
+
+/**
+ * What <code>MetadataRefiner</code> uses of the config file, compiled once from the XmlBeans
+ * document so that none of the getters (and the array copies they make) are called while
+ * the metadata is being processed:
+ * <p><blockquote><pre>
+ *     code prefix          : the prefix of every ontology code
+ *     standard booleans    : a set, matched regardless of case
+ *     enumerated concepts  : in config file order, first/last/group parsed, with a matcher for their hints and excludes
+ *     ethnicity            : the ethnicity variable name and its code table
+ *     questionnaire filters: by questionnaire (and alternate) name
+ * </pre></blockquote><p>
+ * A snapshot is immutable and may be shared between threads.
+ *
+ * @author jl99
+ *
+ */
+public final class RefinerConfig {
+
+	/**
+	 * An enumerated concept with its range already parsed, and its hints and excludes.
+	 */
+	public static final class EnumDescriptor {
+
+		private final String name ;
+		private final boolean range ;
+		private final boolean grouped ;
+		private final int first ;
+		private final int last ;
+		private final int group ;
+		private final String format ;
+		private final List<String> hints ;
+		private final List<String> excludes ;
+		private final Set<String> excludeSet ;
+
+		private EnumDescriptor( EnumType et ) throws MetadataRefinerException {
+			this( et.getName(), et.getFirst(), et.getLast(), et.getGroup(), et.getHintArray(), et.getExcludeArray() ) ;
+		}
+
+		/**
+		 * @param name
+		 * @param first the first value, or null if the enumeration is not a range
+		 * @param last the last value, or null
+		 * @param group the size of each group of values, or null if the values are not grouped
+		 * @param hints
+		 * @param excludes
+		 * @throws MetadataRefinerException if first is given without last, or a value is not a number,
+		 *         or the group is not positive
+		 */
+		EnumDescriptor( String name,
+				        String first,
+				        String last,
+				        String group,
+				        String[] hints,
+				        String[] excludes ) throws MetadataRefinerException {
+			this.name = name ;
+			this.range = ( first != null ) ;
+			this.grouped = ( group != null ) ;
+			if( range ) {
+				if( last == null ) {
+					throw new MetadataRefinerException( "Configuration file is invalid: enumerated concept [" + name + "] has a first value but no last value." ) ;
+				}
+				this.first = parse( name, "first", first ) ;
+				this.last = parse( name, "last", last ) ;
+				//
+				// Values are right aligned to the width of the last value as written...
+				this.format = "%" + last.length() + "d" ;
+			}
+			else {
+				this.first = 0 ;
+				this.last = 0 ;
+				this.format = null ;
+			}
+			this.group = ( grouped ? parse( name, "group", group ) : 0 ) ;
+			if( grouped && this.group <= 0 ) {
+				throw new MetadataRefinerException( "Configuration file is invalid: enumerated concept [" + name + "] has a group of " + this.group + "; it must be a positive number." ) ;
+			}
+			this.hints = Collections.unmodifiableList( Arrays.asList( hints.clone() ) ) ;
+			this.excludes = Collections.unmodifiableList( Arrays.asList( excludes.clone() ) ) ;
+			this.excludeSet = Collections.unmodifiableSet( new HashSet<String>( this.excludes ) ) ;
+		}
+
+		private static int parse( String name, String attribute, String value ) throws MetadataRefinerException {
+			try {
+				return Integer.parseInt( value ) ;
+			}
+			catch( NumberFormatException nfx ) {
+				throw new MetadataRefinerException( "Configuration file is invalid: enumerated concept [" + name + "] has a bad " + attribute + " value: [" + value + "]", nfx ) ;
+			}
+		}
+
+		public String getName() {
+			return name ;
+		}
+
+		/**
+		 * @return true if the enumeration has a first (and last) value, false otherwise.
+		 */
+		public boolean isRange() {
+			return range ;
+		}
+
+		/**
+		 * @return true if the enumeration's values are grouped, false otherwise.
+		 */
+		public boolean isGrouped() {
+			return grouped ;
+		}
+
+		public int getFirst() {
+			return first ;
+		}
+
+		public int getLast() {
+			return last ;
+		}
+
+		public int getGroup() {
+			return group ;
+		}
+
+		/**
+		 * @return the format for one value; eg: <code>%3d</code> for a last value of 119
+		 */
+		public String getFormat() {
+			return format ;
+		}
+
+		/**
+		 * @return the enumeration's hints, in config file order
+		 */
+		public List<String> getHints() {
+			return hints ;
+		}
+
+		/**
+		 * @return the enumeration's excludes, in config file order
+		 */
+		public List<String> getExcludes() {
+			return excludes ;
+		}
+
+		/**
+		 * @param s
+		 * @return true if s equals one of the enumeration's excludes, false otherwise.
+		 */
+		public boolean isExclude( String s ) {
+			return excludeSet.contains( s ) ;
+		}
+
+	}
+
+	/**
+	 * One row of the ethnic code table.
+	 */
+	public static final class EthnicCode {
+
+		private final String name ;
+		private final String description ;
+		private final String value ;
+
+		private EthnicCode( CodeType code ) {
+			this.name = code.getName() ;
+			this.description = code.getDescription() ;
+			this.value = code.getStringValue() ;
+		}
+
+		public String getName() {
+			return name ;
+		}
+
+		public String getDescription() {
+			return description ;
+		}
+
+		public String getValue() {
+			return value ;
+		}
+
+	}
+
+	private final String codePrefix ;
+	private final String ontologyRootName ;
+	private final Set<String> standardBooleans ;
+	private final EnumDescriptor[] enumerations ;
+	private final EnumerationMatcher enumerationMatcher ;
+	private final String ethnicityVariableName ;
+	private final List<EthnicCode> ethnicCodes ;
+	private final Map<String,ExclusionFilter> questionnaireFilters ;
+
+	/**
+	 * Compiles the given config document.
+	 *
+	 * @param configDoc
+	 * @throws MetadataRefinerException if an enumerated concept has a missing or invalid last value,
+	 *         or an invalid first or group value
+	 */
+	public RefinerConfig( OnyxExportConfigDocument configDoc ) throws MetadataRefinerException {
+		OntologyPhaseType ontologyPhase = configDoc.getOnyxExportConfig().getOntologyPhase() ;
+		this.codePrefix = configDoc.getOnyxExportConfig().getCodePrefix() ;
+		this.ontologyRootName = ontologyPhase.getOntologyRootName() ;
+		//
+		// Standard boolean values assumed within the questionnaire...
+		HashSet<String> booleans = new HashSet<String>() ;
+		String[] sba = ontologyPhase.getStandardBooleans().getValueArray() ;
+		for( int i=0; i<sba.length; i++ ) {
+			booleans.add( foldCase( sba[i] ) ) ;
+		}
+		this.standardBooleans = Collections.unmodifiableSet( booleans ) ;
+		//
+		// All the enumerated types, in config file order...
+		EnumType[] ets = ontologyPhase.getEnumeratedConcepts().getEnumArray() ;
+		ArrayList<EnumDescriptor> descriptors = new ArrayList<EnumDescriptor>( ets.length ) ;
+		for( int i=0; i<ets.length; i++ ) {
+			descriptors.add( new EnumDescriptor( ets[i] ) ) ;
+		}
+		List<EnumDescriptor> enums = distinctByName( descriptors ) ;
+		this.enumerations = enums.toArray( new EnumDescriptor[ enums.size() ] ) ;
+		this.enumerationMatcher = new EnumerationMatcher( enums ) ;
+		//
+		// Ethnic codes plus the questionnaire variable name...
+		this.ethnicityVariableName = ontologyPhase.getEthnicity().getVariableName() ;
+		CodeType[] cta = ontologyPhase.getEthnicity().getCodeArray() ;
+		ArrayList<EthnicCode> codes = new ArrayList<EthnicCode>( cta.length ) ;
+		for( int i=0; i<cta.length; i++ ) {
+			codes.add( new EthnicCode( cta[i] ) ) ;
+		}
+		this.ethnicCodes = Collections.unmodifiableList( codes ) ;
+		//
+		// The (sub-)questionnaire filters...
+		HashMap<String,ExclusionFilter> filters = new HashMap<String,ExclusionFilter>() ;
+		FilterType[] fta = ontologyPhase.getQuestionnaires().getFilterArray() ;
+		for( int i=0; i<fta.length; i++ ) {
+			ExclusionFilter compiled = new ExclusionFilter( fta[i] ) ;
+			filters.put( fta[i].getQuestionnaire(), compiled ) ;
+			//
+			// Some questionnaires may have an "alternative" internal/external name
+			// (eg: Participants and Participant)...
+			if( fta[i].isSetAlternateName() ) {
+				filters.put( fta[i].getAlternateName(), compiled ) ;
+			}
+		}
+		this.questionnaireFilters = Collections.unmodifiableMap( filters ) ;
+	}
+
+	/**
+	 * A later enumeration with the same name as an earlier one replaces it, but keeps its place.
+	 *
+	 * @param descriptors in config file order
+	 * @return the enumerations, one per name, in order of precedence
+	 */
+	static List<EnumDescriptor> distinctByName( List<EnumDescriptor> descriptors ) {
+		LinkedHashMap<String,EnumDescriptor> enums = new LinkedHashMap<String,EnumDescriptor>() ;
+		for( int i=0; i<descriptors.size(); i++ ) {
+			enums.put( descriptors.get( i ).getName(), descriptors.get( i ) ) ;
+		}
+		return new ArrayList<EnumDescriptor>( enums.values() ) ;
+	}
+
+	/**
+	 * Folds case as <code>String.equalsIgnoreCase()</code> compares: character by character,
+	 * through upper then lower case.
+	 */
+	private static String foldCase( String s ) {
+		char[] ca = s.toCharArray() ;
+		for( int i=0; i<ca.length; i++ ) {
+			ca[i] = Character.toLowerCase( Character.toUpperCase( ca[i] ) ) ;
+		}
+		return new String( ca ) ;
+	}
+
+	public String getCodePrefix() {
+		return codePrefix ;
+	}
+
+	public String getOntologyRootName() {
+		return ontologyRootName ;
+	}
+
+	/**
+	 * @param name
+	 * @return true if the name is a standard boolean (eg: "Y", "PNA"), regardless of case.
+	 */
+	public boolean isStandardBoolean( String name ) {
+		return standardBooleans.contains( foldCase( name ) ) ;
+	}
+
+	/**
+	 * @return the matcher for the enumerations' hints and excludes, numbered as {@link #getEnumeration(int)}
+	 */
+	public EnumerationMatcher getEnumerationMatcher() {
+		return enumerationMatcher ;
+	}
+
+	/**
+	 * @param index
+	 * @return the enumeration numbered index (in config file order)
+	 */
+	public EnumDescriptor getEnumeration( int index ) {
+		return enumerations[ index ] ;
+	}
+
+	/**
+	 * @param name
+	 * @return the number of the named enumeration, or -1 if there is none.
+	 */
+	public int indexOfEnumeration( String name ) {
+		return enumerationMatcher.indexOf( name ) ;
+	}
+
+	public String getEthnicityVariableName() {
+		return ethnicityVariableName ;
+	}
+
+	public List<EthnicCode> getEthnicCodes() {
+		return ethnicCodes ;
+	}
+
+	/**
+	 * @param questionnaire a stage or entity name
+	 * @return the filter for the questionnaire, or null if there is none.
+	 */
+	public ExclusionFilter getFilter( String questionnaire ) {
+		return questionnaireFilters.get( questionnaire ) ;
+	}
+
+	/**
+	 * @return the questionnaire (and alternate) names having a filter
+	 */
+	public Set<String> getFilteredQuestionnaires() {
+		return questionnaireFilters.keySet() ;
+	}
+
+}
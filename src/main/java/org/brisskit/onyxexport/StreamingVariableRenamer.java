@@ -0,0 +1,162 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartDocument;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Renames variables within Onyx export files by streaming them through a StAX
+ * reader/writer pair. Every event is copied through untouched except the name
+ * carried by a matching element: <br/>
+ * <br/>
+ * 1. the <code>variable</code> attribute of a <code>variableValue</code> element
+ *    within a participant data file (a <code>ValueSetDocument</code>), and <br/>
+ * 2. the <code>name</code> attribute of a <code>variable</code> element
+ *    within a variables file (a <code>VariablesDocument</code>). <br/>
+ * <br/>
+ * Unlike parsing into XmlBeans, memory use per file is constant regardless of the size of the file.
+ *
+ * @author jl99
+ *
+ */
+public class StreamingVariableRenamer {
+
+	private static Log log = LogFactory.getLog( StreamingVariableRenamer.class ) ;
+
+	public static final String VARIABLE_VALUE_ELEMENT = "variableValue" ;
+	public static final String VARIABLE_VALUE_ATTRIBUTE = "variable" ;
+	public static final String VARIABLE_ELEMENT = "variable" ;
+	public static final String VARIABLE_ATTRIBUTE = "name" ;
+
+	private static final String DEFAULT_ENCODING = "UTF-8" ;
+
+	private static final XMLInputFactory inputFactory = XMLInputFactory.newInstance() ;
+	private static final XMLOutputFactory outputFactory = XMLOutputFactory.newInstance() ;
+	private static final XMLEventFactory eventFactory = XMLEventFactory.newInstance() ;
+
+	private final Map<String,String> renames ;
+
+	/**
+	 * @param renames map of old variable name to new variable name
+	 */
+	public StreamingVariableRenamer( Map<String,String> renames ) {
+		this.renames = renames ;
+	}
+
+	/**
+	 * Streams XML from the given input to the given output, renaming matching variables.
+	 * Neither stream is closed.
+	 *
+	 * @param in
+	 * @param out
+	 * @return the number of variable names changed
+	 * @throws IOException
+	 */
+	public int rewrite( InputStream in, OutputStream out ) throws IOException {
+		XMLEventReader reader = null ;
+		XMLEventWriter writer = null ;
+		int count = 0 ;
+		try {
+			reader = inputFactory.createXMLEventReader( in ) ;
+			//
+			// Emit the output in the same encoding as the input...
+			String encoding = DEFAULT_ENCODING ;
+			if( reader.hasNext() && reader.peek().isStartDocument() ) {
+				StartDocument sd = (StartDocument)reader.peek() ;
+				if( sd.encodingSet() ) {
+					encoding = sd.getCharacterEncodingScheme() ;
+				}
+			}
+			writer = outputFactory.createXMLEventWriter( out, encoding ) ;
+			while( reader.hasNext() ) {
+				XMLEvent event = reader.nextEvent() ;
+				if( event.isStartElement() ) {
+					StartElement renamed = rename( event.asStartElement() ) ;
+					if( renamed != null ) {
+						event = renamed ;
+						count++ ;
+					}
+				}
+				writer.add( event ) ;
+			}
+			writer.flush() ;
+		}
+		catch( XMLStreamException xsx ) {
+			throw new IOException( "Streaming rewrite failed: " + xsx.getLocalizedMessage(), xsx ) ;
+		}
+		finally {
+			close( reader, writer ) ;
+		}
+		if( log.isDebugEnabled() ) {
+			log.debug( "Variable names changed: " + count ) ;
+		}
+		return count ;
+	}
+
+	/**
+	 * @param se
+	 * @return a replacement start element if the element carries a name to be changed, null otherwise.
+	 */
+	private StartElement rename( StartElement se ) {
+		String elementName = se.getName().getLocalPart() ;
+		String attributeName = null ;
+		if( elementName.equals( VARIABLE_VALUE_ELEMENT ) ) {
+			attributeName = VARIABLE_VALUE_ATTRIBUTE ;
+		}
+		else if( elementName.equals( VARIABLE_ELEMENT ) ) {
+			attributeName = VARIABLE_ATTRIBUTE ;
+		}
+		else {
+			return null ;
+		}
+		boolean changed = false ;
+		ArrayList<Attribute> attributes = new ArrayList<Attribute>() ;
+		Iterator<?> it = se.getAttributes() ;
+		while( it.hasNext() ) {
+			Attribute a = (Attribute)it.next() ;
+			if( a.getName().getLocalPart().equals( attributeName ) ) {
+				String newName = renames.get( a.getValue() ) ;
+				if( newName != null ) {
+					a = eventFactory.createAttribute( a.getName(), newName ) ;
+					changed = true ;
+				}
+			}
+			attributes.add( a ) ;
+		}
+		if( !changed ) {
+			return null ;
+		}
+		return eventFactory.createStartElement( se.getName(), attributes.iterator(), se.getNamespaces() ) ;
+	}
+
+	private static void close( XMLEventReader reader, XMLEventWriter writer ) {
+		try {
+			if( writer != null ) writer.close() ;
+			if( reader != null ) reader.close() ;
+		}
+		catch( XMLStreamException xsx ) {
+			log.warn( "Failed to close XML stream: " + xsx.getLocalizedMessage() ) ;
+		}
+	}
+
+}
@@ -0,0 +1,234 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.util.List;
+
+/**
+ * What <code>MetadataRefiner</code> needs to know about where it is within the metadata tree,
+ * passed down the recursion rather than found by walking up the tree with a cursor. <p/>
+ *
+ * A context is immutable. There is one per node of the stage one metadata being processed
+ * (a stage or entity, section, question or variable), each linked to that of its parent:
+ * <p><blockquote><pre>
+ *     stage or entity name  : the enclosing stage or entity, and its code qualifier
+ *     within question       : whether any ancestor of the node is a question
+ *     parent                : the context of the node's parent (eg: for its name)
+ *     folder path / hlevel  : the i2b2 path of the ontology folder the node is being written into,
+ *                             in Microsoft format, and its hierarchy level
+ *     path / filter states  : the node's path from the stage or entity name down (eg:
+ *                             <code>MedicalHistoryQuestionnaire/MAIN/mh_diabetes</code>), and the states
+ *                             it reached within the config file's filter for the stage or entity, if any
+ * </pre></blockquote><p>
+ * As with the i2b2 paths built before, the Participants and Admin folders are left out of the path.
+ *
+ * @author jl99
+ *
+ */
+public class TraversalContext {
+
+	private final TraversalContext parent ;
+	private final String name ;
+	private final boolean source ;
+	private final boolean entity ;
+	private final boolean question ;
+	private final boolean withinQuestion ;
+	private final String sourceName ;
+	private final String higherQualifier ;
+	private final String folderPath ;
+	private final int hlevel ;
+	private final String path ;
+	private final ExclusionFilter filter ;
+	private final List<ExclusionFilter.State> filterStates ;
+
+	private TraversalContext( TraversalContext parent,
+			                  String name,
+			                  boolean source,
+			                  boolean entity,
+			                  boolean question,
+			                  boolean withinQuestion,
+			                  String sourceName,
+			                  String higherQualifier,
+			                  String folderPath,
+			                  int hlevel,
+			                  String path,
+			                  ExclusionFilter filter,
+			                  List<ExclusionFilter.State> filterStates ) {
+		this.parent = parent ;
+		this.name = name ;
+		this.source = source ;
+		this.entity = entity ;
+		this.question = question ;
+		this.withinQuestion = withinQuestion ;
+		this.sourceName = sourceName ;
+		this.higherQualifier = higherQualifier ;
+		this.folderPath = folderPath ;
+		this.hlevel = hlevel ;
+		this.path = path ;
+		this.filter = filter ;
+		this.filterStates = filterStates ;
+	}
+
+	/**
+	 * The context of a stage or entity, written into the ontology's container (its root).
+	 *
+	 * @param name the stage or entity name
+	 * @param entity true for an entity, false for a stage
+	 * @param containerName the name of the ontology's container
+	 * @param filter the config file's filter for the stage or entity, or null if it has none
+	 * @return the context
+	 */
+	public static TraversalContext newInstance( String name, boolean entity, String containerName, ExclusionFilter filter ) {
+		return new TraversalContext( null,
+				                     name,
+				                     true,
+				                     entity,
+				                     false,
+				                     false,
+				                     name,
+				                     formQualifier( name ),
+				                     "\\" + containerName,
+				                     0,
+				                     String.valueOf( name ),
+				                     filter,
+				                     ( filter == null ? ExclusionFilter.NO_STATES : filter.startStates() ) ) ;
+	}
+
+	/**
+	 * @param childName
+	 * @param childIsQuestion
+	 * @return the context of a child node, written into the same folder as this node
+	 */
+	public TraversalContext child( String childName, boolean childIsQuestion ) {
+		return new TraversalContext( this,
+				                     childName,
+				                     false,
+				                     entity,
+				                     childIsQuestion,
+				                     withinQuestion || question,
+				                     sourceName,
+				                     higherQualifier,
+				                     folderPath,
+				                     hlevel,
+				                     path + '/' + childName,
+				                     filter,
+				                     ( filter == null ? ExclusionFilter.NO_STATES : filter.step( filterStates, childName ) ) ) ;
+	}
+
+	/**
+	 * @param folderName
+	 * @return this context, but written into a new folder within the current one
+	 */
+	public TraversalContext folder( String folderName ) {
+		if( folderName.equalsIgnoreCase( "Participants" )
+			||
+			folderName.equalsIgnoreCase( "Admin" ) ) {
+			return this ;
+		}
+		return new TraversalContext( parent,
+				                     name,
+				                     source,
+				                     entity,
+				                     question,
+				                     withinQuestion,
+				                     sourceName,
+				                     higherQualifier,
+				                     folderPath + '\\' + folderName,
+				                     hlevel + 1,
+				                     path,
+				                     filter,
+				                     filterStates ) ;
+	}
+
+	public TraversalContext getParent() {
+		return parent ;
+	}
+
+	public String getName() {
+		return name ;
+	}
+
+	/**
+	 * @return the name of the parent node, or null for a stage or entity.
+	 */
+	public String getParentName() {
+		return ( parent == null ? null : parent.name ) ;
+	}
+
+	/**
+	 * @return true if the node is within an entity (eg: Participant), false otherwise.
+	 */
+	public boolean isEntityRelated() {
+		return entity ;
+	}
+
+	/**
+	 * @return true if any ancestor of the node is a question, false otherwise.
+	 */
+	public boolean isQuestionRelated() {
+		return withinQuestion ;
+	}
+
+	public String getSourceName() {
+		return sourceName ;
+	}
+
+	/**
+	 * The code qualifier for the node's parent: the capitals of the enclosing stage or entity name
+	 * (eg: MHQ for MedicalHistoryQuestionnaire), or the empty string if the parent is the
+	 * stage or entity itself.
+	 *
+	 * @return the qualifier
+	 */
+	public String getParentQualifier() {
+		if( parent == null || parent.source ) {
+			return "" ;
+		}
+		return higherQualifier ;
+	}
+
+	/**
+	 * @return the i2b2 path of the current folder; eg: <code>\Root\MedicalHistoryQuestionnaire\MAIN</code>
+	 */
+	public String getFolderPath() {
+		return folderPath ;
+	}
+
+	/**
+	 * @return the i2b2 hierarchy level of the current folder (the container's children are at level 1)
+	 */
+	public int getHlevel() {
+		return hlevel ;
+	}
+
+	/**
+	 * Whether the node is included according to the config file's filter for its stage or entity.
+	 * We include by default (ie: if there is no filter for the stage or entity).
+	 *
+	 * @return true if included, false if excluded.
+	 */
+	public boolean isIncluded() {
+		if( filter == null ) {
+			return true ;
+		}
+		return !filter.excludes( path, filterStates ) ;
+	}
+
+	private static String formQualifier( String name ) {
+		if( name == null ) {
+			return "" ;
+		}
+		StringBuilder b = new StringBuilder() ;
+		for( int i=0; i<name.length(); i++ ) {
+			if( Character.isUpperCase( name.charAt( i ) ) ) {
+				b.append( name.charAt(i) ) ;
+			}
+		}
+		if( b.length() == 0 ) {
+			return new String( new char[] { Character.toUpperCase( name.charAt( 0 ) ) } ) ;
+		}
+		return b.toString() ;
+	}
+
+}
@@ -0,0 +1,139 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+
+import org.brisskit.onyxvariables.beans.VariableType;
+import org.brisskit.onyxvariables.beans.VariablesDocument;
+
+/**
+ * A map of variable name corrections for one questionnaire of an Onyx export, applied
+ * by readers as they parse the export rather than by rewriting the export's files.<p/>
+ *
+ * The map is produced by the <code>OnyxVariablesCleaner</code> (mode alias) and held alongside
+ * the questionnaire's variables file as a properties file of old-name = new-name.
+ * The export's own files are left byte-identical.
+ *
+ * @author jl99
+ *
+ */
+public class VariableAliases {
+
+	public static final String FILE_NAME = "variable-aliases.properties" ;
+
+	private final HashMap<String,String> aliases = new HashMap<String,String>() ;
+
+	public VariableAliases() {}
+
+	/**
+	 * Loads the aliases held in the given questionnaire directory.
+	 *
+	 * @param questionnaireDirectory
+	 * @return the aliases, which are empty if the directory holds none.
+	 * @throws IOException
+	 */
+	public static VariableAliases load( File questionnaireDirectory ) throws IOException {
+		File file = new File( questionnaireDirectory, FILE_NAME ) ;
+		if( !file.exists() ) {
+			return new VariableAliases() ;
+		}
+		InputStream in = new BufferedInputStream( new FileInputStream( file ) ) ;
+		try {
+			return load( in ) ;
+		}
+		finally {
+			in.close() ;
+		}
+	}
+
+	/**
+	 * Loads aliases from the content of an aliases file; eg: an entry within an export held as a zip.
+	 * The stream is not closed.
+	 *
+	 * @param in
+	 * @return the aliases
+	 * @throws IOException
+	 */
+	public static VariableAliases load( InputStream in ) throws IOException {
+		VariableAliases va = new VariableAliases() ;
+		Properties props = new Properties() ;
+		props.load( in ) ;
+		Iterator<String> it = props.stringPropertyNames().iterator() ;
+		while( it.hasNext() ) {
+			String oldName = it.next() ;
+			va.put( oldName, props.getProperty( oldName ).trim() ) ;
+		}
+		return va ;
+	}
+
+	/**
+	 * Saves the aliases into the given questionnaire directory (overwrites any previous aliases).
+	 *
+	 * @param questionnaireDirectory
+	 * @throws IOException
+	 */
+	public void save( File questionnaireDirectory ) throws IOException {
+		Properties props = new Properties() ;
+		props.putAll( aliases ) ;
+		OutputStream out = new BufferedOutputStream( new FileOutputStream( new File( questionnaireDirectory, FILE_NAME ) ) ) ;
+		try {
+			props.store( out, "Variable name corrections: old-name = new-name" ) ;
+		}
+		finally {
+			out.close() ;
+		}
+	}
+
+	public void put( String oldName, String newName ) {
+		aliases.put( oldName, newName ) ;
+	}
+
+	public boolean isEmpty() {
+		return aliases.isEmpty() ;
+	}
+
+	public Map<String,String> asMap() {
+		return aliases ;
+	}
+
+	/**
+	 * @param name
+	 * @return the corrected name, or the given name if there is no correction.
+	 */
+	public String resolve( String name ) {
+		String alias = aliases.get( name ) ;
+		return ( alias == null ? name : alias ) ;
+	}
+
+	/**
+	 * Applies the corrections to a parsed variables file.
+	 *
+	 * @param varDoc
+	 */
+	public void apply( VariablesDocument varDoc ) {
+		if( aliases.isEmpty() ) {
+			return ;
+		}
+		VariableType[] vta = varDoc.getVariables().getVariableArray() ;
+		for( int i=0; i<vta.length; i++ ) {
+			String alias = aliases.get( vta[i].getName() ) ;
+			if( alias != null ) {
+				vta[i].setName( alias ) ;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,54 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.util.HashMap;
+
+import org.brisskit.onyxvariables.beans.VariableType;
+import org.brisskit.onyxvariables.beans.VariablesDocument;
+
+/**
+ * An immutable, indexed view of the variables of one Onyx variables file, in document order. <p/>
+ *
+ * XmlBeans' <code>getVariableArray()</code> allocates and copies a fresh array of every variable
+ * on each call. The view is built from a single such call, and <code>OnyxVariables2Metadata</code>
+ * works from the records rather than the document.
+ *
+ * @author jl99
+ *
+ */
+public class VariableIndex {
+
+	private final VariableRecord[] records ;
+
+	/**
+	 * @param records the variables in document order (the array is copied)
+	 */
+	public VariableIndex( VariableRecord[] records ) {
+		this.records = records.clone() ;
+	}
+
+	/**
+	 * @param varDoc
+	 * @return the view of the given variables document
+	 */
+	public static VariableIndex newInstance( VariablesDocument varDoc ) {
+		VariableType[] vta = varDoc.getVariables().getVariableArray() ;
+		VariableRecord[] records = new VariableRecord[ vta.length ] ;
+		HashMap<String,String> segmentTable = new HashMap<String,String>() ;
+		for( int i=0; i<vta.length; i++ ) {
+			records[i] = VariableRecord.newInstance( vta[i], segmentTable ) ;
+		}
+		return new VariableIndex( records ) ;
+	}
+
+	public int size() {
+		return records.length ;
+	}
+
+	public VariableRecord get( int index ) {
+		return records[ index ] ;
+	}
+
+}
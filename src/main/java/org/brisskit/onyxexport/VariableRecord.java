@@ -0,0 +1,231 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.brisskit.onyxvariables.beans.AttributeType;
+import org.brisskit.onyxvariables.beans.CategoryType;
+import org.brisskit.onyxvariables.beans.VariableType;
+
+/**
+ * A lightweight, read-only record of one variable from an Onyx variables file. <p/>
+ *
+ * <code>OnyxVariables2Metadata</code> consults the attributes of each variable many times over
+ * whilst grouping variables into questions. Each lookup against the XmlBeans <code>VariableType</code>
+ * copies the attribute array and scans it. A record is built once per variable instead: attributes are
+ * hashed by name (case insensitive; where a name repeats, the first occurrence wins, as with the scans
+ * it replaces) and those the grouping logic relies upon are held as fields. <p/>
+ *
+ * The name is also held pre-tokenized: its dot-separated segments, and the underscore-separated
+ * words of its first segment, each split exactly as <code>String.split</code> would. Segments are
+ * interned through a table shared by all the records of a document, so equal segments are the
+ * same String and comparing them is cheap.
+ *
+ * @author jl99
+ *
+ */
+public class VariableRecord {
+
+	/**
+	 * A category of a variable. Only what the metadata needs is held.
+	 */
+	public static class Category {
+		final String name ;
+		final boolean hasAttributes ;
+		Category( String name, boolean hasAttributes ) {
+			this.name = name ;
+			this.hasAttributes = hasAttributes ;
+		}
+	}
+
+	final String name ;
+	final String[] segments ;
+	final String[] words ;
+	final boolean dotted ;
+	final String unqualifiedName ;
+	final String valueType ;
+	final String repeatable ;
+	final String entityType ;
+	final Category[] categories ;
+
+	final String questionName ;
+	final String section ;
+	final String label ;
+	final String lastLabel ;
+	final String categoryName ;
+	final boolean parentQuestion ;
+
+	private final HashMap<String,String> attributes ;
+
+	/**
+	 * @param name
+	 * @param valueType
+	 * @param repeatable the repeatable setting, or null if not set
+	 * @param entityType the entity type, or null if not set
+	 * @param attributeNames attribute names in document order
+	 * @param attributeValues attribute values in document order
+	 * @param categories the categories, or null if not set
+	 * @param segmentTable table through which name segments are interned (may be null)
+	 */
+	VariableRecord( String name,
+			        String valueType,
+			        String repeatable,
+			        String entityType,
+			        List<String> attributeNames,
+			        List<String> attributeValues,
+			        Category[] categories,
+			        Map<String,String> segmentTable ) {
+		this.name = name ;
+		this.segments = split( name, '.', segmentTable ) ;
+		this.words = ( segments.length == 0 ? segments : split( segments[0], '_', segmentTable ) ) ;
+		this.dotted = ( name.indexOf( '.' ) != -1 ) ;
+		this.unqualifiedName = unqualify( name, segments ) ;
+		this.valueType = valueType ;
+		this.repeatable = repeatable ;
+		this.entityType = entityType ;
+		this.categories = categories ;
+		this.attributes = new HashMap<String,String>( attributeNames.size() * 2 ) ;
+		String lastLabel = null ;
+		for( int i=0; i<attributeNames.size(); i++ ) {
+			String key = attributeNames.get( i ).toLowerCase( Locale.ENGLISH ) ;
+			String value = attributeValues.get( i ) ;
+			if( !attributes.containsKey( key ) ) {
+				attributes.put( key, value ) ;
+			}
+			if( key.equals( "label" ) ) {
+				lastLabel = value ;
+			}
+		}
+		this.questionName = attributes.get( "questionname" ) ;
+		this.section = attributes.get( "section" ) ;
+		this.label = attributes.get( "label" ) ;
+		this.lastLabel = lastLabel ;
+		this.categoryName = attributes.get( "categoryname" ) ;
+		String pq = attributes.get( "parentquestion" ) ;
+		this.parentQuestion = ( pq != null && pq.equalsIgnoreCase( "true" ) ) ;
+	}
+
+	/**
+	 * Builds a record from a parsed XmlBeans variable.
+	 *
+	 * @param vt
+	 * @param segmentTable table through which name segments are interned (may be null)
+	 * @return the record
+	 */
+	public static VariableRecord newInstance( VariableType vt, Map<String,String> segmentTable ) {
+		ArrayList<String> names = new ArrayList<String>() ;
+		ArrayList<String> values = new ArrayList<String>() ;
+		if( vt.isSetAttributes() ) {
+			AttributeType[] ata = vt.getAttributes().getAttributeArray() ;
+			for( int i=0; i<ata.length; i++ ) {
+				names.add( ata[i].getName() ) ;
+				values.add( ata[i].getStringValue() ) ;
+			}
+		}
+		Category[] categories = null ;
+		if( vt.isSetCategories() ) {
+			CategoryType[] cta = vt.getCategories().getCategoryArray() ;
+			categories = new Category[ cta.length ] ;
+			for( int i=0; i<cta.length; i++ ) {
+				categories[i] = new Category( cta[i].getName(), cta[i].isSetAttributes() ) ;
+			}
+		}
+		return new VariableRecord( vt.getName(),
+				                   vt.getValueType(),
+				                   ( vt.isSetRepeatable() ? vt.getRepeatable() : null ),
+				                   ( vt.isSetEntityType() ? vt.getEntityType() : null ),
+				                   names,
+				                   values,
+				                   categories,
+				                   segmentTable ) ;
+	}
+
+	/**
+	 * @param attributeName (case insensitive)
+	 * @return the value of the first attribute of that name, or null if there is none.
+	 */
+	public String getAttribute( String attributeName ) {
+		return attributes.get( attributeName.toLowerCase( Locale.ENGLISH ) ) ;
+	}
+
+	public String getName() {
+		return name ;
+	}
+
+	/**
+	 * @return the question name, or the empty string if this is not a question variable.
+	 */
+	public String getQuestionName() {
+		return ( questionName == null ? "" : questionName ) ;
+	}
+
+	public boolean isQuestion() {
+		return questionName != null ;
+	}
+
+	public boolean isRepeatable() {
+		return repeatable != null && repeatable.equalsIgnoreCase( "true" ) ;
+	}
+
+	/**
+	 * Splits as <code>s.split( "\\" + separator )</code> would (trailing empty strings are dropped),
+	 * but without a regular expression, interning each part.
+	 */
+	static String[] split( String s, char separator, Map<String,String> segmentTable ) {
+		if( s.indexOf( separator ) == -1 ) {
+			return new String[] { intern( s, segmentTable ) } ;
+		}
+		ArrayList<String> parts = new ArrayList<String>() ;
+		int start = 0 ;
+		int end ;
+		while( ( end = s.indexOf( separator, start ) ) != -1 ) {
+			parts.add( s.substring( start, end ) ) ;
+			start = end + 1 ;
+		}
+		parts.add( s.substring( start ) ) ;
+		int size = parts.size() ;
+		while( size > 0 && parts.get( size-1 ).length() == 0 ) {
+			size-- ;
+		}
+		String[] result = new String[ size ] ;
+		for( int i=0; i<size; i++ ) {
+			result[i] = intern( parts.get( i ), segmentTable ) ;
+		}
+		return result ;
+	}
+
+	private static String intern( String s, Map<String,String> segmentTable ) {
+		if( segmentTable == null ) {
+			return s ;
+		}
+		String interned = segmentTable.get( s ) ;
+		if( interned == null ) {
+			segmentTable.put( s, s ) ;
+			interned = s ;
+		}
+		return interned ;
+	}
+
+	/**
+	 * The name less its first segment; eg: <code>a.b.c</code> gives <code>b.c</code>.
+	 * A name of one segment is returned as it is.
+	 */
+	private static String unqualify( String name, String[] segments ) {
+		if( segments.length > 1 ) {
+			StringBuilder b = new StringBuilder( name.length() ) ;
+			for( int i=1; i<segments.length; i++ ) {
+				b.append( segments[i] ).append( '.' ) ;
+			}
+			b.deleteCharAt( b.length()-1 ) ;
+			return b.toString() ;
+		}
+		return name ;
+	}
+
+}
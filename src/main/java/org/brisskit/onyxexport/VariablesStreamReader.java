@@ -0,0 +1,187 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Reads an Onyx variables file with StAX, one variable element at a time, straight into
+ * {@link VariableRecord}s. No XmlBeans store is built for the file. <p/>
+ *
+ * Elements are matched by local name (the export's name spaces are ignored):
+ * <p><blockquote><pre>
+ *     &lt;variables&gt;
+ *        &lt;variable name="..." valueType="..." entityType="..." repeatable="..."&gt;
+ *           &lt;attributes&gt;
+ *              &lt;attribute name="..."&gt;value&lt;/attribute&gt;
+ *           &lt;/attributes&gt;
+ *           &lt;categories&gt;
+ *              &lt;category name="..."&gt; [&lt;attributes&gt;...&lt;/attributes&gt;] &lt;/category&gt;
+ *           &lt;/categories&gt;
+ *        &lt;/variable&gt;
+ *        ...
+ * </pre></blockquote><p>
+ * As with XmlBeans' <code>getStringValue()</code>, the value of an attribute is all the text
+ * within it, at whatever depth.
+ *
+ * @author jl99
+ *
+ */
+public class VariablesStreamReader {
+
+	/**
+	 * Receives each variable as soon as its element has been read.
+	 */
+	public interface Sink {
+		public void variable( VariableRecord record ) ;
+	}
+
+	private static final XMLInputFactory inputFactory = newInputFactory() ;
+
+	private final VariableAliases aliases ;
+	private final HashMap<String,String> segmentTable = new HashMap<String,String>() ;
+
+	/**
+	 * @param aliases name corrections to apply as variables are read (may be empty)
+	 */
+	public VariablesStreamReader( VariableAliases aliases ) {
+		this.aliases = aliases ;
+	}
+
+	/**
+	 * Variables files and zip entries come from outside, so no DTD is read and no
+	 * external entity is resolved (guarding against XXE and entity expansion).
+	 */
+	private static XMLInputFactory newInputFactory() {
+		XMLInputFactory factory = XMLInputFactory.newInstance() ;
+		factory.setProperty( XMLInputFactory.SUPPORT_DTD, Boolean.FALSE ) ;
+		factory.setProperty( XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE ) ;
+		return factory ;
+	}
+
+	/**
+	 * Reads the stream, pushing each variable to the sink in document order. The stream is not closed.
+	 *
+	 * @param in
+	 * @param sink
+	 * @throws XMLStreamException
+	 */
+	public void read( InputStream in, Sink sink ) throws XMLStreamException {
+		XMLStreamReader reader = inputFactory.createXMLStreamReader( in ) ;
+		try {
+			while( reader.hasNext() ) {
+				if( reader.next() == XMLStreamConstants.START_ELEMENT
+					&&
+					reader.getLocalName().equals( "variable" ) ) {
+					sink.variable( readVariable( reader ) ) ;
+				}
+			}
+		}
+		finally {
+			reader.close() ;
+		}
+	}
+
+	/**
+	 * Reads from the start of a variable element to its end.
+	 */
+	private VariableRecord readVariable( XMLStreamReader reader ) throws XMLStreamException {
+		String name = aliases.resolve( getAttribute( reader, "name" ) ) ;
+		String valueType = getAttribute( reader, "valueType" ) ;
+		String entityType = getAttribute( reader, "entityType" ) ;
+		String repeatable = getAttribute( reader, "repeatable" ) ;
+		ArrayList<String> attributeNames = new ArrayList<String>() ;
+		ArrayList<String> attributeValues = new ArrayList<String>() ;
+		ArrayList<VariableRecord.Category> categories = null ;
+		String child = null ;
+		boolean inCategory = false ;
+		String categoryName = null ;
+		boolean categoryHasAttributes = false ;
+		int depth = 1 ;
+		while( depth > 0 ) {
+			int event = reader.next() ;
+			if( event == XMLStreamConstants.START_ELEMENT ) {
+				depth++ ;
+				String element = reader.getLocalName() ;
+				if( depth == 2 ) {
+					child = element ;
+					if( element.equals( "categories" ) ) {
+						categories = new ArrayList<VariableRecord.Category>() ;
+					}
+				}
+				else if( depth == 3 && child.equals( "categories" ) && element.equals( "category" ) ) {
+					inCategory = true ;
+					categoryName = getAttribute( reader, "name" ) ;
+					categoryHasAttributes = false ;
+				}
+				else if( depth == 4 && inCategory && element.equals( "attributes" ) ) {
+					categoryHasAttributes = true ;
+				}
+				else if( depth == 3 && child.equals( "attributes" ) && element.equals( "attribute" ) ) {
+					attributeNames.add( getAttribute( reader, "name" ) ) ;
+					attributeValues.add( readText( reader ) ) ;
+					depth-- ;
+				}
+			}
+			else if( event == XMLStreamConstants.END_ELEMENT ) {
+				if( depth == 3 && inCategory ) {
+					categories.add( new VariableRecord.Category( categoryName, categoryHasAttributes ) ) ;
+					inCategory = false ;
+				}
+				depth-- ;
+			}
+		}
+		return new VariableRecord( name,
+				                   valueType,
+				                   repeatable,
+				                   entityType,
+				                   attributeNames,
+				                   attributeValues,
+				                   ( categories == null ? null : categories.toArray( new VariableRecord.Category[ categories.size() ] ) ),
+				                   segmentTable ) ;
+	}
+
+	/**
+	 * Reads all the text within the current element, leaving the reader on its end.
+	 */
+	private static String readText( XMLStreamReader reader ) throws XMLStreamException {
+		StringBuilder b = new StringBuilder() ;
+		int depth = 1 ;
+		while( depth > 0 ) {
+			switch( reader.next() ) {
+				case XMLStreamConstants.START_ELEMENT:
+					depth++ ;
+					break ;
+				case XMLStreamConstants.END_ELEMENT:
+					depth-- ;
+					break ;
+				case XMLStreamConstants.CHARACTERS:
+				case XMLStreamConstants.CDATA:
+				case XMLStreamConstants.SPACE:
+					b.append( reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength() ) ;
+					break ;
+				default:
+					break ;
+			}
+		}
+		return b.toString() ;
+	}
+
+	private static String getAttribute( XMLStreamReader reader, String localName ) {
+		for( int i=0; i<reader.getAttributeCount(); i++ ) {
+			if( reader.getAttributeLocalName( i ).equals( localName ) ) {
+				return reader.getAttributeValue( i ) ;
+			}
+		}
+		return null ;
+	}
+
+}
@@ -0,0 +1,101 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.HashMap;
+
+import junit.framework.TestCase;
+
+import org.apache.xmlbeans.XmlCursor;
+import org.apache.xmlbeans.XmlObject;
+import org.apache.xmlbeans.XmlOptions;
+import org.brisskit.onyxmetadata.stageone.beans.SourceDocument;
+
+/**
+ * Checks that stage one metadata survives a round trip through <code>BinaryMetadataCodec</code>:
+ * every metadata file under <code>src/test/resources</code> must save to the same XML text
+ * after being written in binary form and read back as it did before.
+ *
+ * @author jl99
+ *
+ */
+public class BinaryMetadataCodecTest extends TestCase {
+
+	public void testFixturesRoundTrip() throws Exception {
+		File[] fa = metadataFiles() ;
+		for( int i=0; i<fa.length; i++ ) {
+			XmlObject original = XmlObject.Factory.parse( fa[i] ) ;
+			ByteArrayOutputStream out = new ByteArrayOutputStream() ;
+			BinaryMetadataCodec.write( original, out ) ;
+			XmlObject copy = XmlObject.Factory.newInstance() ;
+			BinaryMetadataCodec.read( new ByteArrayInputStream( out.toByteArray() ), copy ) ;
+			XmlOptions options = getSaveOptions( original ) ;
+			assertEquals( fa[i].getName(), original.xmlText( options ), copy.xmlText( options ) ) ;
+		}
+	}
+
+	public void testFixturesRoundTripThroughFile() throws Exception {
+		File[] fa = metadataFiles() ;
+		File temp = File.createTempFile( "metadata", ".bin" ) ;
+		try {
+			for( int i=0; i<fa.length; i++ ) {
+				SourceDocument original = SourceDocument.Factory.parse( fa[i] ) ;
+				BinaryMetadataCodec.save( original, temp ) ;
+				assertTrue( fa[i].getName(), BinaryMetadataCodec.isBinary( temp ) ) ;
+				SourceDocument copy = BinaryMetadataCodec.loadSource( temp ) ;
+				XmlOptions options = getSaveOptions( original ) ;
+				assertEquals( fa[i].getName(), original.xmlText( options ), copy.xmlText( options ) ) ;
+			}
+		}
+		finally {
+			temp.delete() ;
+		}
+	}
+
+	public void testXmlIsNotBinary() throws Exception {
+		File[] fa = metadataFiles() ;
+		for( int i=0; i<fa.length; i++ ) {
+			assertFalse( fa[i].getName(), BinaryMetadataCodec.isBinary( fa[i] ) ) ;
+		}
+	}
+
+	private static File[] metadataFiles() {
+		File[] fa = new File( VariableFixtures.METADATA_DIRECTORY ).listFiles() ;
+		assertNotNull( "No metadata fixtures found", fa ) ;
+		java.util.Arrays.sort( fa ) ;
+		int count = 0 ;
+		for( int i=0; i<fa.length; i++ ) {
+			if( fa[i].getName().endsWith( ".xml" ) ) {
+				fa[count++] = fa[i] ;
+			}
+		}
+		assertTrue( "No metadata fixtures found", count > 0 ) ;
+		return java.util.Arrays.copyOf( fa, count ) ;
+	}
+
+	/**
+	 * Namespace declarations are not carried in binary form, so both documents are saved
+	 * with the prefix the original declares for its namespace.
+	 */
+	private static XmlOptions getSaveOptions( XmlObject original ) {
+		XmlCursor cursor = original.newCursor() ;
+		try {
+			cursor.toFirstChild() ;
+			String namespace = cursor.getName().getNamespaceURI() ;
+			HashMap<String,String> prefixes = new HashMap<String,String>() ;
+			prefixes.put( namespace, cursor.prefixForNamespace( namespace ) ) ;
+			XmlOptions options = new XmlOptions() ;
+			options.setSaveSuggestedPrefixes( prefixes ) ;
+			options.setSaveAggressiveNamespaces() ;
+			return options ;
+		}
+		finally {
+			cursor.dispose() ;
+		}
+	}
+
+}
@@ -0,0 +1,157 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.brisskit.onyxexport.RefinerConfig.EnumDescriptor;
+
+/**
+ * Checks that <code>EnumerationMatcher</code> reports the same enumerations as testing each hint
+ * and exclude in turn with <code>String.contains()</code>, as
+ * <code>MetadataRefiner.searchForGeneratedEnumerations</code> did before the matcher.
+ *
+ * @author jl99
+ *
+ */
+public class EnumerationMatcherTest extends TestCase {
+
+	private static final String[] NONE = new String[0] ;
+
+	public void testHintWithinExclude() throws Exception {
+		EnumerationMatcher matcher = matcherOf( enumOf( "AGE", new String[] { "age" }, new String[] { "stage" } ) ) ;
+		BitSet hints = new BitSet() ;
+		BitSet excludes = new BitSet() ;
+		matcher.match( "stage_date", hints, excludes ) ;
+		assertTrue( hints.get( 0 ) ) ;
+		assertTrue( excludes.get( 0 ) ) ;
+		hints.clear() ;
+		excludes.clear() ;
+		matcher.match( "smoke_age", hints, excludes ) ;
+		assertTrue( hints.get( 0 ) ) ;
+		assertFalse( excludes.get( 0 ) ) ;
+	}
+
+	public void testPatternIsSuffixOfAnother() throws Exception {
+		EnumerationMatcher matcher = matcherOf( enumOf( "LONG", new String[] { "abcd" }, NONE ),
+				                                enumOf( "SHORT", new String[] { "bcd" }, NONE ),
+				                                enumOf( "BRANCH", new String[] { "abce" }, NONE ) ) ;
+		assertEquals( bits( 0, 1 ), hintsOf( matcher, "xabcd" ) ) ;
+		assertEquals( bits( 1 ), hintsOf( matcher, "bcd" ) ) ;
+		assertEquals( bits( 1, 2 ), hintsOf( matcher, "abcebcd" ) ) ;
+		assertEquals( bits(), hintsOf( matcher, "abc" ) ) ;
+	}
+
+	public void testEmptyPattern() throws Exception {
+		EnumerationMatcher matcher = matcherOf( enumOf( "ANY", new String[] { "" }, NONE ),
+				                                enumOf( "AGE", new String[] { "age" }, NONE ) ) ;
+		assertEquals( bits( 0 ), hintsOf( matcher, "" ) ) ;
+		assertEquals( bits( 0 ), hintsOf( matcher, "year" ) ) ;
+		assertEquals( bits( 0, 1 ), hintsOf( matcher, "age" ) ) ;
+	}
+
+	public void testDuplicateNameKeepsFirstPosition() throws Exception {
+		ArrayList<EnumDescriptor> descriptors = new ArrayList<EnumDescriptor>() ;
+		descriptors.add( enumOf( "AGE", new String[] { "old_age_hint" }, NONE ) ) ;
+		descriptors.add( enumOf( "YEAR", new String[] { "year" }, NONE ) ) ;
+		descriptors.add( enumOf( "AGE", new String[] { "age" }, NONE ) ) ;
+		EnumerationMatcher matcher = new EnumerationMatcher( RefinerConfig.distinctByName( descriptors ) ) ;
+		assertEquals( 2, matcher.size() ) ;
+		assertEquals( 0, matcher.indexOf( "AGE" ) ) ;
+		assertEquals( 1, matcher.indexOf( "YEAR" ) ) ;
+		assertEquals( -1, matcher.indexOf( "PIPE" ) ) ;
+		//
+		// The later AGE replaces the earlier one...
+		assertEquals( bits( 0 ), hintsOf( matcher, "smoke_age" ) ) ;
+		assertEquals( bits(), hintsOf( matcher, "old_aXe_hint" ) ) ;
+	}
+
+	public void testLowestSetBitIsFirstInConfigOrder() throws Exception {
+		EnumerationMatcher matcher = matcherOf( enumOf( "CIGARETTE", new String[] { "tobacco_cig" }, NONE ),
+				                                enumOf( "AGE", new String[] { "age" }, NONE ),
+				                                enumOf( "YEAR", new String[] { "_age" }, NONE ) ) ;
+		BitSet hints = hintsOf( matcher, "tobacco_cig_age" ) ;
+		assertEquals( bits( 0, 1, 2 ), hints ) ;
+		assertEquals( matcher.indexOf( "CIGARETTE" ), hints.nextSetBit( 0 ) ) ;
+		hints = hintsOf( matcher, "smoke_age" ) ;
+		assertEquals( matcher.indexOf( "AGE" ), hints.nextSetBit( 0 ) ) ;
+	}
+
+	/**
+	 * Random names over a small alphabet, so that hints and excludes overlap, checked against
+	 * <code>String.contains()</code>.
+	 */
+	public void testMatchesContains() throws Exception {
+		Random random = new Random( 42L ) ;
+		ArrayList<EnumDescriptor> descriptors = new ArrayList<EnumDescriptor>() ;
+		for( int i=0; i<8; i++ ) {
+			descriptors.add( enumOf( "E" + i, randomStrings( random, 3 ), randomStrings( random, 2 ) ) ) ;
+		}
+		EnumerationMatcher matcher = new EnumerationMatcher( descriptors ) ;
+		for( int n=0; n<500; n++ ) {
+			String s = randomString( random, 12 ) ;
+			BitSet hints = new BitSet() ;
+			BitSet excludes = new BitSet() ;
+			matcher.match( s, hints, excludes ) ;
+			for( int i=0; i<descriptors.size(); i++ ) {
+				assertEquals( s, containsAny( s, descriptors.get( i ).getHints() ), hints.get( i ) ) ;
+				assertEquals( s, containsAny( s, descriptors.get( i ).getExcludes() ), excludes.get( i ) ) ;
+			}
+		}
+	}
+
+	private static boolean containsAny( String s, List<String> patterns ) {
+		for( int i=0; i<patterns.size(); i++ ) {
+			if( s.contains( patterns.get( i ) ) ) {
+				return true ;
+			}
+		}
+		return false ;
+	}
+
+	private static String[] randomStrings( Random random, int count ) {
+		String[] sa = new String[ count ] ;
+		for( int i=0; i<count; i++ ) {
+			sa[i] = randomString( random, 1 + random.nextInt( 4 ) ) ;
+		}
+		return sa ;
+	}
+
+	private static String randomString( Random random, int length ) {
+		StringBuilder sb = new StringBuilder( length ) ;
+		for( int i=0; i<length; i++ ) {
+			sb.append( "abc_".charAt( random.nextInt( 4 ) ) ) ;
+		}
+		return sb.toString() ;
+	}
+
+	private static BitSet hintsOf( EnumerationMatcher matcher, String s ) {
+		BitSet hints = new BitSet() ;
+		matcher.match( s, hints, new BitSet() ) ;
+		return hints ;
+	}
+
+	private static BitSet bits( int... indexes ) {
+		BitSet bs = new BitSet() ;
+		for( int i=0; i<indexes.length; i++ ) {
+			bs.set( indexes[i] ) ;
+		}
+		return bs ;
+	}
+
+	private static EnumerationMatcher matcherOf( EnumDescriptor... descriptors ) {
+		return new EnumerationMatcher( Arrays.asList( descriptors ) ) ;
+	}
+
+	private static EnumDescriptor enumOf( String name, String[] hints, String[] excludes ) throws Exception {
+		return new EnumDescriptor( name, null, null, null, hints, excludes ) ;
+	}
+
+}
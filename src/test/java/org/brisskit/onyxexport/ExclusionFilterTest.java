@@ -0,0 +1,132 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.brisskit.export.metadata.config.beans.ExcludeType;
+import org.brisskit.export.metadata.config.beans.FilterType;
+
+/**
+ * Checks which nodes an <code>ExclusionFilter</code> excludes, walking each path from the
+ * questionnaire name down one segment at a time, as <code>TraversalContext</code> does.
+ *
+ * @author jl99
+ *
+ */
+public class ExclusionFilterTest extends TestCase {
+
+	private static final String QUESTIONNAIRE = "BloodSamplesCollection" ;
+
+	public void testLiteralExclude() {
+		ExclusionFilter filter = new ExclusionFilter( filterOf( QUESTIONNAIRE, null, "QuestionnaireRun" ) ) ;
+		assertTrue( excludes( filter, QUESTIONNAIRE + "/QuestionnaireRun" ) ) ;
+		assertFalse( excludes( filter, QUESTIONNAIRE ) ) ;
+		assertFalse( excludes( filter, QUESTIONNAIRE + "/QuestionnaireRunX" ) ) ;
+		assertFalse( excludes( filter, QUESTIONNAIRE + "/QuestionnaireMetric" ) ) ;
+	}
+
+	public void testLiteralExcludeWithHints() {
+		FilterType ft = filterOf( QUESTIONNAIRE, null ) ;
+		addExclude( ft, "RegisteredParticipantTube", "tubeCode", "barcode" ) ;
+		ExclusionFilter filter = new ExclusionFilter( ft ) ;
+		assertTrue( excludes( filter, QUESTIONNAIRE + "/RegisteredParticipantTube/tubeCode" ) ) ;
+		assertTrue( excludes( filter, QUESTIONNAIRE + "/RegisteredParticipantTube/barcode" ) ) ;
+		assertFalse( excludes( filter, QUESTIONNAIRE + "/RegisteredParticipantTube" ) ) ;
+		assertFalse( excludes( filter, QUESTIONNAIRE + "/RegisteredParticipantTube/prefixCode" ) ) ;
+	}
+
+	public void testAlternateName() {
+		ExclusionFilter filter = new ExclusionFilter( filterOf( "Participants", "Participant", "Admin/Interview", "Admin/Act?on" ) ) ;
+		assertTrue( excludes( filter, "Participants/Admin/Interview" ) ) ;
+		assertTrue( excludes( filter, "Participant/Admin/Interview" ) ) ;
+		assertTrue( excludes( filter, "Participants/Admin/Action" ) ) ;
+		assertTrue( excludes( filter, "Participant/Admin/Action" ) ) ;
+		assertFalse( excludes( filter, "Participant/Admin" ) ) ;
+		assertFalse( excludes( filter, "Participant/Admin/StageInstance" ) ) ;
+	}
+
+	public void testNoExcludesExcludesQuestionnaire() {
+		ExclusionFilter filter = new ExclusionFilter( filterOf( "DataSubmissionQuestionnaire", null ) ) ;
+		assertTrue( excludes( filter, "DataSubmissionQuestionnaire" ) ) ;
+		assertTrue( excludes( filter, "DataSubmissionQuestionnaire/MAIN/any_question" ) ) ;
+	}
+
+	public void testEveryChildExcluded() {
+		ExclusionFilter filter = new ExclusionFilter( filterOf( QUESTIONNAIRE, null, "RegisteredParticipantTube/*" ) ) ;
+		assertFalse( excludes( filter, QUESTIONNAIRE + "/RegisteredParticipantTube" ) ) ;
+		assertTrue( excludes( filter, QUESTIONNAIRE + "/RegisteredParticipantTube/tubeCode" ) ) ;
+		assertTrue( excludes( filter, QUESTIONNAIRE + "/RegisteredParticipantTube/barcode" ) ) ;
+		assertFalse( excludes( filter, QUESTIONNAIRE + "/QuestionnaireRun/tubeCode" ) ) ;
+	}
+
+	public void testSingleCharacterWildcard() {
+		assertTrue( ExclusionFilter.globMatches( "tube?", "tube1" ) ) ;
+		assertFalse( ExclusionFilter.globMatches( "tube?", "tube" ) ) ;
+		assertFalse( ExclusionFilter.globMatches( "tube?", "tube12" ) ) ;
+		ExclusionFilter filter = new ExclusionFilter( filterOf( QUESTIONNAIRE, null, "tube?" ) ) ;
+		assertTrue( excludes( filter, QUESTIONNAIRE + "/tube1" ) ) ;
+		assertFalse( excludes( filter, QUESTIONNAIRE + "/tube12" ) ) ;
+	}
+
+	public void testWildcardBacktracking() {
+		assertTrue( ExclusionFilter.globMatches( "a*b*c", "abc" ) ) ;
+		assertTrue( ExclusionFilter.globMatches( "a*b*c", "aXbYbZc" ) ) ;
+		assertTrue( ExclusionFilter.globMatches( "a*b*c", "abcbc" ) ) ;
+		assertFalse( ExclusionFilter.globMatches( "a*b*c", "abcd" ) ) ;
+		assertFalse( ExclusionFilter.globMatches( "a*b*c", "acb" ) ) ;
+		assertFalse( ExclusionFilter.globMatches( "a*b*c", null ) ) ;
+		ExclusionFilter filter = new ExclusionFilter( filterOf( QUESTIONNAIRE, null, "MAIN/a*b*c" ) ) ;
+		assertTrue( excludes( filter, QUESTIONNAIRE + "/MAIN/aXbYbZc" ) ) ;
+		assertFalse( excludes( filter, QUESTIONNAIRE + "/MAIN/aXbYbZcd" ) ) ;
+		assertFalse( excludes( filter, QUESTIONNAIRE + "/OTHER/aXbYbZc" ) ) ;
+	}
+
+	public void testLiteralAndGlobBranchesMatchSameNode() {
+		ExclusionFilter filter = new ExclusionFilter( filterOf( QUESTIONNAIRE, null, "MAIN/q*", "MA*/q1" ) ) ;
+		assertTrue( excludes( filter, QUESTIONNAIRE + "/MAIN/q1" ) ) ;
+		assertTrue( excludes( filter, QUESTIONNAIRE + "/MAIN/q2" ) ) ;
+		assertTrue( excludes( filter, QUESTIONNAIRE + "/MAXI/q1" ) ) ;
+		assertFalse( excludes( filter, QUESTIONNAIRE + "/MAXI/q2" ) ) ;
+		assertFalse( excludes( filter, QUESTIONNAIRE + "/MAIN" ) ) ;
+		assertFalse( excludes( filter, QUESTIONNAIRE + "/MAIN/r1" ) ) ;
+	}
+
+	/**
+	 * Steps the filter's states down the path, one segment at a time, and checks the last node.
+	 */
+	private static boolean excludes( ExclusionFilter filter, String path ) {
+		String[] segments = path.split( "/" ) ;
+		String nodePath = segments[0] ;
+		List<ExclusionFilter.State> states = filter.startStates() ;
+		for( int i=1; i<segments.length; i++ ) {
+			nodePath = nodePath + '/' + segments[i] ;
+			states = filter.step( states, segments[i] ) ;
+		}
+		return filter.excludes( nodePath, states ) ;
+	}
+
+	private static FilterType filterOf( String questionnaire, String alternateName, String... excludes ) {
+		FilterType ft = FilterType.Factory.newInstance() ;
+		ft.setQuestionnaire( questionnaire ) ;
+		if( alternateName != null ) {
+			ft.setAlternateName( alternateName ) ;
+		}
+		for( int i=0; i<excludes.length; i++ ) {
+			addExclude( ft, excludes[i] ) ;
+		}
+		return ft ;
+	}
+
+	private static void addExclude( FilterType ft, String name, String... hints ) {
+		ExcludeType et = ft.addNewExclude() ;
+		et.setName( name ) ;
+		for( int i=0; i<hints.length; i++ ) {
+			et.addHint( hints[i] ) ;
+		}
+	}
+
+}
@@ -0,0 +1,75 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.brisskit.onyxvariables.beans.VariablesDocument;
+
+/**
+ * Times <code>OnyxVariables2Metadata.Factory.newInstance(...).exec()</code> over a variables file
+ * the size of the RiskFactorQuestionnaire, the largest of the test fixtures, with each reader. <p/>
+ *
+ * This is not a unit test: it asserts nothing and is not run by <code>mvn test</code>. Run it by hand
+ * from the project directory, with the test classpath:
+ * <p><blockquote><pre>
+ *     java org.brisskit.onyxexport.OnyxVariables2MetadataBenchmark [rounds]
+ * </pre></blockquote><p>
+ * The timed calls are <code>Factory.newInstance(File)</code> and <code>exec()</code> alone, so the same
+ * loop can be run against an earlier tree to compare the figures before and after a change.
+ *
+ * @author jl99
+ *
+ */
+public class OnyxVariables2MetadataBenchmark {
+
+	private static final String FIXTURE = "RiskFactorQuestionnaire.xml" ;
+	private static final int WARM_UP_ROUNDS = 5 ;
+	private static final int DEFAULT_ROUNDS = 20 ;
+
+	public static void main( String[] args ) throws Exception {
+		int rounds = ( args.length > 0 ? Integer.parseInt( args[0] ) : DEFAULT_ROUNDS ) ;
+		File questionnaireDirectory = File.createTempFile( "benchmark", "" ) ;
+		questionnaireDirectory.delete() ;
+		questionnaireDirectory.mkdir() ;
+		File variablesFile = new File( questionnaireDirectory, ExportDirectoryScanner.VARIABLES_FILE_NAME ) ;
+		try {
+			VariablesDocument varDoc = VariableFixtures.variablesDocumentOf( new File( VariableFixtures.METADATA_DIRECTORY, FIXTURE ) ) ;
+			varDoc.save( variablesFile ) ;
+			System.out.println( FIXTURE + ": " + varDoc.getVariables().sizeOfVariableArray() + " variables, "
+					            + ( variablesFile.length() / 1024 ) + " KB" ) ;
+			report( "dom", time( variablesFile, false, rounds ) ) ;
+			report( "stream", time( variablesFile, true, rounds ) ) ;
+		}
+		finally {
+			variablesFile.delete() ;
+			questionnaireDirectory.delete() ;
+		}
+	}
+
+	/**
+	 * @return the time of each timed round, in nanoseconds, sorted
+	 */
+	private static long[] time( File variablesFile, boolean streamReader, int rounds ) throws Exception {
+		for( int i=0; i<WARM_UP_ROUNDS; i++ ) {
+			OnyxVariables2Metadata.Factory.newInstance( variablesFile, streamReader ).exec() ;
+		}
+		long[] times = new long[ rounds ] ;
+		for( int i=0; i<rounds; i++ ) {
+			long start = System.nanoTime() ;
+			OnyxVariables2Metadata.Factory.newInstance( variablesFile, streamReader ).exec() ;
+			times[i] = System.nanoTime() - start ;
+		}
+		Arrays.sort( times ) ;
+		return times ;
+	}
+
+	private static void report( String reader, long[] times ) {
+		System.out.println( "reader " + reader + ": best " + ( times[0] / 1000000 ) + " ms, "
+				            + "median " + ( times[ times.length / 2 ] / 1000000 ) + " ms "
+				            + "(" + times.length + " rounds)" ) ;
+	}
+
+}
@@ -0,0 +1,333 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that <code>OnyxVariables2Metadata</code> groups question variables into questions exactly as
+ * it did before the single-pass grouper, which took several passes over an index of every variable
+ * and is kept here, as it was, for comparison.
+ *
+ * @author jl99
+ *
+ */
+public class QuestionGrouperTest extends TestCase {
+
+	private static final String KLUDGE_VARIABLE = "epi_obshr_cat" ;
+
+	private static final String[] SECTIONS = { "MAIN", "HISTORY" } ;
+	private static final String[] STEMS = { "epi_obsrr", "epi_obsbp", "fam_brothers", "fam_sisters", "smoke_age", "smoke_per_day" } ;
+
+	public void testFixturesGroupAsBefore() throws Exception {
+		List<File> files = VariableFixtures.stageFiles() ;
+		assertFalse( "No stage fixtures found", files.isEmpty() ) ;
+		int questions = 0 ;
+		for( File file : files ) {
+			List<VariableRecord> records = VariableFixtures.variablesOf( file ) ;
+			List<String> expected = PreviousGrouping.describeQuestions( records ) ;
+			List<String> actual = OnyxVariables2Metadata.Factory.describeQuestions( records ) ;
+			assertEquals( file.getName(), expected, actual ) ;
+			questions += actual.size() ;
+		}
+		assertTrue( "Fixtures hold no questions", questions > 0 ) ;
+	}
+
+	public void testKludgedQuestionGroupsAsBefore() throws Exception {
+		List<VariableRecord> records = VariableFixtures.variablesOf( new File( VariableFixtures.METADATA_DIRECTORY, "DataSubmissionQuestionnaire.xml" ) ) ;
+		List<String> actual = OnyxVariables2Metadata.Factory.describeQuestions( records ) ;
+		boolean kludged = false ;
+		for( String description : actual ) {
+			if( description.startsWith( "K[][" + KLUDGE_VARIABLE ) ) {
+				kludged = true ;
+			}
+		}
+		assertTrue( "Kludged question not formed", kludged ) ;
+		assertEquals( PreviousGrouping.describeQuestions( records ), actual ) ;
+	}
+
+	/**
+	 * Random sequences mixing singleton, parent, child and kludge variables across sections.
+	 * (The previous grouping never terminated if the kludge variable began a section,
+	 * so no sequence here does that.)
+	 */
+	public void testRandomSequencesGroupAsBefore() throws Exception {
+		Random random = new Random( 20140218L ) ;
+		for( int n=0; n<2000; n++ ) {
+			List<VariableRecord> records = randomSequence( random ) ;
+			assertEquals( "Sequence " + n, PreviousGrouping.describeQuestions( records ), OnyxVariables2Metadata.Factory.describeQuestions( records ) ) ;
+		}
+	}
+
+	private static List<VariableRecord> randomSequence( Random random ) {
+		ArrayList<VariableRecord> records = new ArrayList<VariableRecord>() ;
+		HashMap<String,String> segmentTable = new HashMap<String,String>() ;
+		records.add( record( "QuestionnaireRun.version", null, null, false, segmentTable ) ) ;
+		String section = SECTIONS[0] ;
+		String questionName = null ;
+		int length = 1 + random.nextInt( 30 ) ;
+		for( int i=0; i<length; i++ ) {
+			int choice = random.nextInt( 10 ) ;
+			if( choice == 0 ) {
+				section = SECTIONS[ random.nextInt( SECTIONS.length ) ] ;
+			}
+			String previousSection = ( records.size() > 1 ? records.get( records.size()-1 ).section : null ) ;
+			if( choice == 1 && section.equals( previousSection ) ) {
+				questionName = KLUDGE_VARIABLE ;
+				records.add( record( KLUDGE_VARIABLE, questionName, section, false, segmentTable ) ) ;
+			}
+			else if( choice == 2 ) {
+				records.add( record( "QuestionnaireMetric.page" + i, null, null, false, segmentTable ) ) ;
+			}
+			else if( choice <= 4 && questionName != null ) {
+				//
+				// Another variable of the current question...
+				records.add( record( questionName + ".C" + i, questionName, section, false, segmentTable ) ) ;
+			}
+			else {
+				String stem = STEMS[ random.nextInt( STEMS.length ) ] ;
+				questionName = stem + "_" + ( random.nextBoolean() ? "cat" : "table" ) ;
+				records.add( record( questionName, questionName, section, random.nextInt( 4 ) == 0, segmentTable ) ) ;
+			}
+		}
+		return records ;
+	}
+
+	private static VariableRecord record( String name, String questionName, String section, boolean parent, HashMap<String,String> segmentTable ) {
+		ArrayList<String> names = new ArrayList<String>() ;
+		ArrayList<String> values = new ArrayList<String>() ;
+		names.add( "stage" ) ;
+		values.add( "TestQuestionnaire" ) ;
+		names.add( "questionnaire" ) ;
+		values.add( "TestQuestionnaire" ) ;
+		if( questionName != null ) {
+			names.add( "questionName" ) ;
+			values.add( questionName ) ;
+			names.add( "section" ) ;
+			values.add( section ) ;
+		}
+		if( parent ) {
+			names.add( "parentQuestion" ) ;
+			values.add( "true" ) ;
+		}
+		return new VariableRecord( name, "text", null, null, names, values, null, segmentTable ) ;
+	}
+
+	/**
+	 * The grouping as it was before the single-pass grouper: an outer loop over an index of every
+	 * variable, handing over to a gatherer for each kind of question, which returns the position of
+	 * the last variable it took.
+	 */
+	private static class PreviousGrouping {
+
+		private final List<VariableRecord> vra ;
+		private final ArrayList<String> questions = new ArrayList<String>() ;
+
+		private PreviousGrouping( List<VariableRecord> vra ) {
+			this.vra = vra ;
+		}
+
+		static List<String> describeQuestions( List<VariableRecord> records ) {
+			PreviousGrouping grouping = new PreviousGrouping( records ) ;
+			grouping.gatherQuestionVariables() ;
+			return grouping.questions ;
+		}
+
+		private void gatherQuestionVariables() {
+			for( int i=0; i<vra.size(); i++ ) {
+				int start = i ;
+				if( vra.get( i ).isQuestion() ) {
+					if( vra.get( i ).parentQuestion ) {
+						i = gatherParentQuestionVariables( i ) ;
+					}
+					else if( isKludge( i ) ) {
+						i = gatherKludgeQuestionVariables( i ) ;
+					}
+					else {
+						i = gatherSingletonQuestionVariables( i ) ;
+					}
+				}
+				if( i < start ) {
+					fail( "Previous grouping does not terminate at variable " + start ) ;
+				}
+			}
+		}
+
+		private boolean isKludge( int i ) {
+			return vra.get( i ).name.equals( KLUDGE_VARIABLE ) ;
+		}
+
+		private int gatherParentQuestionVariables( int driverDisplacement ) {
+			if( isKludge( driverDisplacement ) )
+				return driverDisplacement ;
+			VariableRecord driver = vra.get( driverDisplacement ) ;
+			String driverQuestionName = driver.getQuestionName() ;
+			int i=driverDisplacement+1 ;
+			StringBuilder pq = new StringBuilder( "P" ) ;
+			ArrayList<String> parentVariables = new ArrayList<String>() ;
+			StringBuilder children = new StringBuilder() ;
+			VariableRecord firstChild = null ;
+			parentVariables.add( driver.name ) ;
+			for( ; i<vra.size(); i++ ) {
+				if( driverQuestionName.equals( vra.get( i ).getQuestionName() ) ) {
+					parentVariables.add( vra.get( i ).name ) ;
+					continue ;
+				}
+				else if( !vra.get( i ).parentQuestion && !isSectionChanged( i ) ) {
+					if( firstChild == null ) {
+						firstChild = vra.get( i ) ;
+						i = gatherChildQuestionVariables( i, children ) ;
+						continue ;
+					}
+					else if( areAssociated( vra.get( i ), firstChild ) ) {
+						i = gatherChildQuestionVariables( i, children ) ;
+						continue ;
+					}
+				}
+				break ;
+			}
+			describe( parentVariables, pq ) ;
+			questions.add( pq.append( children ).toString() ) ;
+			return --i ;
+		}
+
+		private int gatherKludgeQuestionVariables( int driverDisplacement ) {
+			int i=driverDisplacement ;
+			StringBuilder pq = new StringBuilder( "K[]" ) ;
+			VariableRecord firstChild = null ;
+			for( ; i<vra.size(); i++ ) {
+				if( !isSectionChanged( i ) ) {
+					if( firstChild == null ) {
+						firstChild = vra.get( i ) ;
+						i = gatherChildQuestionVariables( i, pq ) ;
+						continue ;
+					}
+					else if( areAssociated( vra.get( i ), firstChild ) ) {
+						i = gatherChildQuestionVariables( i, pq ) ;
+						continue ;
+					}
+				}
+				break ;
+			}
+			questions.add( pq.toString() ) ;
+			return --i ;
+		}
+
+		private int gatherChildQuestionVariables( int driverDisplacement, StringBuilder parent ) {
+			VariableRecord driver = vra.get( driverDisplacement ) ;
+			String driverQuestionName = driver.getQuestionName() ;
+			int i=driverDisplacement+1 ;
+			ArrayList<String> cq = new ArrayList<String>() ;
+			cq.add( driver.name ) ;
+			for( ; i<vra.size(); i++ ) {
+				if( driverQuestionName.equals( vra.get( i ).getQuestionName() ) ) {
+					cq.add( vra.get( i ).name ) ;
+					continue ;
+				}
+				break ;
+			}
+			describe( cq, parent ) ;
+			return --i ;
+		}
+
+		private int gatherSingletonQuestionVariables( int driverDisplacement ) {
+			VariableRecord driver = vra.get( driverDisplacement ) ;
+			String driverQuestionName = driver.getQuestionName() ;
+			int i=driverDisplacement+1 ;
+			ArrayList<String> sq = new ArrayList<String>() ;
+			sq.add( driver.name ) ;
+			for( ; i<vra.size(); i++ ) {
+				if( driverQuestionName.equals( vra.get( i ).getQuestionName() ) ) {
+					sq.add( vra.get( i ).name ) ;
+					continue ;
+				}
+				break ;
+			}
+			StringBuilder b = new StringBuilder( "S" ) ;
+			describe( sq, b ) ;
+			questions.add( b.toString() ) ;
+			return --i ;
+		}
+
+		private boolean isSectionChanged( int index ) {
+			return !vra.get( index-1 ).section.equalsIgnoreCase( vra.get( index ).section ) ;
+		}
+
+		private static boolean areAssociated( VariableRecord target, VariableRecord firstChild ) {
+			if( target.name.equals( KLUDGE_VARIABLE ) )
+				return false ;
+			boolean associated = false ;
+			String[] firstChildParts = firstChild.segments ;
+			String[] targetParts = target.segments ;
+			if( targetParts[0].equals( firstChild.name ) ) {
+				associated = true ;
+			}
+			else if( targetParts[0].equals( firstChildParts[0] ) ) {
+				associated = true ;
+			}
+			else {
+				String[] fcp1 = firstChild.words ;
+				String[] tp1 = target.words ;
+				if( tp1.length >= fcp1.length ) {
+					int smallest = ( tp1.length <= fcp1.length ? tp1.length : fcp1.length ) ;
+					associated = true ;
+					for( int i=0 ; i<smallest-1; i++ ) {
+						if( !fcp1[i].equals(tp1[i]) ) {
+							associated = false ;
+							break ;
+						}
+					}
+					if( !associated ) {
+						associated = true ;
+						for( int i=smallest-1; i>0; i-- ) {
+							if( !fcp1[i].equals(tp1[i]) ) {
+								associated = false ;
+								break ;
+							}
+						}
+					}
+					if( !associated
+							&&
+							fcp1.length == tp1.length
+							&&
+							tp1.length >= 3
+							&&
+							tp1[0].equals(fcp1[0])
+							&&
+							tp1[tp1.length-1].equals( fcp1[fcp1.length-1] ) ) {
+						int diffCount = 0 ;
+						for( int i=0; i<tp1.length; i++ ) {
+							if( !tp1[i].equals( fcp1[i] ) ) {
+								diffCount++ ;
+							}
+						}
+						if( diffCount <= 1 ) {
+							associated = true ;
+						}
+					}
+				}
+			}
+			return associated ;
+		}
+
+		private static void describe( List<String> names, StringBuilder b ) {
+			b.append( '[' ) ;
+			for( int i=0; i<names.size(); i++ ) {
+				if( i > 0 ) {
+					b.append( ',' ) ;
+				}
+				b.append( names.get( i ) ) ;
+			}
+			b.append( ']' ) ;
+		}
+
+	}
+
+}
@@ -0,0 +1,206 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.brisskit.onyxvariables.beans.AttributeType;
+import org.brisskit.onyxvariables.beans.AttributesType;
+import org.brisskit.onyxvariables.beans.VariableType;
+import org.brisskit.onyxvariables.beans.VariablesDocument;
+import org.brisskit.onyxvariables.beans.VariablesType;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Test variables for <code>OnyxVariables2Metadata</code>, worked back from the stage one metadata
+ * under <code>src/test/resources</code>. There are no Onyx variables files among the test resources,
+ * so each metadata file is turned back into the variables Onyx would have exported for it,
+ * in document order: <br/>
+ * <br/>
+ * 1. the stage's own variables (eg: <code>QuestionnaireRun.version</code>), which are not questions;<br/>
+ * 2. for each question of each section, its variables and their categories (eg: <code>tobacco_any.Y</code>),
+ *    carrying the question name, section and label as attributes;<br/>
+ * 3. for a question with child questions, its own variables flagged as a parent question,
+ *    then the variables of each child question;<br/>
+ * 4. for the kludged question of the DataSubmissionQuestionnaire, only its child questions.<br/>
+ * <br/>
+ * Every variable carries the stage and questionnaire attributes.
+ *
+ * @author jl99
+ *
+ */
+class VariableFixtures {
+
+	static final String METADATA_DIRECTORY = "src/test/resources/test-one-metadata/b-metadata" ;
+
+	private static final String KLUDGED_QUESTION = "Observations during current episode of care" ;
+
+	private final String stageName ;
+	private final HashMap<String,String> segmentTable = new HashMap<String,String>() ;
+	private final ArrayList<VariableRecord> records = new ArrayList<VariableRecord>() ;
+
+	private VariableFixtures( String stageName ) {
+		this.stageName = stageName ;
+	}
+
+	/**
+	 * @return the stage one metadata files that describe a stage (entities are left out)
+	 * @throws Exception
+	 */
+	static List<File> stageFiles() throws Exception {
+		ArrayList<File> files = new ArrayList<File>() ;
+		File[] fa = new File( METADATA_DIRECTORY ).listFiles() ;
+		java.util.Arrays.sort( fa ) ;
+		for( int i=0; i<fa.length; i++ ) {
+			if( fa[i].getName().endsWith( ".xml" ) && child( parse( fa[i] ), "stage" ) != null ) {
+				files.add( fa[i] ) ;
+			}
+		}
+		return files ;
+	}
+
+	/**
+	 * @param metadataFile a stage one metadata file describing a stage
+	 * @return the variables Onyx would have exported for the stage, in document order
+	 * @throws Exception
+	 */
+	static List<VariableRecord> variablesOf( File metadataFile ) throws Exception {
+		Element stage = child( parse( metadataFile ), "stage" ) ;
+		VariableFixtures fixtures = new VariableFixtures( text( child( stage, "name" ) ) ) ;
+		for( Element e : children( stage, "variable" ) ) {
+			fixtures.variable( e, "", null ) ;
+		}
+		for( Element section : children( stage, "section" ) ) {
+			String sectionName = text( child( section, "name" ) ) ;
+			for( Element question : children( section, "question" ) ) {
+				fixtures.question( question, sectionName ) ;
+			}
+		}
+		return fixtures.records ;
+	}
+
+	/**
+	 * @param metadataFile a stage one metadata file describing a stage
+	 * @return the variables of {@link #variablesOf(File)} as an Onyx variables document
+	 * @throws Exception
+	 */
+	static VariablesDocument variablesDocumentOf( File metadataFile ) throws Exception {
+		VariablesDocument varDoc = VariablesDocument.Factory.newInstance() ;
+		VariablesType variables = varDoc.addNewVariables() ;
+		for( VariableRecord vr : variablesOf( metadataFile ) ) {
+			VariableType vt = variables.addNewVariable() ;
+			vt.setName( vr.name ) ;
+			vt.setValueType( vr.valueType ) ;
+			if( vr.repeatable != null ) {
+				vt.setRepeatable( vr.repeatable ) ;
+			}
+			AttributesType attributes = vt.addNewAttributes() ;
+			addAttribute( attributes, "stage", vr.getAttribute( "stage" ) ) ;
+			addAttribute( attributes, "questionnaire", vr.getAttribute( "questionnaire" ) ) ;
+			addAttribute( attributes, "questionName", vr.questionName ) ;
+			addAttribute( attributes, "section", vr.section ) ;
+			addAttribute( attributes, "label", vr.label ) ;
+			addAttribute( attributes, "parentQuestion", vr.getAttribute( "parentQuestion" ) ) ;
+		}
+		return varDoc ;
+	}
+
+	private static void addAttribute( AttributesType attributes, String name, String value ) {
+		if( value != null ) {
+			AttributeType at = attributes.addNewAttribute() ;
+			at.setName( name ) ;
+			at.setStringValue( value ) ;
+		}
+	}
+
+	private void question( Element question, String section ) {
+		String questionName = text( child( question, "name" ) ) ;
+		String label = text( child( question, "label" ) ) ;
+		List<Element> childQuestions = children( question, "question" ) ;
+		if( !questionName.equals( KLUDGED_QUESTION ) ) {
+			String[] attributes = { "questionName", questionName,
+					                "section", section,
+					                "label", label,
+					                "parentQuestion", ( childQuestions.isEmpty() ? null : "true" ) } ;
+			for( Element e : children( question, "variable" ) ) {
+				variable( e, "", attributes ) ;
+			}
+		}
+		for( Element childQuestion : childQuestions ) {
+			String[] attributes = { "questionName", text( child( childQuestion, "name" ) ),
+					                "section", section,
+					                "label", text( child( childQuestion, "label" ) ) } ;
+			for( Element e : children( childQuestion, "variable" ) ) {
+				variable( e, "", attributes ) ;
+			}
+		}
+	}
+
+	/**
+	 * Adds the variable, then its nested variables qualified by its name.
+	 */
+	private void variable( Element variable, String prefix, String[] questionAttributes ) {
+		String name = prefix + text( child( variable, "name" ) ) ;
+		ArrayList<String> names = new ArrayList<String>() ;
+		ArrayList<String> values = new ArrayList<String>() ;
+		names.add( "stage" ) ;
+		values.add( stageName ) ;
+		names.add( "questionnaire" ) ;
+		values.add( stageName ) ;
+		if( questionAttributes != null ) {
+			for( int i=0; i<questionAttributes.length; i+=2 ) {
+				if( questionAttributes[i+1] != null ) {
+					names.add( questionAttributes[i] ) ;
+					values.add( questionAttributes[i+1] ) ;
+				}
+			}
+		}
+		Element repeatable = child( variable, "repeatable" ) ;
+		records.add( new VariableRecord( name,
+				                         text( child( variable, "type" ) ),
+				                         ( repeatable == null ? null : text( repeatable ) ),
+				                         null,
+				                         names,
+				                         values,
+				                         null,
+				                         segmentTable ) ) ;
+		for( Element e : children( variable, "variable" ) ) {
+			variable( e, name + ".", questionAttributes ) ;
+		}
+	}
+
+	private static Element parse( File file ) throws Exception {
+		DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance() ;
+		dbf.setNamespaceAware( true ) ;
+		DocumentBuilder db = dbf.newDocumentBuilder() ;
+		return db.parse( file ).getDocumentElement() ;
+	}
+
+	private static List<Element> children( Element parent, String localName ) {
+		ArrayList<Element> list = new ArrayList<Element>() ;
+		for( Node n = parent.getFirstChild(); n != null; n = n.getNextSibling() ) {
+			if( n.getNodeType() == Node.ELEMENT_NODE && localName.equals( n.getLocalName() ) ) {
+				list.add( (Element)n ) ;
+			}
+		}
+		return list ;
+	}
+
+	private static Element child( Element parent, String localName ) {
+		List<Element> list = children( parent, localName ) ;
+		return ( list.isEmpty() ? null : list.get( 0 ) ) ;
+	}
+
+	private static String text( Element e ) {
+		return ( e == null ? null : e.getTextContent() ) ;
+	}
+
+}
@@ -0,0 +1,37 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+import org.brisskit.onyxvariables.beans.VariableType;
+import org.brisskit.onyxvariables.beans.VariablesDocument;
+
+/**
+ * Checks that <code>VariableIndex</code> holds every variable of a variables document, in document order.
+ * The input is the variables of the RiskFactorQuestionnaire, the largest of the test fixtures.
+ * (How much the index saves is measured by <code>OnyxVariables2MetadataBenchmark</code>.)
+ *
+ * @author jl99
+ *
+ */
+public class VariableIndexTest extends TestCase {
+
+	private static final String FIXTURE = "RiskFactorQuestionnaire.xml" ;
+
+	public void testIndexMatchesDocument() throws Exception {
+		VariablesDocument varDoc = VariableFixtures.variablesDocumentOf( new File( VariableFixtures.METADATA_DIRECTORY, FIXTURE ) ) ;
+		VariableIndex index = VariableIndex.newInstance( varDoc ) ;
+		VariableType[] vta = varDoc.getVariables().getVariableArray() ;
+		assertTrue( "Fixture holds no variables", vta.length > 0 ) ;
+		assertEquals( vta.length, index.size() ) ;
+		for( int i=0; i<vta.length; i++ ) {
+			assertEquals( vta[i].getName(), index.get( i ).getName() ) ;
+			assertEquals( vta[i].getValueType(), index.get( i ).valueType ) ;
+		}
+	}
+
+}